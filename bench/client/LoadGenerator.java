@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package client;
+
+import server.*;
+import server.metrics.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.rmi.Naming;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Un LoadGenerator simula molti utenti che usano la rete sociale tramite {@link AuthenticationManager} e
+ * {@link Client}, senza interfaccia grafica. Ogni utente simulato è un Client senza heartbeat (v.
+ * {@link Client#Client(AuthenticationManager, boolean)}) che riceve le notifiche via RMI come un client reale.
+ * <p>
+ * Il carico è a ciclo chiuso: ogni utente sceglie un'operazione secondo il mix configurato, attende la risposta, quindi
+ * aspetta un tempo di riflessione casuale con media fissata prima della successiva. Il throughput dipende quindi dal
+ * numero di utenti e dalla latenza del server, come con utenti reali. Gli utenti vengono eseguiti a turno da un numero
+ * fisso di thread, per cui se ne possono simulare migliaia. Le operazioni sono:
+ * <p>
+ * - login, un nuovo login (LOGIN);
+ * <p>
+ * - publish, la pubblicazione di un post (PUBLISH);
+ * <p>
+ * - find, la ricerca di un utente per nome (FIND_USER);
+ * <p>
+ * - friend, la risposta a una richiesta di amicizia ricevuta (ACCEPT_FRIEND_REQUEST) oppure, se non ce ne sono, una
+ * richiesta di amicizia a un utente a caso (FORWARD_FRIEND_REQUEST);
+ * <p>
+ * - subscribe, la lista degli amici (GET_FRIENDS) e l'iscrizione ai contenuti di uno di essi (via RMI).
+ * <p>
+ * Dopo il riscaldamento vengono misurati, per ogni tipo di richiesta, il throughput, le richieste rifiutate dal server
+ * (ResponseException, ad esempio per BUSY o THROTTLED), gli errori di comunicazione e i percentili delle latenze.
+ * <p>
+ * Con -embedded il LoadGenerator avvia un server sulla porta indicata, senza limiti di frequenza: tutti gli utenti
+ * simulati arrivano dallo stesso indirizzo e verrebbero limitati dal budget per indirizzo (v. {@link RateLimiter}).
+ * <p>
+ * Uso: java client.LoadGenerator [-host h] [-port p] [-embedded] [-users n] [-threads n]
+ * [-mix login=5,publish=20,find=40,friend=20,subscribe=15] [-think ms] [-warmup s] [-duration s] [-seed n]
+ */
+public class LoadGenerator {
+
+    private static final String NAME_PREFIX = "load";
+    private static final String PASSWORD = "password";
+    private static final int REQUEST_TYPES = 32;
+    private static final int SUBSCRIBE = REQUEST_TYPES;
+    private static final int KEYS = SUBSCRIBE + 1;
+    private static final int SETUP_ATTEMPTS = 5;
+    private static final long SETUP_RETRY_DELAY = 200;
+
+    public enum Operation {LOGIN, PUBLISH, FIND, FRIEND, SUBSCRIBE}
+
+    private final ShortConnectionFactory factory;
+    private final int usersCount;
+    private final int[] mix = new int[Operation.values().length];
+    private final int mixTotal;
+    private final long thinkTime;
+    private final ScheduledExecutorService executor;
+    private final List<SimulatedUser> users = new ArrayList<>();
+    private volatile Stats stats = new Stats();
+    private volatile boolean stopped;
+
+    /**
+     * Le misure raccolte da un certo istante.
+     */
+    private static class Stats {
+        final long start = System.nanoTime();
+        final Histogram[] latencies = new Histogram[KEYS];
+        final LongAdder[] rejected = new LongAdder[KEYS];
+        final LongAdder[] failed = new LongAdder[KEYS];
+        final LongAdder notifications = new LongAdder();
+
+        Stats() {
+            for (int i = 0; i < KEYS; i++) {
+                latencies[i] = new Histogram();
+                rejected[i] = new LongAdder();
+                failed[i] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * Uno degli utenti simulati. Esegue un'operazione ogni volta che viene eseguito, quindi si rischedula.
+     */
+    private class SimulatedUser implements Runnable {
+        final AuthenticationManager authenticationManager;
+        final Client client;
+        final Random random;
+        final Deque<String> pendingRequests = new ArrayDeque<>();
+
+        SimulatedUser(AuthenticationManager authenticationManager, Client client, long seed) {
+            this.authenticationManager = authenticationManager;
+            this.client = client;
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+            if (stopped)
+                return;
+            try {
+                execute(pickOperation(random));
+                stats.notifications.add(client.retrieveUnreadPosts().size());
+            } catch (RuntimeException e) {
+
+            }
+            schedule(this);
+        }
+
+        private void execute(Operation operation) {
+            switch (operation) {
+                case LOGIN:
+                    timed(RequestTypes.LOGIN, () -> {
+                        authenticationManager.login();
+                        return true;
+                    });
+                    break;
+                case PUBLISH:
+                    timed(RequestTypes.PUBLISH, () -> {
+                        client.publish("Post " + random.nextInt() + " by " + client.getUsername());
+                        return true;
+                    });
+                    break;
+                case FIND:
+                    timed(RequestTypes.FIND_USER, () -> client.findUsers(nameOf(random.nextInt(usersCount))));
+                    break;
+                case FRIEND:
+                    pendingRequests.addAll(client.retrievePendingFriendRequests());
+                    String sender = pendingRequests.poll();
+                    if (sender != null)
+                        timed(RequestTypes.ACCEPT_FRIEND_REQUEST, () -> {
+                            client.respondFriendRequest(sender, true);
+                            return true;
+                        });
+                    else
+                        timed(RequestTypes.FORWARD_FRIEND_REQUEST, () -> {
+                            client.friendRequest(nameOf(random.nextInt(usersCount)));
+                            return true;
+                        });
+                    break;
+                case SUBSCRIBE:
+                    List<Client.FriendWithStatus> friends = timed(RequestTypes.GET_FRIENDS, client::retrieveFriends);
+                    if (friends != null && !friends.isEmpty()) {
+                        String friend = friends.get(random.nextInt(friends.size())).getUsername();
+                        timed(SUBSCRIBE, () -> {
+                            client.subscribe(friend);
+                            return true;
+                        });
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Crea un LoadGenerator.
+     *
+     * @param factory    la factory delle connessioni col server, condivisa da tutti gli utenti
+     * @param usersCount il numero di utenti da simulare
+     * @param mix        il peso di ogni operazione, indicizzato per {@link Operation#ordinal()}
+     * @param thinkTime  il tempo medio di riflessione tra due operazioni di un utente, in millisecondi
+     * @param threads    il numero di thread che eseguono gli utenti
+     * @throws IllegalArgumentException se un argomento non è valido o la somma dei pesi non è positiva
+     */
+    public LoadGenerator(ShortConnectionFactory factory, int usersCount, int[] mix, long thinkTime, int threads) {
+        if (factory == null || usersCount < 2 || mix == null || mix.length != this.mix.length || thinkTime < 0
+                || threads < 1)
+            throw new IllegalArgumentException();
+        int total = 0;
+        for (int i = 0; i < mix.length; i++) {
+            if (mix[i] < 0)
+                throw new IllegalArgumentException();
+            this.mix[i] = mix[i];
+            total += mix[i];
+        }
+        if (total == 0)
+            throw new IllegalArgumentException();
+        this.mixTotal = total;
+        this.factory = factory;
+        this.usersCount = usersCount;
+        this.thinkTime = thinkTime;
+        this.executor = Executors.newScheduledThreadPool(threads);
+    }
+
+    /**
+     * Restituisce il nome dell'i-esimo utente simulato.
+     *
+     * @param i l'indice dell'utente
+     * @return il nome
+     */
+    public static String nameOf(int i) {
+        return NAME_PREFIX + i;
+    }
+
+    /**
+     * Registra gli utenti simulati, se non esistono già, e ne crea i Client. Gli utenti che non riescono a connettersi
+     * dopo alcuni tentativi vengono scartati.
+     *
+     * @param seed il seme da cui derivano le scelte degli utenti
+     * @return il numero di utenti pronti
+     * @throws InterruptedException se il thread viene interrotto durante l'attesa
+     */
+    public int setUp(long seed) throws InterruptedException {
+        List<Callable<SimulatedUser>> tasks = new ArrayList<>();
+        for (int i = 0; i < usersCount; i++) {
+            String username = nameOf(i);
+            long userSeed = seed * 31 + i;
+            tasks.add(() -> createUser(username, userSeed));
+        }
+        for (Future<SimulatedUser> f : executor.invokeAll(tasks))
+            try {
+                if (f.get() != null)
+                    users.add(f.get());
+            } catch (ExecutionException e) {
+
+            }
+        return users.size();
+    }
+
+    private SimulatedUser createUser(String username, long seed) throws InterruptedException {
+        for (int attempt = 0; attempt < SETUP_ATTEMPTS; attempt++) {
+            try {
+                try {
+                    AuthenticationManager.register(factory, username, PASSWORD);
+                } catch (ResponseException e) {
+                    // L'utente esiste già, ad esempio da un'esecuzione precedente
+                }
+                AuthenticationManager authenticationManager = new AuthenticationManager(factory, username, PASSWORD);
+                return new SimulatedUser(authenticationManager, new Client(authenticationManager, false), seed);
+            } catch (Exception e) {
+                Thread.sleep(SETUP_RETRY_DELAY);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Avvia gli utenti simulati.
+     */
+    public void start() {
+        for (SimulatedUser user : users)
+            schedule(user);
+    }
+
+    /**
+     * Azzera le misure, ad esempio al termine del riscaldamento.
+     */
+    public void resetStats() {
+        stats = new Stats();
+    }
+
+    /**
+     * Ferma gli utenti simulati, stampa le misure raccolte dall'ultimo azzeramento, quindi chiude i Client.
+     *
+     * @param out il PrintStream su cui stampare le misure
+     * @throws InterruptedException se il thread viene interrotto durante l'attesa
+     */
+    public void stop(PrintStream out) throws InterruptedException {
+        stopped = true;
+        Stats s = stats;
+        double seconds = (System.nanoTime() - s.start) / 1e9;
+        report(s, seconds, out);
+
+        List<Callable<Void>> closes = new ArrayList<>();
+        for (SimulatedUser user : users)
+            closes.add(() -> {
+                user.client.close();
+                return null;
+            });
+        executor.invokeAll(closes);
+        executor.shutdownNow();
+    }
+
+    private void schedule(SimulatedUser user) {
+        if (stopped)
+            return;
+        try {
+            if (thinkTime == 0)
+                executor.execute(user);
+            else {
+                // Tempi di riflessione esponenziali, come gli arrivi di utenti indipendenti
+                long delay = (long) (-thinkTime * Math.log(1 - user.random.nextDouble()));
+                executor.schedule(user, delay, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+
+        }
+    }
+
+    private Operation pickOperation(Random random) {
+        int r = random.nextInt(mixTotal);
+        for (Operation o : Operation.values()) {
+            r -= mix[o.ordinal()];
+            if (r < 0)
+                return o;
+        }
+        return Operation.FIND;
+    }
+
+    private <T> T timed(int key, Callable<T> request) {
+        Stats s = stats;
+        long start = System.nanoTime();
+        try {
+            T result = request.call();
+            s.latencies[key].recordSince(start);
+            return result;
+        } catch (ResponseException | OperationNotPermittedException e) {
+            s.rejected[key].increment();
+        } catch (Exception e) {
+            s.failed[key].increment();
+        }
+        return null;
+    }
+
+    private static void report(Stats s, double seconds, PrintStream out) {
+        out.printf("%-22s %9s %10s %9s %8s %9s %9s %9s %9s %9s%n", "request", "ok", "ok/s", "rejected", "failed",
+                "mean(us)", "p50(us)", "p90(us)", "p99(us)", "max(us)");
+        long total = 0;
+        for (int key = 0; key < KEYS; key++) {
+            Histogram.Snapshot snapshot = s.latencies[key].snapshot();
+            long rejected = s.rejected[key].sum();
+            long failed = s.failed[key].sum();
+            if (snapshot.getCount() + rejected + failed == 0)
+                continue;
+            total += snapshot.getCount();
+            out.printf("%-22s %9d %10.1f %9d %8d %9.0f %9d %9d %9d %9d%n",
+                    key == SUBSCRIBE ? "subscribe (rmi)" : RequestTypes.nameOf(key), snapshot.getCount(),
+                    snapshot.getCount() / seconds, rejected, failed, snapshot.getMean(), snapshot.getPercentile(50),
+                    snapshot.getPercentile(90), snapshot.getPercentile(99), snapshot.getMax());
+        }
+        out.printf("total %.0f ok/s over %.1fs, %.0f notifications/s received%n", total / seconds, seconds,
+                s.notifications.sum() / seconds);
+    }
+
+    private static int[] parseMix(String spec) {
+        int[] mix = new int[Operation.values().length];
+        for (String entry : spec.split(",")) {
+            String[] fields = entry.split("=");
+            if (fields.length != 2)
+                throw new IllegalArgumentException("Invalid mix " + spec);
+            mix[Operation.valueOf(fields[0].trim().toUpperCase(Locale.ROOT)).ordinal()] =
+                    Integer.parseInt(fields[1].trim());
+        }
+        return mix;
+    }
+
+    private static void waitForServer(PartitionMap.Node node) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                Naming.lookup("//" + node.getHost() + ":" + node.getRegistryPort() + "/"
+                        + NotificationManager.SERVICE_NAME);
+                return;
+            } catch (Exception e) {
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.net.preferIPv4Stack", "true");
+        String host = "localhost";
+        int port = Server.SERVER_PORT;
+        boolean embedded = false;
+        int usersCount = 1000;
+        int threads = Runtime.getRuntime().availableProcessors() * 8;
+        String mixSpec = "login=5,publish=20,find=40,friend=20,subscribe=15";
+        long thinkTime = 100;
+        int warmup = 5;
+        int duration = 20;
+        long seed = 42;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-embedded"))
+                embedded = true;
+            else if (i + 1 < args.length && args[i].equals("-host"))
+                host = args[++i];
+            else if (i + 1 < args.length && args[i].equals("-port"))
+                port = Integer.parseInt(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-users"))
+                usersCount = Integer.parseInt(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-threads"))
+                threads = Integer.parseInt(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-mix"))
+                mixSpec = args[++i];
+            else if (i + 1 < args.length && args[i].equals("-think"))
+                thinkTime = Long.parseLong(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-warmup"))
+                warmup = Integer.parseInt(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-duration"))
+                duration = Integer.parseInt(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-seed"))
+                seed = Long.parseLong(args[++i]);
+        }
+
+        PartitionMap partitionMap = PartitionMap.singleNode(host, port);
+        Server server = null;
+        if (embedded) {
+            server = new Server(null, false, partitionMap, 0);
+            for (int type = 0; type < REQUEST_TYPES; type++)
+                if (server.getRateLimiter().hasBudget(type))
+                    server.getRateLimiter().removeBudget(type);
+            Server s = server;
+            Thread serverThread = new Thread(() -> {
+                try {
+                    s.startServer();
+                } catch (IOException e) {
+                    System.out.println("Il server non può essere avviato: " + e.getLocalizedMessage());
+                }
+            }, "embedded-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            waitForServer(partitionMap.getNode(0));
+        }
+
+        ShortConnectionFactory factory = new ShortConnectionFactory(partitionMap);
+        LoadGenerator generator = new LoadGenerator(factory, usersCount, parseMix(mixSpec), thinkTime, threads);
+        System.out.printf("users=%d threads=%d mix=%s think=%dms warmup=%ds duration=%ds%n", usersCount, threads,
+                mixSpec, thinkTime, warmup, duration);
+        long begin = System.nanoTime();
+        int ready = generator.setUp(seed);
+        System.out.printf("%d users ready in %.1fs%n", ready, (System.nanoTime() - begin) / 1e9);
+
+        generator.start();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        generator.resetStats();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+        generator.stop(System.out);
+
+        factory.close();
+        if (server != null)
+            server.close();
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import client.AuthenticationManager;
+import client.ShortConnectionFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Confronta i modi di esecuzione del server (v. {@link Server.ExecutionMode}). Per ogni modo avvia un server, apre
+ * delle connessioni persistenti inattive, che occupano un ServerTask ciascuna come i client con connessioni nel pool o
+ * lenti, quindi misura throughput, latenza ed errori di un carico di ricerche inviate su connessioni dedicate.
+ * <p>
+ * Uso: java server.ExecutionModeBenchmark [connessioni inattive] [thread client] [secondi per misura]
+ */
+public class ExecutionModeBenchmark {
+
+    private static final int BASE_PORT = 12400;
+    private static final int TIMEOUT = (int) TimeUnit.SECONDS.toMillis(2);
+    private static final int SAMPLES = 1 << 16;
+
+    public static void main(String[] args) throws Exception {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int idleConnections = args.length > 0 ? Integer.parseInt(args[0]) : processors * 25 + 50;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.printf("idle connections=%d client threads=%d duration=%ds virtual threads=%b%n", idleConnections,
+                threads, seconds, VirtualThreads.isSupported());
+        System.out.printf("%16s %12s %10s %10s %10s%n", "mode", "ops/s", "p50 (us)", "p99 (us)", "errors");
+        int port = BASE_PORT;
+        for (Server.ExecutionMode mode : Server.ExecutionMode.values()) {
+            run(mode, port, idleConnections, threads, seconds);
+            port += 10;
+        }
+        System.exit(0);
+    }
+
+    private static void run(Server.ExecutionMode mode, int port, int idleConnections, int threads, int seconds)
+            throws Exception {
+        Server server = new Server(null, false, PartitionMap.singleNode("localhost", port), 0);
+        server.setExecutionMode(mode, Server.DEFAULT_MAX_CONCURRENT_TASKS);
+        server.getRateLimiter().removeBudget(RequestTypes.FIND_USER);
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.startServer();
+            } catch (Exception | Error e) {
+                System.out.println("  accept loop terminated: " + e);
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForServer(port);
+
+        ShortConnectionFactory factory = new ShortConnectionFactory("localhost", port);
+        AuthenticationManager.register(factory, "bench", "password");
+        AuthenticationManager authenticationManager = new AuthenticationManager(factory, "bench", "password");
+        byte[] token = authenticationManager.getToken();
+        factory.close();
+
+        List<Socket> idle = new ArrayList<>();
+        for (int i = 0; i < idleConnections; i++)
+            try {
+                Socket s = new Socket();
+                s.connect(new InetSocketAddress("localhost", port), TIMEOUT);
+                s.getOutputStream().write(RequestTypes.PERSISTENT);
+                idle.add(s);
+            } catch (IOException e) {
+                break;
+            }
+
+        LongAdder errors = new LongAdder();
+        long[][] latencies = new long[threads][SAMPLES];
+        int[] operations = new int[threads];
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            new Thread(() -> {
+                int n = 0;
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    if (findUser(port, token))
+                        latencies[index][n++ % SAMPLES] = System.nanoTime() - start;
+                    else
+                        errors.increment();
+                }
+                operations[index] = n;
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+
+        long[] all = IntStream.range(0, threads)
+                .mapToObj(t -> Arrays.stream(latencies[t], 0, Math.min(operations[t], SAMPLES)))
+                .flatMapToLong(l -> l)
+                .sorted()
+                .toArray();
+        System.out.printf("%16s %12.0f %10d %10d %10d%n", mode, IntStream.of(operations).sum() / (elapsed / 1e9),
+                percentile(all, 50), percentile(all, 99), errors.sum());
+
+        for (Socket s : idle)
+            s.close();
+        server.close();
+    }
+
+    private static boolean findUser(int port, byte[] token) {
+        try (Socket s = new Socket()) {
+            s.connect(new InetSocketAddress("localhost", port), TIMEOUT);
+            s.setSoTimeout(TIMEOUT);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            out.write(RequestTypes.FIND_USER);
+            out.write(token);
+            out.flush();
+            if (in.read() != ResponseTypes.OK)
+                return false;
+            out.write("ben".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return in.readAllBytes().length > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void waitForServer(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)] / 1000;
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import socialnetwork.BenchmarkRunner;
+import socialnetwork.Post;
+import socialnetwork.SocialGraphGenerator;
+import socialnetwork.User;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Misura il throughput dei componenti del server che lavorano su ogni richiesta o su ogni pubblicazione, su reti
+ * generate da un {@link SocialGraphGenerator} e con tutti gli utenti connessi:
+ * <p>
+ * - getSession, la ricerca della sessione di un token, eseguita da ogni richiesta autenticata;
+ * <p>
+ * - notifyPost, la notifica di un post ai follower dell'autore, scelto secondo la distribuzione dei gradi. I follower
+ * sono registrati con oggetti locali che non fanno nulla, per cui viene misurato il costo del fan-out e non quello di
+ * RMI.
+ * <p>
+ * Uso: java server.ServerCoreBenchmark [utenti] [distribuzioni] [thread] [millisecondi per iterazione] [seme]
+ * <p>
+ * dove utenti, distribuzioni e thread sono liste separate da virgole (v. socialnetwork.CoreBenchmark).
+ */
+public class ServerCoreBenchmark {
+
+    private static final int BASE_PORT = 12500;
+    private static final int AVERAGE_DEGREE = 20;
+    private static final double FOLLOW_PROBABILITY = 0.5;
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int ITERATIONS = 5;
+
+    /**
+     * Un destinatario di notifiche che conta le notifiche ricevute.
+     */
+    private static class CountingReceiver implements RemoteNotificationReceiver {
+        private final byte[] token;
+        private final LongAdder received;
+
+        CountingReceiver(byte[] token, LongAdder received) {
+            this.token = token;
+            this.received = received;
+        }
+
+        @Override
+        public void notifyPost(String author, String content) {
+            received.increment();
+        }
+
+        @Override
+        public void notifyFriendRequests(List<String> senders) {
+
+        }
+
+        @Override
+        public byte[] getToken() {
+            return token;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] usersCounts = BenchmarkRunner.parseInts(args.length > 0 ? args[0] : "1000,100000");
+        String[] distributions = (args.length > 1 ? args[1] : "UNIFORM,POWER_LAW").split(",");
+        int[] threadCounts = BenchmarkRunner.parseInts(args.length > 2 ? args[2] : "1,4");
+        long iterationMillis = args.length > 3 ? Long.parseLong(args[3]) : 1000;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42;
+
+        BenchmarkRunner runner = new BenchmarkRunner(WARMUP_ITERATIONS, ITERATIONS, iterationMillis, seed);
+        System.out.printf("iterations=%d+%d of %dms seed=%d degree=%d%n", WARMUP_ITERATIONS, ITERATIONS,
+                iterationMillis, seed, AVERAGE_DEGREE);
+        System.out.printf("%-12s %10s %10s %8s %27s %14s%n", "benchmark", "users", "degrees", "threads", "ops/s",
+                "notified/s");
+        int port = BASE_PORT;
+        for (int usersCount : usersCounts)
+            for (String d : distributions) {
+                run(runner, port, usersCount, SocialGraphGenerator.Distribution.valueOf(d.trim()), threadCounts,
+                        seed);
+                port += 10;
+            }
+        System.exit(0);
+    }
+
+    private static void run(BenchmarkRunner runner, int port, int usersCount,
+                            SocialGraphGenerator.Distribution distribution, int[] threadCounts, long seed)
+            throws Exception {
+        Server server = new Server(null, false, PartitionMap.singleNode("localhost", port), 0);
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.startServer();
+            } catch (IOException e) {
+                System.out.println("  server terminated: " + e);
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForServer(server);
+
+        SocialGraphGenerator generator = new SocialGraphGenerator(seed, distribution, AVERAGE_DEGREE,
+                FOLLOW_PROBABILITY, 1);
+        User[] users = generator.populate(server.getUsersNetwork(), usersCount);
+        SessionsManager sessionsManager = server.getSessionsManager();
+        NotificationManager notificationManager = server.getNotificationManager();
+        LongAdder received = new LongAdder();
+        byte[][] tokens = new byte[usersCount][];
+        for (int i = 0; i < usersCount; i++) {
+            tokens[i] = sessionsManager.login(users[i]);
+            notificationManager.registerReceiver(new CountingReceiver(tokens[i], received));
+        }
+
+        for (int threads : threadCounts) {
+            BenchmarkRunner.Result result = runner.measure(threads, random -> {
+                if (sessionsManager.getSession(tokens[random.nextInt(usersCount)]) == null)
+                    throw new IllegalStateException("Session not found");
+            });
+            System.out.printf("%-12s %10d %10s %8d %s %14s%n", "getSession", usersCount, distribution, threads,
+                    result, "");
+
+            received.reset();
+            long begin = System.nanoTime();
+            result = runner.measure(threads, random -> {
+                Post post = users[generator.sample(random, usersCount)].getPosts().get(0);
+                notificationManager.notifyPost(post);
+            });
+            double notified = received.sum() / ((System.nanoTime() - begin) / 1e9);
+            System.out.printf("%-12s %10d %10s %8d %s %14.0f%n", "notifyPost", usersCount, distribution, threads,
+                    result, notified);
+        }
+        server.close();
+    }
+
+    private static void waitForServer(Server server) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if (server.getNotificationManager() != null && server.getFriendRequestsDeliveryManager() != null)
+                return;
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("Server not started");
+    }
+
+}
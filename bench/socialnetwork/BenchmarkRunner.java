@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package socialnetwork;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Esegue un'operazione da più thread per un certo numero di iterazioni di durata fissa e ne misura il throughput. Le
+ * prime iterazioni servono da riscaldamento (compilazione JIT, crescita delle strutture dati) e non vengono misurate;
+ * delle altre vengono riportati media e deviazione standard, per cui due esecuzioni si possono confrontare sapendo
+ * quanto è rumorosa la misura.
+ * <p>
+ * Ogni thread riceve un Random inizializzato con un seme che dipende solo dal seme del runner e dall'indice del thread,
+ * per cui la sequenza di operazioni eseguite da ogni thread è riproducibile.
+ */
+public class BenchmarkRunner {
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final long iterationNanos;
+    private final long seed;
+
+    /**
+     * Un'operazione da misurare. Deve essere thread-safe: viene invocata da tutti i thread contemporaneamente.
+     */
+    public interface Operation {
+        /**
+         * Esegue l'operazione una volta.
+         *
+         * @param random il generatore del thread che la esegue
+         * @throws Exception se l'operazione fallisce, il benchmark viene interrotto
+         */
+        void run(Random random) throws Exception;
+    }
+
+    /**
+     * Il risultato di una misura, in operazioni al secondo.
+     */
+    public static class Result {
+        private final double mean;
+        private final double stddev;
+
+        private Result(double[] throughputs) {
+            double sum = 0;
+            for (double t : throughputs)
+                sum += t;
+            mean = sum / throughputs.length;
+            double squares = 0;
+            for (double t : throughputs)
+                squares += (t - mean) * (t - mean);
+            stddev = throughputs.length > 1 ? Math.sqrt(squares / (throughputs.length - 1)) : 0;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getStddev() {
+            return stddev;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%14.0f +- %-10.0f", mean, stddev);
+        }
+    }
+
+    /**
+     * Crea un BenchmarkRunner.
+     *
+     * @param warmupIterations le iterazioni di riscaldamento
+     * @param iterations       le iterazioni misurate
+     * @param iterationMillis  la durata di ogni iterazione in millisecondi
+     * @param seed             il seme da cui derivano i generatori dei thread
+     * @throws IllegalArgumentException se warmupIterations è negativo, iterations o iterationMillis non sono positivi
+     */
+    public BenchmarkRunner(int warmupIterations, int iterations, long iterationMillis, long seed) {
+        if (warmupIterations < 0 || iterations < 1 || iterationMillis < 1)
+            throw new IllegalArgumentException();
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationNanos = TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+        this.seed = seed;
+    }
+
+    /**
+     * Misura il throughput di un'operazione eseguita da un certo numero di thread.
+     *
+     * @param threads   il numero di thread
+     * @param operation l'operazione
+     * @return il throughput misurato
+     * @throws Exception se l'operazione fallisce in uno dei thread
+     */
+    public Result measure(int threads, Operation operation) throws Exception {
+        if (threads < 1 || operation == null)
+            throw new IllegalArgumentException();
+        Random[] randoms = new Random[threads];
+        for (int t = 0; t < threads; t++)
+            randoms[t] = new Random(seed * 31 + t);
+
+        double[] throughputs = new double[iterations];
+        for (int i = 0; i < warmupIterations + iterations; i++) {
+            double throughput = iteration(threads, randoms, operation);
+            if (i >= warmupIterations)
+                throughputs[i - warmupIterations] = throughput;
+        }
+        return new Result(throughputs);
+    }
+
+    private double iteration(int threads, Random[] randoms, Operation operation) throws Exception {
+        long[] operations = new long[threads];
+        Exception[] failure = new Exception[1];
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] deadline = new long[1];
+
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            new Thread(() -> {
+                long ops = 0;
+                try {
+                    ready.countDown();
+                    start.await();
+                    long end = deadline[0];
+                    // Il tempo viene letto ogni 64 operazioni, per non misurare nanoTime
+                    while ((ops & 0x3F) != 0 || System.nanoTime() < end) {
+                        operation.run(randoms[index]);
+                        ops++;
+                    }
+                } catch (Exception e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                } finally {
+                    operations[index] = ops;
+                    done.countDown();
+                }
+            }, "benchmark-" + t).start();
+        }
+
+        ready.await();
+        long begin = System.nanoTime();
+        deadline[0] = begin + iterationNanos;
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw failure[0];
+        }
+
+        long total = 0;
+        for (long ops : operations)
+            total += ops;
+        return total / (elapsed / 1e9);
+    }
+
+    /**
+     * Interpreta una lista di interi separati da virgole, ad esempio "1,2,4".
+     *
+     * @param list la lista
+     * @return gli interi
+     * @throws NumberFormatException se un elemento non è un intero
+     */
+    public static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            result[i] = Integer.parseInt(parts[i].trim());
+        return result;
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package socialnetwork;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Misura il throughput delle operazioni principali della rete sociale su reti generate da un
+ * {@link SocialGraphGenerator}, per ogni combinazione di numero di utenti, distribuzione dei gradi e numero di thread:
+ * <p>
+ * - findUsers, ricerca per nome (visita tutti gli utenti);
+ * <p>
+ * - addFriendship, amicizie tra utenti scelti secondo la distribuzione dei gradi, per cui con POWER_LAW i thread si
+ * contendono i lock degli utenti più popolari;
+ * <p>
+ * - addPost, pubblicazioni di autori scelti secondo la distribuzione dei gradi;
+ * <p>
+ * - friendRequest, invio e rifiuto di una richiesta di amicizia tramite un FriendRequestsManager.
+ * <p>
+ * Uso: java socialnetwork.CoreBenchmark [utenti] [distribuzioni] [thread] [millisecondi per iterazione] [seme]
+ * <p>
+ * dove utenti, distribuzioni e thread sono liste separate da virgole, ad esempio
+ * java -Xmx8g socialnetwork.CoreBenchmark 1000,100000,1000000 UNIFORM,POWER_LAW 1,4,16
+ */
+public class CoreBenchmark {
+
+    private static final int AVERAGE_DEGREE = 20;
+    private static final double FOLLOW_PROBABILITY = 0.5;
+    private static final int POSTS_PER_USER = 1;
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int ITERATIONS = 5;
+    private static final long REQUEST_LIFE = TimeUnit.SECONDS.toMillis(1);
+
+    public static void main(String[] args) throws Exception {
+        int[] usersCounts = BenchmarkRunner.parseInts(args.length > 0 ? args[0] : "1000,100000");
+        String[] distributions = (args.length > 1 ? args[1] : "UNIFORM,POWER_LAW").split(",");
+        int[] threadCounts = BenchmarkRunner.parseInts(args.length > 2 ? args[2] : "1,4");
+        long iterationMillis = args.length > 3 ? Long.parseLong(args[3]) : 1000;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42;
+
+        BenchmarkRunner runner = new BenchmarkRunner(WARMUP_ITERATIONS, ITERATIONS, iterationMillis, seed);
+        System.out.printf("iterations=%d+%d of %dms seed=%d degree=%d%n", WARMUP_ITERATIONS, ITERATIONS,
+                iterationMillis, seed, AVERAGE_DEGREE);
+        System.out.printf("%-14s %10s %10s %8s %27s%n", "benchmark", "users", "degrees", "threads", "ops/s");
+        for (int usersCount : usersCounts)
+            for (String d : distributions) {
+                SocialGraphGenerator generator = new SocialGraphGenerator(seed,
+                        SocialGraphGenerator.Distribution.valueOf(d.trim()), AVERAGE_DEGREE, FOLLOW_PROBABILITY,
+                        POSTS_PER_USER);
+                UsersNetwork network = new UsersNetwork();
+                User[] users = generator.populate(network, usersCount);
+                FriendRequestsManager friendRequests = new FriendRequestsManager(network, REQUEST_LIFE);
+
+                for (int threads : threadCounts) {
+                    print("findUsers", usersCount, d, threads, runner.measure(threads, random ->
+                            network.findUsers(SocialGraphGenerator.nameOf(random.nextInt(usersCount)))));
+                    print("addFriendship", usersCount, d, threads, runner.measure(threads, random -> {
+                        User u1 = users[random.nextInt(usersCount)];
+                        User u2 = users[generator.sample(random, usersCount)];
+                        if (u1 != u2)
+                            network.addFriendship(u1, u2);
+                    }));
+                    print("addPost", usersCount, d, threads, runner.measure(threads, random ->
+                            network.addPost(users[generator.sample(random, usersCount)], "benchmark")));
+                    print("friendRequest", usersCount, d, threads, runner.measure(threads, random -> {
+                        User sender = users[random.nextInt(usersCount)];
+                        User receiver = users[generator.sample(random, usersCount)];
+                        if (friendRequests.addFriendRequest(sender, receiver))
+                            friendRequests.confirmFriendRequest(sender, receiver, false);
+                    }));
+                }
+                friendRequests.close();
+            }
+    }
+
+    private static void print(String benchmark, int usersCount, String distribution, int threads,
+                              BenchmarkRunner.Result result) {
+        System.out.printf("%-14s %10d %10s %8d %s%n", benchmark, usersCount, distribution, threads, result);
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package socialnetwork;
+
+import java.util.Random;
+
+/**
+ * Genera reti sociali sintetiche riproducibili: a parità di seme e di parametri vengono create le stesse amicizie, le
+ * stesse iscrizioni e gli stessi post, per cui due versioni del server si possono confrontare sugli stessi dati.
+ * <p>
+ * L'utente i si chiama {@link #nameOf(int)}. Ogni amicizia collega un utente scelto uniformemente a un utente scelto
+ * secondo la distribuzione dei gradi:
+ * <p>
+ * - UNIFORM, ogni utente ha circa lo stesso numero di amici;
+ * <p>
+ * - POWER_LAW, l'utente di rango r viene scelto con probabilità proporzionale a 1/(r+1), come in una legge di Zipf:
+ * pochi utenti hanno moltissimi amici e follower, come le celebrità di una rete reale.
+ * <p>
+ * Ogni amico di un utente ne segue i contenuti con probabilità followProbability. La memoria necessaria cresce con il
+ * numero di utenti per il grado medio: le reti più grandi (milioni di utenti) richiedono di aumentare lo heap della JVM.
+ */
+public class SocialGraphGenerator {
+
+    public enum Distribution {UNIFORM, POWER_LAW}
+
+    private final long seed;
+    private final Distribution distribution;
+    private final int averageDegree;
+    private final double followProbability;
+    private final int postsPerUser;
+
+    /**
+     * Crea un SocialGraphGenerator.
+     *
+     * @param seed              il seme del generatore
+     * @param distribution      la distribuzione dei gradi
+     * @param averageDegree     il numero medio di amici di un utente
+     * @param followProbability la probabilità che un utente segua un amico
+     * @param postsPerUser      il numero di post pubblicati da ogni utente
+     * @throws IllegalArgumentException se distribution è null, averageDegree o postsPerUser sono negativi, oppure
+     *                                  followProbability non è compresa tra 0 e 1
+     */
+    public SocialGraphGenerator(long seed, Distribution distribution, int averageDegree, double followProbability,
+                                int postsPerUser) {
+        if (distribution == null || averageDegree < 0 || postsPerUser < 0
+                || !(followProbability >= 0 && followProbability <= 1))
+            throw new IllegalArgumentException();
+        this.seed = seed;
+        this.distribution = distribution;
+        this.averageDegree = averageDegree;
+        this.followProbability = followProbability;
+        this.postsPerUser = postsPerUser;
+    }
+
+    /**
+     * Restituisce il nome dell'utente i-esimo di una rete generata.
+     *
+     * @param i l'indice dell'utente
+     * @return il nome
+     */
+    public static String nameOf(int i) {
+        return "user" + i;
+    }
+
+    /**
+     * Genera una nuova rete sociale.
+     *
+     * @param usersCount il numero di utenti
+     * @return la rete
+     * @throws IllegalArgumentException se usersCount non è positivo
+     */
+    public UsersNetwork generate(int usersCount) {
+        UsersNetwork network = new UsersNetwork();
+        populate(network, usersCount);
+        return network;
+    }
+
+    /**
+     * Aggiunge a una rete sociale gli utenti, le amicizie, le iscrizioni e i post generati.
+     *
+     * @param network    la rete, che non deve contenere utenti con i nomi generati
+     * @param usersCount il numero di utenti
+     * @return gli utenti aggiunti, nell'ordine dei loro indici
+     * @throws IllegalArgumentException se network è null o usersCount non è positivo
+     */
+    public User[] populate(UsersNetwork network, int usersCount) {
+        if (network == null || usersCount < 1)
+            throw new IllegalArgumentException();
+        Random random = new Random(seed);
+        User[] users = new User[usersCount];
+        for (int i = 0; i < usersCount; i++)
+            users[i] = network.addUser(nameOf(i), "password");
+
+        long friendships = (long) usersCount * averageDegree / 2;
+        for (long e = 0; e < friendships; e++) {
+            User u1 = users[random.nextInt(usersCount)];
+            User u2 = users[sample(random, usersCount)];
+            if (u1 == u2)
+                continue;
+            network.addFriendship(u1, u2);
+            if (random.nextDouble() < followProbability)
+                network.addSubscription(u1, u2);
+            if (random.nextDouble() < followProbability)
+                network.addSubscription(u2, u1);
+        }
+
+        for (int i = 0; i < usersCount; i++)
+            for (int p = 0; p < postsPerUser; p++)
+                network.addPost(users[i], "post " + p + " by " + users[i].getUsername());
+        return users;
+    }
+
+    /**
+     * Sceglie l'indice di un utente secondo la distribuzione dei gradi. Per POWER_LAW l'indice è distribuito in modo
+     * log-uniforme in [0, n), che equivale a una legge di Zipf con esponente 1 e si campiona in tempo costante.
+     *
+     * @param random il generatore
+     * @param n      il numero di utenti
+     * @return l'indice
+     */
+    public int sample(Random random, int n) {
+        if (distribution == Distribution.UNIFORM || n == 1)
+            return random.nextInt(n);
+        int rank = (int) Math.exp(random.nextDouble() * Math.log(n + 1)) - 1;
+        return Math.min(rank, n - 1);
+    }
+
+}
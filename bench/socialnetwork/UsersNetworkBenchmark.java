@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package socialnetwork;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Misura il throughput di un carico misto di pubblicazioni e ricerche per nome su una UsersNetwork al variare del
+ * numero di stripe.
+ * <p>
+ * Uso: java socialnetwork.UsersNetworkBenchmark [utenti] [thread] [% pubblicazioni] [secondi per misura]
+ */
+public class UsersNetworkBenchmark {
+
+    private static final int[] STRIPES = {1, 2, 4, 8, 16, 32, 64, 128};
+
+    public static void main(String[] args) throws InterruptedException {
+        int usersCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int publishPercent = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        System.out.printf("users=%d threads=%d publish=%d%% duration=%ds%n", usersCount, threads, publishPercent,
+                seconds);
+        System.out.printf("%8s %16s%n", "stripes", "ops/s");
+        for (int stripes : STRIPES) {
+            UsersNetwork network = new UsersNetwork(stripes);
+            String[] names = new String[usersCount];
+            for (int i = 0; i < usersCount; i++) {
+                names[i] = "user" + i;
+                network.addUser(names[i], "password");
+            }
+
+            // Warmup, quindi misura
+            run(network, names, threads, publishPercent, 1);
+            double throughput = run(network, names, threads, publishPercent, seconds);
+            System.out.printf("%8d %16.0f%n", stripes, throughput);
+        }
+    }
+
+    private static double run(UsersNetwork network, String[] names, int threads, int publishPercent, int seconds)
+            throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds) + TimeUnit.MILLISECONDS.toNanos(100);
+
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            new Thread(() -> {
+                Random random = new Random(seed);
+                long ops = 0;
+                try {
+                    start.await();
+                    while ((ops & 0xFF) != 0 || System.nanoTime() < deadline) {
+                        User u = network.getUser(names[random.nextInt(names.length)]);
+                        if (random.nextInt(100) < publishPercent)
+                            network.addPost(u, "benchmark");
+                        ops++;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    operations.add(ops);
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        Thread.sleep(100);
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return operations.sum() / (elapsed / 1e9);
+    }
+
+}
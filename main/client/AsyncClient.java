@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package client;
+
+import server.VirtualThreads;
+
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Un AsyncClient offre le operazioni di un {@link Client} senza bloccare il chiamante: ogni operazione viene eseguita
+ * da un ExecutorService e restituisce subito un CompletableFuture, che viene completato col risultato oppure con
+ * l'eccezione sollevata dal Client.
+ * <p>
+ * Di default le operazioni vengono eseguite in virtual thread se la JVM li supporta, altrimenti da un pool di al più
+ * MAX_THREADS thread; in entrambi i casi un solo processo può avere migliaia di operazioni in corso.
+ * <p>
+ * Ogni operazione ha un timeout (v. {@link #withTimeout(long)}): se scade, il future viene completato con una
+ * TimeoutException. Un future può essere annullato con {@link CompletableFuture#cancel(boolean)}: se l'operazione non
+ * è ancora iniziata non viene eseguita, altrimenti il thread che la esegue viene interrotto e il risultato scartato.
+ * Un'operazione già inviata al server può comunque essere stata eseguita.
+ */
+public class AsyncClient implements AutoCloseable {
+
+    public static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    public static final int MAX_THREADS = 64;
+
+    private final Client client;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final long timeout;
+
+    /**
+     * Un'operazione del Client che può sollevare eccezioni.
+     */
+    @FunctionalInterface
+    private interface Operation<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * Crea un AsyncClient che esegue le operazioni di client con l'ExecutorService di default.
+     *
+     * @param client il Client
+     * @throws IllegalArgumentException se client è null
+     */
+    public AsyncClient(Client client) {
+        this(client, newDefaultExecutor(), true, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Crea un AsyncClient che esegue le operazioni di client con l'ExecutorService specificato, che non viene chiuso
+     * da {@link #close()}.
+     *
+     * @param client   il Client
+     * @param executor l'ExecutorService
+     * @throws IllegalArgumentException se uno degli argomenti è null
+     */
+    public AsyncClient(Client client, ExecutorService executor) {
+        this(client, executor, false, DEFAULT_TIMEOUT);
+    }
+
+    private AsyncClient(Client client, ExecutorService executor, boolean ownExecutor, long timeout) {
+        if (client == null || executor == null || timeout <= 0)
+            throw new IllegalArgumentException();
+        this.client = client;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.timeout = timeout;
+    }
+
+    private static ExecutorService newDefaultExecutor() {
+        ExecutorService executor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+        if (executor != null)
+            return executor;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "async-client");
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Restituisce un AsyncClient che usa lo stesso Client e lo stesso ExecutorService di this, ma con un timeout
+     * diverso per le operazioni.
+     *
+     * @param millis il timeout in millisecondi
+     * @return un AsyncClient col timeout specificato
+     * @throws IllegalArgumentException se millis non è positivo
+     */
+    public AsyncClient withTimeout(long millis) {
+        return new AsyncClient(client, executor, false, millis);
+    }
+
+    public Client getClient() {
+        return client;
+    }
+
+    /**
+     * Esegue un'operazione del Client in modo asincrono.
+     *
+     * @param operation l'operazione
+     * @return un future che viene completato col risultato dell'operazione
+     */
+    private <T> CompletableFuture<T> submit(Operation<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Future<?> task;
+        try {
+            task = executor.submit(() -> {
+                if (future.isDone())
+                    return;
+                try {
+                    future.complete(operation.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        future.whenComplete((result, e) -> {
+            if (e != null)
+                task.cancel(true);
+        });
+        return future.orTimeout(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @see Client#findUsers(String)
+     */
+    public CompletableFuture<List<String>> findUsers(String query) {
+        return submit(() -> client.findUsers(query));
+    }
+
+    /**
+     * @see Client#retrieveFriends()
+     */
+    public CompletableFuture<List<Client.FriendWithStatus>> retrieveFriends() {
+        return submit(client::retrieveFriends);
+    }
+
+    /**
+     * @see Client#suggestFriends(int)
+     */
+    public CompletableFuture<List<Client.SuggestedFriend>> suggestFriends(int limit) {
+        return submit(() -> client.suggestFriends(limit));
+    }
+
+    /**
+     * @see Client#publish(String)
+     */
+    public CompletableFuture<Void> publish(String content) {
+        return submit(() -> {
+            client.publish(content);
+            return null;
+        });
+    }
+
+    /**
+     * @see Client#subscribe(String)
+     */
+    public CompletableFuture<Void> subscribe(String username) {
+        return submit(() -> {
+            client.subscribe(username);
+            return null;
+        });
+    }
+
+    /**
+     * @see Client#friendRequest(String)
+     */
+    public CompletableFuture<Void> friendRequest(String username) {
+        return submit(() -> {
+            client.friendRequest(username);
+            return null;
+        });
+    }
+
+    /**
+     * @see Client#respondFriendRequest(String, boolean)
+     */
+    public CompletableFuture<Void> respondFriendRequest(String username, boolean accept) {
+        return submit(() -> {
+            client.respondFriendRequest(username, accept);
+            return null;
+        });
+    }
+
+    /**
+     * Chiude il Client in modo asincrono (v. {@link Client#close()}), quindi chiude l'ExecutorService se è stato creato
+     * da this.
+     *
+     * @return un future che viene completato quando il Client è stato chiuso
+     */
+    public CompletableFuture<Void> logout() {
+        CompletableFuture<Void> future = submit(() -> {
+            client.close();
+            return null;
+        });
+        if (ownExecutor)
+            executor.shutdown();
+        return future;
+    }
+
+    /**
+     * Chiude il Client e, se è stato creato da this, l'ExecutorService. Le operazioni in corso vengono completate.
+     */
+    @Override
+    public void close() {
+        client.close();
+        if (ownExecutor)
+            executor.shutdown();
+    }
+
+}
@@ -10,12 +10,21 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Un AuthenticationManager gestisce la connessione di un singolo utente in un Simple-Social server. In particolare si
  * occupa della registrazione e del login di un utente, nonché della richiesta di nuovi token quando questi scadono.
- * Offre un metodo per la creazione di connessioni autenticate {@link #makeAuthenticatedConnection(byte)}
+ * Offre un metodo per l'invio di richieste autenticate {@link #makeAuthenticatedConnection(byte, byte[])}
+ * <p>
+ * Un AuthenticationManager può essere usato da più thread contemporaneamente: se più richieste vengono rifiutate perché
+ * il token è scaduto, il login viene ripetuto una sola volta (v. {@link #renewToken(byte[])}). Il token è protetto da
+ * un ReentrantLock invece che da synchronized, perché il login comunica col server e un virtual thread bloccato in
+ * un blocco synchronized occupa anche il proprio carrier thread.
  */
 public class AuthenticationManager {
 
@@ -24,8 +33,8 @@ public class AuthenticationManager {
     private String username;
     private String password;
     private ShortConnectionFactory connectionFactory;
-    private int listeningPort = -1;
-    private int attempts;
+    private volatile long lastActivityTime;
+    private final ReentrantLock tokenLock = new ReentrantLock();
 
     /**
      * Crea un nuovo AuthenticationManager.
@@ -50,14 +59,19 @@ public class AuthenticationManager {
      * @return il token oppure null se ci sono problemi di comunicazione col server
      */
     public byte[] getToken() {
-        if (token == null || tokenDate == null || System.currentTimeMillis() - tokenDate.getTime() > SessionsManager
-                .DEFAULT_SESSION_DURATION)
-            try {
-                login();
-            } catch (Exception e) {
-                return null;
-            }
-        return token.clone();
+        tokenLock.lock();
+        try {
+            if (token == null || tokenDate == null || System.currentTimeMillis() - tokenDate.getTime() >
+                    SessionsManager.DEFAULT_SESSION_DURATION)
+                try {
+                    login();
+                } catch (Exception e) {
+                    return null;
+                }
+            return token.clone();
+        } finally {
+            tokenLock.unlock();
+        }
     }
 
     /**
@@ -67,25 +81,32 @@ public class AuthenticationManager {
      * @param username lo username da registrare
      * @param password la password da registrare
      * @throws IOException       se c'è un problema di comunicazione col server
-     * @throws ResponseException se il server ha risposto che un utente con quel nome esiste
+     * @throws ResponseException se il server ha risposto che un utente con quel nome esiste o che l'utente non
+     *                           appartiene al nodo contattato
      */
     public static void register(ShortConnectionFactory factory, String username, String password)
             throws IOException, ResponseException {
-        ShortConnection s = factory.makeConnection();
-        BufferedOutputStream outStream = s.getBufferedOutputStream();
-        outStream.write(RequestTypes.REGISTER);
-        outStream.write(username.getBytes(StandardCharsets.UTF_8));
-        outStream.write('\n');
-        outStream.write(password.getBytes(StandardCharsets.UTF_8));
-        outStream.flush();
-        BufferedInputStream inStream = s.getBufferedInputStream();
-
-        int serverResponse = inStream.read();
+        int serverResponse;
+        try (ShortConnection s = factory.makeConnection(username)) {
+            BufferedOutputStream outStream = s.getBufferedOutputStream();
+            outStream.write(RequestTypes.REGISTER);
+            outStream.write(username.getBytes(StandardCharsets.UTF_8));
+            outStream.write('\n');
+            outStream.write(password.getBytes(StandardCharsets.UTF_8));
+            outStream.flush();
+            serverResponse = s.getBufferedInputStream().read();
+        }
         switch (serverResponse) {
             case ResponseTypes.OK:
                 break;
             case ResponseTypes.INVALID_CREDENTIALS:
                 throw new ResponseException("Username already exists");
+            case ResponseTypes.WRONG_PARTITION:
+                throw new ResponseException("Wrong partition map");
+            case ResponseTypes.BUSY:
+                throw new ResponseException("Server busy");
+            case ResponseTypes.READ_ONLY_REPLICA:
+                throw new ResponseException("Server is a read-only replica");
             default:
                 throw new ResponseException();
         }
@@ -95,36 +116,72 @@ public class AuthenticationManager {
      * Effettua il login e aggiorna il token.
      *
      * @throws IOException       se c'è un problema di comunicazione col server
-     * @throws ResponseException se l'username e la password sono errati
+     * @throws ResponseException se l'username e la password sono errati o l'utente non appartiene al nodo contattato
      * @see ServerTask#login()
      */
     public void login() throws IOException, ResponseException {
-        ShortConnection s = connectionFactory.makeConnection();
-        BufferedOutputStream outStream = s.getBufferedOutputStream();
-        outStream.write(RequestTypes.LOGIN);
-        outStream.write(new byte[]{(byte) listeningPort, (byte) (listeningPort >> 8)});
-        outStream.write(username.getBytes(StandardCharsets.UTF_8));
-        outStream.write('\n');
-        outStream.write(password.getBytes(StandardCharsets.UTF_8));
-        outStream.flush();
-        BufferedInputStream inStream = s.getBufferedInputStream();
-
-        int serverResponse = inStream.read();
-        switch (serverResponse) {
-            case ResponseTypes.INVALID_CREDENTIALS:
-                throw new ResponseException("Invalid credentials");
-            case ResponseTypes.OK:
-                byte[] tokenBuffer = new byte[Session.TOKEN_BYTES];
-                if (Session.TOKEN_BYTES == inStream.read(tokenBuffer, 0, tokenBuffer.length)) {
-                    token = tokenBuffer;
-                    tokenDate = new Date();
-                }
-                break;
-            default:
-                token = null;
-                throw new ResponseException();
+        tokenLock.lock();
+        try (ShortConnection s = connectionFactory.makeConnection(username)) {
+            BufferedOutputStream outStream = s.getBufferedOutputStream();
+            outStream.write(RequestTypes.LOGIN);
+            outStream.write(username.getBytes(StandardCharsets.UTF_8));
+            outStream.write('\n');
+            outStream.write(password.getBytes(StandardCharsets.UTF_8));
+            outStream.flush();
+            BufferedInputStream inStream = s.getBufferedInputStream();
+
+            int serverResponse = inStream.read();
+            switch (serverResponse) {
+                case ResponseTypes.INVALID_CREDENTIALS:
+                    throw new ResponseException("Invalid credentials");
+                case ResponseTypes.WRONG_PARTITION:
+                    throw new ResponseException("Wrong partition map");
+                case ResponseTypes.BUSY:
+                    throw new ResponseException("Server busy");
+                case ResponseTypes.READ_ONLY_REPLICA:
+                    throw new ResponseException("Server is a read-only replica");
+                case ResponseTypes.OK:
+                    byte[] tokenBuffer = new byte[Session.TOKEN_BYTES];
+                    if (Session.TOKEN_BYTES == inStream.readNBytes(tokenBuffer, 0, tokenBuffer.length)) {
+                        token = tokenBuffer;
+                        tokenDate = new Date();
+                        lastActivityTime = tokenDate.getTime();
+                    }
+                    break;
+                default:
+                    token = null;
+                    throw new ResponseException();
+            }
+        } finally {
+            tokenLock.unlock();
+        }
+    }
+
+    /**
+     * Effettua un nuovo login se il token rifiutato dal server è ancora quello corrente, cioè se nessun altro thread
+     * lo ha già rinnovato.
+     *
+     * @param rejected il token rifiutato
+     * @return il token corrente
+     * @throws IOException       se c'è un problema di comunicazione col server
+     * @throws ResponseException se il login non va a buon fine
+     */
+    private byte[] renewToken(byte[] rejected) throws IOException, ResponseException {
+        tokenLock.lock();
+        try {
+            if (token == null || Arrays.equals(token, rejected))
+                login();
+            return currentToken();
+        } finally {
+            tokenLock.unlock();
         }
-        attempts = 0;
+    }
+
+    private byte[] currentToken() throws ResponseException {
+        byte[] t = getToken();
+        if (t == null)
+            throw new ResponseException("Login failed");
+        return t;
     }
 
     /**
@@ -134,9 +191,13 @@ public class AuthenticationManager {
      * @see ServerTask#logout()
      */
     public void logout() throws IOException, ResponseException {
-        ShortConnection s = makeAuthenticatedConnection(RequestTypes.LOGOUT);
-        if (s.getBufferedInputStream().read() == ResponseTypes.OK)
-            token = null;
+        try (ShortConnection s = makeAuthenticatedConnection(RequestTypes.LOGOUT, new byte[0])) {
+            if (s.getBufferedInputStream().read() == ResponseTypes.OK) {
+                tokenLock.lock();
+                token = null;
+                tokenLock.unlock();
+            }
+        }
     }
 
     public ShortConnectionFactory getConnectionFactory() {
@@ -144,52 +205,148 @@ public class AuthenticationManager {
     }
 
     /**
-     * Crea una nuova richiesta del tipo specificato: apre una connessione col server, scrive request sul buffer e
-     * scrive il token (rinnovandolo se necessario).
+     * Invia una richiesta autenticata del tipo specificato: apre una connessione col nodo che gestisce l'utente e
+     * invia in un solo messaggio request, il token (rinnovandolo se necessario) e i dati della richiesta, quindi legge
+     * l'esito della verifica del token. Se il token è valido restituisce la connessione, da cui si può leggere il resto
+     * della risposta e che deve essere chiusa al termine della richiesta.
+     * <p>
+     * Le richieste FIND_USER e GET_FRIENDS vengono inviate, se esiste, a una replica in sola lettura del nodo; se la
+     * replica non è raggiungibile o non risponde con OK (ad esempio perché non è aggiornata) la richiesta viene
+     * ripetuta sul nodo. In un cluster di più nodi una replica conosce solo gli utenti del proprio nodo, per cui le
+     * ricerche vengono sempre inviate ai nodi.
+     * <p>
+     * Il nodo registra ogni richiesta autenticata come attività della sessione, per cui una richiesta accettata dal
+     * nodo vale come heartbeat (v. {@link #getLastActivityTime()}).
      *
      * @param request il tipo di richiesta
-     * @return la ShortConnection appena creata
+     * @param data    i dati della richiesta, eventualmente vuoti
+     * @return la ShortConnection su cui è stata inviata la richiesta
      * @throws IOException
      * @throws ResponseException se ci sono problemi di autenticazione
+     * @see server.ServerTask#validateToken()
      */
-    public ShortConnection makeAuthenticatedConnection(byte request) throws IOException, ResponseException {
-        ShortConnection s = connectionFactory.makeConnection();
-        s.getBufferedOutputStream().write(request);
-        s.getBufferedOutputStream().write(getToken());
-        s.getBufferedOutputStream().flush();
+    public ShortConnection makeAuthenticatedConnection(byte request, byte[] data)
+            throws IOException, ResponseException {
+        byte[] token = currentToken();
+        if (isReadOnly(request) && connectionFactory.hasReadReplicas(username)) {
+            ShortConnection s = null;
+            try {
+                s = connectionFactory.makeReadConnection(username);
+                s.getBufferedOutputStream().write(makeRequest(request, token, data));
+                s.getBufferedOutputStream().flush();
+                if (s.getBufferedInputStream().read() == ResponseTypes.OK)
+                    return s;
+                s.close();
+            } catch (IOException e) {
+                if (s != null)
+                    s.abort();
+            }
+        }
 
-        int serverResponse = s.getBufferedInputStream().read();
-        switch (serverResponse) {
-            case ResponseTypes.OK:
+        for (int attempt = 0; ; attempt++) {
+            ShortConnection s = connectionFactory.makeConnection(username);
+            int serverResponse;
+            try {
+                s.getBufferedOutputStream().write(makeRequest(request, token, data));
+                s.getBufferedOutputStream().flush();
+                serverResponse = s.getBufferedInputStream().read();
+            } catch (IOException e) {
+                s.abort();
+                throw e;
+            }
+            if (serverResponse == ResponseTypes.OK) {
+                lastActivityTime = System.currentTimeMillis();
                 return s;
-            case ResponseTypes.INVALID_TOKEN:
-                if (attempts < 2) {
-                    attempts++;
-                    login();
-                    return makeAuthenticatedConnection(request);
-                } else
-                    throw new ResponseException("Invalid token");
-            default:
+            }
+            s.close();
+            if (serverResponse == ResponseTypes.BUSY)
+                throw new ResponseException("Server busy");
+            if (serverResponse == ResponseTypes.THROTTLED)
+                throw new ResponseException("Too many requests, try again later");
+            if (serverResponse == ResponseTypes.READ_ONLY_REPLICA)
+                throw new ResponseException("Server is a read-only replica");
+            if (serverResponse != ResponseTypes.INVALID_TOKEN)
                 throw new ResponseException();
+            if (attempt == 2)
+                throw new ResponseException("Invalid token");
+            token = renewToken(token);
         }
     }
 
     /**
-     * Restituisce lo username associato all'AuthenticationManager.
+     * Invia più richieste autenticate al nodo che gestisce l'utente su una sola connessione, senza attendere le
+     * risposte tra una richiesta e l'altra (v. {@link ShortConnection#pipeline(byte[]...)}). Le richieste rifiutate
+     * perché il token è scaduto vengono ripetute dopo un nuovo login.
      *
-     * @return lo username
+     * @param requests i tipi delle richieste
+     * @param data     i dati di ogni richiesta, eventualmente vuoti
+     * @return le risposte, nello stesso ordine delle richieste, ognuna preceduta dall'esito della verifica del token
+     * @throws IOException
+     * @throws IllegalArgumentException se requests e data hanno lunghezze diverse
+     * @throws ResponseException        se ci sono problemi di autenticazione
      */
-    public String getUsername() {
-        return username;
+    public byte[][] pipelineAuthenticatedRequests(byte[] requests, byte[][] data)
+            throws IOException, ResponseException {
+        if (requests.length != data.length)
+            throw new IllegalArgumentException();
+
+        byte[][] responses = new byte[requests.length][];
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < requests.length; i++)
+            pending.add(i);
+        byte[] token = currentToken();
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            if (attempt > 2)
+                throw new ResponseException("Invalid token");
+            if (attempt > 0)
+                token = renewToken(token);
+            byte[][] frames = new byte[pending.size()][];
+            for (int i = 0; i < frames.length; i++)
+                frames[i] = makeRequest(requests[pending.get(i)], token, data[pending.get(i)]);
+            byte[][] results = connectionFactory.makeConnection(username).pipeline(frames);
+            List<Integer> rejected = new ArrayList<>();
+            for (int i = 0; i < results.length; i++) {
+                int index = pending.get(i);
+                responses[index] = results[i];
+                if (results[i].length > 0 && results[i][0] == ResponseTypes.INVALID_TOKEN)
+                    rejected.add(index);
+            }
+            if (rejected.size() < pending.size())
+                lastActivityTime = System.currentTimeMillis();
+            pending = rejected;
+        }
+        return responses;
     }
 
+    private static byte[] makeRequest(byte request, byte[] token, byte[] data) {
+        byte[] frame = new byte[1 + token.length + data.length];
+        frame[0] = request;
+        System.arraycopy(token, 0, frame, 1, token.length);
+        System.arraycopy(data, 0, frame, 1 + token.length, data.length);
+        return frame;
+    }
 
     /**
-     * Imposta la porta che verrà inviata ad ogni messaggio di login.
+     * Restituisce l'istante dell'ultima richiesta accettata dal nodo che gestisce l'utente, cioè l'ultima volta che il
+     * nodo ha registrato un'attività della sessione. Le richieste inviate alle repliche non vengono considerate.
      *
-     * @param listeningPort la porta
+     * @return l'istante in millisecondi, oppure 0 se non ci sono state richieste
      */
-    public void setListeningPort(int listeningPort) {
-        this.listeningPort = listeningPort;
+    public long getLastActivityTime() {
+        return lastActivityTime;
+    }
+
+    private boolean isReadOnly(byte request) {
+        return request == RequestTypes.GET_FRIENDS
+                || request == RequestTypes.FIND_USER && connectionFactory.getPartitionMap().size() == 1;
+    }
+
+    /**
+     * Restituisce lo username associato all'AuthenticationManager.
+     *
+     * @return lo username
+     */
+    public String getUsername() {
+        return username;
     }
 }
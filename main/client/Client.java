@@ -5,9 +5,9 @@
 package client;
 
 import server.*;
+import socialnetwork.FriendSuggestions;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
@@ -18,22 +18,40 @@ import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Un oggetto Client, tramite una connessione TCP, inoltra a un Simple-Social server le richieste di un utente della
  * rete sociale. L'utente è identificato tramite un AuthenticationManager.
+ * <p>
+ * Le notifiche del server (post e richieste di amicizia) arrivano come callback RMI, eseguite da un thread del
+ * server: per restituirgli il controllo subito i post vengono accodati in un {@link RingBuffer} di al più
+ * INBOX_CAPACITY elementi, da cui vengono scartati i post più vecchi non ancora letti, e il {@link ClientEventListener}
+ * viene invocato da un thread del Client. Le notifiche che arrivano mentre il listener non ha ancora ricevuto la
+ * precedente vengono unite in una sola invocazione, per cui il listener deve leggere tutti i post e le richieste
+ * disponibili.
  */
 public final class Client extends UnicastRemoteObject implements RemoteNotificationReceiver, Closeable {
 
     private String username;
     private static final long serialVersionUID = 1L;
-    private transient ClientEventListener clientEventListener;
+    private transient volatile ClientEventListener clientEventListener;
     private final transient AuthenticationManager authenticationManager;
-    private final transient KeepAliveResponderTask keepAliveResponderTask;
+    private final transient HeartbeatTask heartbeatTask;
     private final transient RemoteNotificationSender remoteNotificationSender;
-    private final transient FriendRequestsReceiverTask friendRequestsReceiverTask;
-    private final transient List<PostWithAuthor> unreadPosts = new ArrayList<>();
+    private final transient RingBuffer<PostWithAuthor> unreadPosts = new RingBuffer<>(INBOX_CAPACITY);
+    private final transient AtomicLong droppedPosts = new AtomicLong();
     private final transient List<String> pendingFriendRequests = new ArrayList<>();
+    private final transient ExecutorService eventDispatcher = newEventDispatcher();
+    private final transient AtomicBoolean postEventPending = new AtomicBoolean();
+    private final transient AtomicBoolean friendRequestEventPending = new AtomicBoolean();
+    public static final int INBOX_CAPACITY = 1024;
 
     public enum ChildTaskState {
         UNKNOWN,
@@ -42,54 +60,60 @@ public final class Client extends UnicastRemoteObject implements RemoteNotificat
     }
 
     /**
-     * Crea un nuovo oggetto Client, avvia i thread ausiliari, quindi effettua il primo login e registra una callback
-     * sul server. I thread ausiliari ricevono richieste di amicizia e rispondono ai messaggi di keep-alive. La callback
-     * viene eseguita quando un utente che si segue pubblica nuovi contenuti.
+     * Crea un nuovo oggetto Client, avvia il thread ausiliario, quindi effettua il primo login e registra una callback
+     * sul server. Il thread ausiliario invia periodicamente gli heartbeat. La callback viene eseguita quando un utente
+     * che si segue pubblica nuovi contenuti o quando si ricevono richieste di amicizia.
      *
      * @param authenticationManager l'AuthenticationManager, non null
-     * @throws IOException       se ci sono problemi nella creazione dei thread ausiliari o
+     * @throws IOException       se ci sono problemi nella creazione del thread ausiliario o
      * @throws ResponseException se l'username e la password sono errati
      * @throws NotBoundException se ci sono problemi nella registrazione della callback
      */
     public Client(AuthenticationManager authenticationManager) throws IOException, ResponseException, NotBoundException {
+        this(authenticationManager, true);
+    }
+
+    /**
+     * Crea un nuovo oggetto Client come {@link #Client(AuthenticationManager)}, ma permette di non avviare il thread
+     * ausiliario. Un Client senza heartbeat risulta online solo finché effettua richieste, come un client sempre attivo:
+     * serve a simulare molti utenti senza un thread e un socket UDP per ognuno.
+     *
+     * @param authenticationManager l'AuthenticationManager, non null
+     * @param sendHeartbeats        true se deve essere avviato il thread che invia gli heartbeat
+     * @throws IOException       se ci sono problemi nella creazione del thread ausiliario o
+     * @throws ResponseException se l'username e la password sono errati
+     * @throws NotBoundException se ci sono problemi nella registrazione della callback
+     */
+    public Client(AuthenticationManager authenticationManager, boolean sendHeartbeats) throws IOException,
+            ResponseException, NotBoundException {
         if (authenticationManager == null)
             throw new IllegalArgumentException();
 
-        this.remoteNotificationSender = (RemoteNotificationSender) Naming.lookup(NotificationManager.SERVICE_NAME);
+        PartitionMap.Node node = authenticationManager.getConnectionFactory().getNode(authenticationManager.getUsername());
+        this.remoteNotificationSender = (RemoteNotificationSender) Naming.lookup("//" + node.getHost() + ":"
+                + node.getRegistryPort() + "/" + NotificationManager.SERVICE_NAME);
         this.authenticationManager = authenticationManager;
         this.username = authenticationManager.getUsername();
-        this.keepAliveResponderTask = new KeepAliveResponderTask(authenticationManager);
-        this.friendRequestsReceiverTask = new FriendRequestsReceiverTask(pendingFriendRequests, this);
-
-        // Avvia e attende i thread ausiliari
-        Thread t1 = new Thread(keepAliveResponderTask);
-        Thread t2 = new Thread(friendRequestsReceiverTask);
-        t1.start();
-        t2.start();
-        try {
-            synchronized (keepAliveResponderTask) {
-                while (keepAliveResponderTask.getTaskState() == ChildTaskState.UNKNOWN)
-                    keepAliveResponderTask.wait();
+        this.heartbeatTask = sendHeartbeats ? new HeartbeatTask(authenticationManager) : null;
+
+        if (heartbeatTask != null) {
+            // Avvia e attende il thread ausiliario
+            Thread t1 = new Thread(heartbeatTask);
+            t1.start();
+            try {
+                synchronized (heartbeatTask) {
+                    while (heartbeatTask.getTaskState() == ChildTaskState.UNKNOWN)
+                        heartbeatTask.wait();
+                }
+            } catch (InterruptedException e) {
+
             }
-            synchronized (friendRequestsReceiverTask) {
-                while (friendRequestsReceiverTask.getTaskState() == ChildTaskState.UNKNOWN)
-                    friendRequestsReceiverTask.wait();
+            if (heartbeatTask.getTaskState() != ChildTaskState.LISTENING) {
+                heartbeatTask.close();
+                throw new IOException("Can't launch HeartbeatTask");
             }
-        } catch (InterruptedException e) {
-
-        }
-        if (keepAliveResponderTask.getTaskState() != ChildTaskState.LISTENING) {
-            keepAliveResponderTask.close();
-            friendRequestsReceiverTask.close();
-            throw new IOException("Can't launch KeepAliveResponderTask");
-        }
-        if (friendRequestsReceiverTask.getTaskState() != ChildTaskState.LISTENING) {
-            keepAliveResponderTask.close();
-            friendRequestsReceiverTask.close();
-            throw new IOException("Can't launch FriendRequestsReceiverTask");
         }
 
-        authenticationManager.setListeningPort(friendRequestsReceiverTask.getListeningPort());
         authenticationManager.login();
 
         try {
@@ -113,10 +137,8 @@ public final class Client extends UnicastRemoteObject implements RemoteNotificat
         if (query == null || query.isEmpty())
             throw new IllegalArgumentException();
 
-        ShortConnection connection = authenticationManager.makeAuthenticatedConnection(RequestTypes.FIND_USER);
-        BufferedOutputStream outStream = connection.getBufferedOutputStream();
-        outStream.write(query.getBytes(StandardCharsets.UTF_8));
-        outStream.flush();
+        ShortConnection connection = authenticationManager.makeAuthenticatedConnection(RequestTypes.FIND_USER,
+                query.getBytes(StandardCharsets.UTF_8));
 
         ArrayList<String> results = new ArrayList<>();
         BufferedInputStream inStream = connection.getBufferedInputStream();
@@ -128,11 +150,23 @@ public final class Client extends UnicastRemoteObject implements RemoteNotificat
         return results;
     }
 
+    private static ExecutorService newEventDispatcher() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "client-events");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     @Override
     public void close() {
+        eventDispatcher.shutdown();
         try {
-            keepAliveResponderTask.close();
-            friendRequestsReceiverTask.close();
+            if (heartbeatTask != null)
+                heartbeatTask.close();
         } catch (Exception e) {
 
         }
@@ -174,8 +208,8 @@ public final class Client extends UnicastRemoteObject implements RemoteNotificat
      * @see ServerTask#sendFriends()
      */
     public List<FriendWithStatus> retrieveFriends() throws IOException, ResponseException {
-        ShortConnection connection = authenticationManager.makeAuthenticatedConnection(RequestTypes.GET_FRIENDS);
-        connection.getBufferedOutputStream().flush();
+        ShortConnection connection = authenticationManager.makeAuthenticatedConnection(RequestTypes.GET_FRIENDS,
+                new byte[0]);
 
         ArrayList<FriendWithStatus> results = new ArrayList<>();
         BufferedInputStream inStream = connection.getBufferedInputStream();
@@ -190,6 +224,56 @@ public final class Client extends UnicastRemoteObject implements RemoteNotificat
         return results;
     }
 
+    /**
+     * Una classe immutabile che incapsula il risultato di una richiesta {@link #suggestFriends(int)}.
+     */
+    public static final class SuggestedFriend {
+        private final String username;
+        private final int mutualFriends;
+
+        private SuggestedFriend(String username, int mutualFriends) {
+            this.username = username;
+            this.mutualFriends = mutualFriends;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public int getMutualFriends() {
+            return mutualFriends;
+        }
+    }
+
+    /**
+     * Restituisce gli utenti che l'utente potrebbe conoscere, in ordine decrescente di amici in comune.
+     *
+     * @param limit il numero massimo di suggerimenti, tra 1 e 100
+     * @return una lista di {@link SuggestedFriend}
+     * @throws IOException
+     * @throws IllegalArgumentException se limit non è compreso tra 1 e 100
+     * @throws ResponseException        se ci sono problemi di autenticazione
+     * @see ServerTask#suggestFriends()
+     */
+    public List<SuggestedFriend> suggestFriends(int limit) throws IOException, ResponseException {
+        if (limit < 1 || limit > FriendSuggestions.MAX_SUGGESTIONS)
+            throw new IllegalArgumentException();
+
+        ShortConnection connection = authenticationManager.makeAuthenticatedConnection(RequestTypes.SUGGEST_FRIENDS,
+                new byte[]{(byte) limit});
+
+        ArrayList<SuggestedFriend> results = new ArrayList<>();
+        BufferedInputStream inStream = connection.getBufferedInputStream();
+        Scanner scanner = new Scanner(inStream, StandardCharsets.UTF_8.name()).useDelimiter("\n");
+        while (scanner.hasNext()) {
+            String[] data = scanner.next().split(" ", 2);
+            if (data.length == 2)
+                results.add(new SuggestedFriend(data[1], Integer.parseInt(data[0])));
+        }
+        connection.close();
+        return results;
+    }
+
     /**
      * Effettua una richiesta di pubblicazione di un post.
      *
@@ -202,10 +286,8 @@ public final class Client extends UnicastRemoteObject implements RemoteNotificat
         if (content == null || content.isEmpty())
             throw new IllegalArgumentException();
 
-        ShortConnection connection = authenticationManager.makeAuthenticatedConnection(RequestTypes.PUBLISH);
-        byte[] data = content.getBytes(StandardCharsets.UTF_8);
-        connection.getBufferedOutputStream().write(data);
-        connection.getBufferedOutputStream().flush();
+        ShortConnection connection = authenticationManager.makeAuthenticatedConnection(RequestTypes.PUBLISH,
+                content.getBytes(StandardCharsets.UTF_8));
         connection.close();
     }
 
@@ -243,14 +325,23 @@ public final class Client extends UnicastRemoteObject implements RemoteNotificat
 
     /**
      * Svuota e restituisce una lista di Post non letti, scritti da amici che si seguono (v. {@link
-     * #subscribe(String)}.
+     * #subscribe(String)}. Contiene al più gli ultimi INBOX_CAPACITY post ricevuti.
      *
-     * @return una lista di post non letti
+     * @return una lista di post non letti, dal più vecchio al più recente
      */
-    public synchronized List<PostWithAuthor> retrieveUnreadPosts() {
-        List<PostWithAuthor> p = new ArrayList<>(unreadPosts);
-        unreadPosts.clear();
-        return p;
+    public List<PostWithAuthor> retrieveUnreadPosts() {
+        List<PostWithAuthor> posts = new ArrayList<>(unreadPosts.size());
+        unreadPosts.drainTo(posts);
+        return posts;
+    }
+
+    /**
+     * Restituisce il numero di post scartati perché sono arrivati più di INBOX_CAPACITY post non letti.
+     *
+     * @return il numero di post scartati
+     */
+    public long getDroppedPostsCount() {
+        return droppedPosts.get();
     }
 
 
@@ -274,24 +365,24 @@ public final class Client extends UnicastRemoteObject implements RemoteNotificat
      * @param username il nome dell'utente a cui chiedere l'amicizia
      * @throws IOException
      * @throws IllegalArgumentException se username è null o vuoto
-     * @throws ResponseException        se il server risponde che username non esiste, è già un amico, o è offline
+     * @throws ResponseException        se il server risponde che username non esiste, è già un amico, ha troppe
+     *                                  richieste pendenti o appartiene a un nodo non raggiungibile
      * @see ServerTask#forwardFriendRequest()
      */
     public void friendRequest(String username) throws IOException, ResponseException {
         if (username == null || username.isEmpty())
             throw new IllegalArgumentException();
 
-        ShortConnection connection = authenticationManager.makeAuthenticatedConnection(RequestTypes.FORWARD_FRIEND_REQUEST);
-        byte[] data = username.getBytes(StandardCharsets.UTF_8);
-        connection.getBufferedOutputStream().write(data);
-        connection.getBufferedOutputStream().flush();
-
-        int response = connection.getBufferedInputStream().read();
+        int response;
+        try (ShortConnection connection = authenticationManager.makeAuthenticatedConnection(
+                RequestTypes.FORWARD_FRIEND_REQUEST, username.getBytes(StandardCharsets.UTF_8))) {
+            response = connection.getBufferedInputStream().read();
+        }
         switch (response) {
             case ResponseTypes.OK:
                 return;
             case ResponseTypes.BAD_REQUEST:
-                throw new ResponseException("User " + username + " is already a friend");
+                throw new ResponseException("User " + username + " is already a friend or has too many requests");
             case ResponseTypes.USER_OFFLINE:
                 throw new ResponseException("User " + username + " offline");
             case ResponseTypes.USER_NOT_FOUND:
@@ -316,12 +407,11 @@ public final class Client extends UnicastRemoteObject implements RemoteNotificat
             throw new IllegalArgumentException();
 
         byte rt = (accept ? RequestTypes.ACCEPT_FRIEND_REQUEST : RequestTypes.DENY_FRIEND_REQUEST);
-        ShortConnection connection = authenticationManager.makeAuthenticatedConnection(rt);
-        byte[] data = username.getBytes(StandardCharsets.UTF_8);
-        connection.getBufferedOutputStream().write(data);
-        connection.getBufferedOutputStream().flush();
-
-        int response = connection.getBufferedInputStream().read();
+        int response;
+        try (ShortConnection connection = authenticationManager.makeAuthenticatedConnection(rt,
+                username.getBytes(StandardCharsets.UTF_8))) {
+            response = connection.getBufferedInputStream().read();
+        }
         switch (response) {
             case ResponseTypes.OK:
                 return;
@@ -344,7 +434,8 @@ public final class Client extends UnicastRemoteObject implements RemoteNotificat
     }
 
     /**
-     * Imposta l'oggetto che verrà notificato quando avvengono nuovi eventi che riguardano il Client.
+     * Imposta l'oggetto che verrà notificato quando avvengono nuovi eventi che riguardano il Client. Il listener viene
+     * invocato da un thread del Client, uno alla volta.
      *
      * @param clientEventListener il listener
      */
@@ -357,10 +448,46 @@ public final class Client extends UnicastRemoteObject implements RemoteNotificat
     }
 
     @Override
-    public synchronized void notifyPost(String author, String content) throws RemoteException {
-        unreadPosts.add(new PostWithAuthor(author, content));
-        if (clientEventListener != null)
-            clientEventListener.friendPostReceived();
+    public void notifyPost(String author, String content) throws RemoteException {
+        int dropped = unreadPosts.forceOffer(new PostWithAuthor(author, content));
+        if (dropped > 0)
+            droppedPosts.addAndGet(dropped);
+        dispatch(postEventPending, true);
+    }
+
+    @Override
+    public void notifyFriendRequests(List<String> senders) throws RemoteException {
+        synchronized (pendingFriendRequests) {
+            for (String username : senders)
+                if (!pendingFriendRequests.contains(username))
+                    pendingFriendRequests.add(username);
+        }
+        dispatch(friendRequestEventPending, false);
+    }
+
+    /**
+     * Invoca il listener dal thread degli eventi, se non c'è già un'invocazione dello stesso tipo in attesa.
+     *
+     * @param pending il flag delle invocazioni in attesa di quel tipo
+     * @param post    true per friendPostReceived, false per friendRequestReceived
+     */
+    private void dispatch(AtomicBoolean pending, boolean post) {
+        if (clientEventListener == null || !pending.compareAndSet(false, true))
+            return;
+        try {
+            eventDispatcher.execute(() -> {
+                pending.set(false);
+                ClientEventListener listener = clientEventListener;
+                if (listener == null)
+                    return;
+                if (post)
+                    listener.friendPostReceived();
+                else
+                    listener.friendRequestReceived();
+            });
+        } catch (RejectedExecutionException e) {
+            pending.set(false);
+        }
     }
 
     @Override
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Un ConnectionPool mantiene aperte, per ogni server, al più MAX_IDLE_CONNECTIONS connessioni persistenti inutilizzate,
+ * così che le richieste successive non debbano aprirne di nuove. Le connessioni vengono riusate a partire dalla più
+ * recente; quelle inutilizzate da più di IDLE_TIMEOUT millisecondi vengono chiuse da un timer, prima che il server le
+ * chiuda per inattività (v. {@link server.ServerTask#IDLE_TIMEOUT}). Una connessione inutilizzata da più di
+ * PROBE_AFTER millisecondi viene controllata prima di essere riusata.
+ */
+class ConnectionPool implements Closeable {
+
+    static final int MAX_IDLE_CONNECTIONS = 4;
+    static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    private static final long PROBE_AFTER = TimeUnit.SECONDS.toMillis(1);
+    private static final int TIMEOUT = (int) TimeUnit.SECONDS.toMillis(5);
+
+    private final Map<InetSocketAddress, Deque<PersistentConnection>> idleConnections = new ConcurrentHashMap<>();
+    private final Timer evictionTimer = new Timer("connection-pool-eviction", true);
+    private volatile boolean closed;
+
+    ConnectionPool() {
+        evictionTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                evictIdleConnections(System.currentTimeMillis());
+            }
+        }, IDLE_TIMEOUT, IDLE_TIMEOUT / 2);
+    }
+
+    /**
+     * Restituisce una connessione inutilizzata verso il server specificato, oppure ne apre una nuova.
+     *
+     * @param address l'indirizzo del server
+     * @return una connessione persistente
+     * @throws IOException se non è possibile aprire la connessione
+     */
+    PersistentConnection acquire(InetSocketAddress address) throws IOException {
+        Deque<PersistentConnection> deque = idleConnections.get(address);
+        if (deque != null) {
+            long now = System.currentTimeMillis();
+            while (true) {
+                PersistentConnection c;
+                synchronized (deque) {
+                    c = deque.pollFirst();
+                }
+                if (c == null)
+                    break;
+                if (now - c.getLastUseTime() < IDLE_TIMEOUT && c.isReusable(now, PROBE_AFTER))
+                    return c;
+                c.close();
+            }
+        }
+        return new PersistentConnection(address, TIMEOUT);
+    }
+
+    /**
+     * Restituisce al pool una connessione la cui ultima richiesta è terminata. Se il pool ha già abbastanza
+     * connessioni inutilizzate verso quel server, la connessione viene chiusa.
+     *
+     * @param connection la connessione
+     */
+    void release(PersistentConnection connection) {
+        if (!closed) {
+            Deque<PersistentConnection> deque = idleConnections.computeIfAbsent(connection.getAddress(),
+                    a -> new ArrayDeque<>());
+            synchronized (deque) {
+                if (deque.size() < MAX_IDLE_CONNECTIONS) {
+                    deque.addFirst(connection);
+                    return;
+                }
+            }
+        }
+        connection.close();
+    }
+
+    private void evictIdleConnections(long now) {
+        for (Deque<PersistentConnection> deque : idleConnections.values())
+            synchronized (deque) {
+                Iterator<PersistentConnection> i = deque.descendingIterator();
+                while (i.hasNext()) {
+                    PersistentConnection c = i.next();
+                    if (now - c.getLastUseTime() < IDLE_TIMEOUT)
+                        break;
+                    i.remove();
+                    c.close();
+                }
+            }
+    }
+
+    /**
+     * Chiude tutte le connessioni inutilizzate. Le connessioni in uso vengono chiuse quando vengono restituite.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        evictionTimer.cancel();
+        for (Deque<PersistentConnection> deque : idleConnections.values())
+            synchronized (deque) {
+                deque.forEach(PersistentConnection::close);
+                deque.clear();
+            }
+    }
+
+}
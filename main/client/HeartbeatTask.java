@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package client;
+
+import server.PartitionMap;
+import server.PresenceManager;
+
+import java.io.Closeable;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Un HeartbeatTask segnala periodicamente al server che l'utente è online, inviando il token tramite una connessione
+ * UDP diretta col nodo che gestisce l'utente. Gli heartbeat vengono inviati a intervalli casuali attorno a
+ * {@link PresenceManager#HEARTBEAT_INTERVAL}, e il primo dopo un'attesa casuale, così che i client non li inviino
+ * tutti nello stesso istante.
+ * <p>
+ * Il nodo considera ogni richiesta autenticata come un heartbeat, per cui l'heartbeat viene inviato solo se il client
+ * non ha effettuato richieste al nodo nell'ultimo intervallo (v. {@link AuthenticationManager#getLastActivityTime()}):
+ * un client attivo non invia heartbeat.
+ */
+public class HeartbeatTask implements Runnable, Closeable {
+
+    private AuthenticationManager authenticationManager;
+    private DatagramSocket socket;
+    private Client.ChildTaskState taskState = Client.ChildTaskState.UNKNOWN;
+    private volatile boolean closed = false;
+    private volatile Thread thread;
+
+    public HeartbeatTask(AuthenticationManager authenticationManager) {
+        if (authenticationManager == null)
+            throw new IllegalArgumentException();
+        this.authenticationManager = authenticationManager;
+    }
+
+    @Override
+    public void run() {
+        try {
+            PartitionMap.Node node = authenticationManager.getConnectionFactory()
+                    .getNode(authenticationManager.getUsername());
+            socket = new DatagramSocket();
+            socket.connect(node.getAddress(), node.getKeepAliveResponsePort());
+            thread = Thread.currentThread();
+
+            synchronized (this) {
+                taskState = Client.ChildTaskState.LISTENING;
+                this.notifyAll();
+            }
+
+            startLoop();
+        } catch (Exception e) {
+            synchronized (this) {
+                taskState = Client.ChildTaskState.ERROR;
+                this.notifyAll();
+            }
+        }
+    }
+
+    private void startLoop() {
+        long delay = ThreadLocalRandom.current().nextLong(PresenceManager.HEARTBEAT_INTERVAL);
+        while (!closed) {
+            try {
+                Thread.sleep(delay);
+                delay = PresenceManager.nextHeartbeatDelay();
+                long idle = System.currentTimeMillis() - authenticationManager.getLastActivityTime();
+                if (idle < PresenceManager.HEARTBEAT_INTERVAL) {
+                    delay = Math.max(delay - idle, 0);
+                    continue;
+                }
+                byte[] token = authenticationManager.getToken();
+                if (token != null)
+                    socket.send(new DatagramPacket(token, token.length));
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                if (closed)
+                    break;
+            }
+        }
+    }
+
+    public Client.ChildTaskState getTaskState() {
+        return taskState;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (thread != null)
+            thread.interrupt();
+        if (socket != null)
+            socket.close();
+    }
+}
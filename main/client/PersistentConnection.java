@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package client;
+
+import server.ChunkedInputStream;
+import server.ChunkedOutputStream;
+import server.RequestTypes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Una PersistentConnection è una connessione con un Simple-Social server su cui vengono inviate più richieste, una
+ * dopo l'altra (v. {@link server.ServerTask}). Viene gestita da un {@link ConnectionPool} e usata tramite
+ * {@link ShortConnection}.
+ */
+class PersistentConnection {
+
+    private final InetSocketAddress address;
+    private final Socket socket;
+    private final ChunkedInputStream inputStream;
+    private final ChunkedOutputStream outputStream;
+    private long lastUseTime;
+
+    /**
+     * Apre una connessione persistente con il server all'indirizzo specificato.
+     *
+     * @param address l'indirizzo del server
+     * @param timeout il timeout di connessione e lettura in millisecondi
+     * @throws IOException
+     */
+    PersistentConnection(InetSocketAddress address, int timeout) throws IOException {
+        this.address = address;
+        socket = new Socket();
+        try {
+            socket.connect(address, timeout);
+            socket.setSoTimeout(timeout);
+            socket.setTcpNoDelay(true);
+            BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(RequestTypes.PERSISTENT);
+            outputStream = new ChunkedOutputStream(out);
+            inputStream = new ChunkedInputStream(new BufferedInputStream(socket.getInputStream()));
+            inputStream.nextMessage();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    ChunkedInputStream getInputStream() {
+        return inputStream;
+    }
+
+    ChunkedOutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    long getLastUseTime() {
+        return lastUseTime;
+    }
+
+    /**
+     * Termina la richiesta corrente e scarta la parte non letta della risposta, così che la connessione possa essere
+     * usata per la richiesta successiva.
+     *
+     * @return false se il server ha chiuso la connessione dopo la risposta, ad esempio perché è sovraccarico
+     * @throws IOException se la connessione non è più utilizzabile
+     */
+    boolean finishRequest() throws IOException {
+        outputStream.endMessage();
+        if (!inputStream.nextMessage())
+            return false;
+        lastUseTime = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Verifica che la connessione sia ancora aperta dal server. Se non è stata usata negli ultimi probeAfter
+     * millisecondi attende la chiusura da parte del server per al più un millisecondo.
+     *
+     * @param now        l'istante corrente
+     * @param probeAfter l'inattività oltre la quale controllare la connessione
+     * @return true se la connessione può essere riusata
+     */
+    boolean isReusable(long now, long probeAfter) {
+        if (socket.isClosed())
+            return false;
+        if (now - lastUseTime < probeAfter)
+            return true;
+        int timeout = 0;
+        try {
+            timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            socket.getInputStream().read();
+            return false;
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.setSoTimeout(timeout);
+            } catch (IOException e) {
+
+            }
+        }
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+
+        }
+    }
+
+}
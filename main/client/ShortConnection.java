@@ -13,11 +13,20 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Una ShortConnection trasporta una richiesta verso un Simple-Social server. Può usare una connessione dedicata, che
+ * viene chiusa da {@link #close()}, oppure una connessione persistente presa da un {@link ConnectionPool}: in questo
+ * caso {@link #close()} termina la richiesta, scarta la parte di risposta non letta e restituisce la connessione al
+ * pool, a meno che il server non l'abbia chiusa dopo la risposta.
+ */
 public class ShortConnection implements Closeable {
 
     private Socket socket;
+    private PersistentConnection persistentConnection;
+    private ConnectionPool pool;
     private BufferedInputStream bufferedInputStream;
     private BufferedOutputStream bufferedOutputStream;
+    private boolean closed;
 
     public ShortConnection(InetAddress host, int port) throws IOException {
         socket = new Socket();
@@ -25,25 +34,131 @@ public class ShortConnection implements Closeable {
         socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(5));
     }
 
+    /**
+     * Crea una ShortConnection che usa una connessione persistente del pool specificato.
+     *
+     * @param pool    il pool
+     * @param address l'indirizzo del server
+     * @throws IOException
+     */
+    ShortConnection(ConnectionPool pool, InetSocketAddress address) throws IOException {
+        this.pool = pool;
+        this.persistentConnection = pool.acquire(address);
+    }
+
     public BufferedInputStream getBufferedInputStream() throws IOException {
         if (bufferedInputStream == null)
-            bufferedInputStream = new BufferedInputStream(socket.getInputStream());
+            bufferedInputStream = new BufferedInputStream(persistentConnection == null ? socket.getInputStream()
+                    : persistentConnection.getInputStream());
         return bufferedInputStream;
     }
 
     public BufferedOutputStream getBufferedOutputStream() throws IOException {
         if (bufferedOutputStream == null)
-            bufferedOutputStream = new BufferedOutputStream(socket.getOutputStream());
+            bufferedOutputStream = new BufferedOutputStream(persistentConnection == null ? socket.getOutputStream()
+                    : persistentConnection.getOutputStream());
 
         return bufferedOutputStream;
     }
 
+    /**
+     * Invia più richieste complete senza attendere le risposte, quindi legge le risposte, che arrivano nello stesso
+     * ordine. Ogni richiesta è composta dal tipo e dai dati così come verrebbero scritti sull'output stream, per cui si
+     * possono inviare insieme solo richieste che non attendono una risposta intermedia dal server. Su una connessione
+     * dedicata si può inviare una sola richiesta. Al termine la ShortConnection viene chiusa.
+     *
+     * @param requests le richieste
+     * @return le risposte, nello stesso ordine delle richieste
+     * @throws IOException
+     * @throws IllegalStateException se la connessione è già stata usata
+     */
+    public byte[][] pipeline(byte[]... requests) throws IOException {
+        if (closed || bufferedInputStream != null || bufferedOutputStream != null
+                || persistentConnection == null && requests.length != 1)
+            throw new IllegalStateException();
+
+        byte[][] responses = new byte[requests.length][];
+        try {
+            if (persistentConnection == null) {
+                getBufferedOutputStream().write(requests[0]);
+                getBufferedOutputStream().flush();
+                responses[0] = getBufferedInputStream().readAllBytes();
+                return responses;
+            }
+
+            for (int i = 0; i < requests.length - 1; i++) {
+                persistentConnection.getOutputStream().write(requests[i]);
+                persistentConnection.getOutputStream().endMessage(false);
+            }
+            persistentConnection.getOutputStream().write(requests[requests.length - 1]);
+            persistentConnection.getOutputStream().flush();
+            for (int i = 0; i < requests.length - 1; i++) {
+                responses[i] = persistentConnection.getInputStream().readAllBytes();
+                if (!persistentConnection.getInputStream().nextMessage())
+                    throw new IOException("Connection closed by the server");
+            }
+            responses[requests.length - 1] = persistentConnection.getInputStream().readAllBytes();
+        } catch (IOException e) {
+            abort();
+            throw e;
+        } finally {
+            close();
+        }
+        return responses;
+    }
+
+    /**
+     * Indica se la ShortConnection usa una connessione persistente.
+     *
+     * @return true se la connessione viene restituita a un pool quando viene chiusa
+     */
+    public boolean isPersistent() {
+        return persistentConnection != null;
+    }
+
     @Override
     public void close() throws IOException {
-        if (bufferedInputStream != null)
-            bufferedInputStream.close();
-        if (bufferedOutputStream != null)
-            bufferedOutputStream.close();
-        socket.close();
+        if (closed)
+            return;
+        closed = true;
+        if (persistentConnection == null) {
+            if (bufferedInputStream != null)
+                bufferedInputStream.close();
+            if (bufferedOutputStream != null)
+                bufferedOutputStream.close();
+            socket.close();
+            return;
+        }
+
+        try {
+            if (bufferedOutputStream != null)
+                bufferedOutputStream.flush();
+            if (persistentConnection.finishRequest()) {
+                pool.release(persistentConnection);
+                return;
+            }
+        } catch (IOException e) {
+            persistentConnection.close();
+            throw e;
+        }
+        persistentConnection.close();
+    }
+
+    /**
+     * Chiude la connessione senza restituirla al pool. Va usato dopo un errore di comunicazione, che lascia la
+     * connessione in uno stato non noto: ad esempio con una richiesta scritta a metà o una risposta non ancora letta.
+     */
+    void abort() {
+        if (closed)
+            return;
+        closed = true;
+        if (persistentConnection != null)
+            persistentConnection.close();
+        else
+            try {
+                socket.close();
+            } catch (IOException e) {
+
+            }
     }
 }
@@ -4,17 +4,37 @@
 
 package client;
 
+import server.PartitionMap;
+
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Una ShortConnectionFactory offre metodi per la creazione di oggetti ShortConnection con lo stesso hostname e porta.
+ * Una ShortConnectionFactory offre metodi per la creazione di oggetti ShortConnection verso un Simple-Social server.
+ * Se il server è un cluster di più nodi, la factory instrada le connessioni di un utente verso il nodo che lo gestisce
+ * secondo la PartitionMap del cluster.
+ * <p>
+ * A ogni nodo possono essere associate delle repliche in sola lettura, usate a rotazione da
+ * {@link #makeReadConnection(String)}.
+ * <p>
+ * Le ShortConnection create dalla factory usano connessioni persistenti mantenute da un {@link ConnectionPool}, per
+ * cui richieste successive verso lo stesso server non aprono nuove connessioni. Le connessioni inutilizzate vengono
+ * chiuse dopo un periodo di inattività oppure da {@link #close()}.
  */
-public class ShortConnectionFactory {
+public class ShortConnectionFactory implements Closeable {
 
-    private InetAddress serverAddress;
-    private int serverPort;
+    private PartitionMap partitionMap;
+    private final Map<Integer, List<InetSocketAddress>> readReplicas = new ConcurrentHashMap<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final ConnectionPool connectionPool = new ConnectionPool();
 
     /**
      * Crea una nuova ShortConnectionFactory configurata con hostname e porta specificati.
@@ -24,27 +44,105 @@ public class ShortConnectionFactory {
      * @throws UnknownHostException
      */
     public ShortConnectionFactory(String serverHostname, int serverPort) throws UnknownHostException {
-        this.serverAddress = InetAddress.getByName(serverHostname);
-        this.serverPort = serverPort;
+        this(PartitionMap.singleNode(serverHostname, serverPort));
     }
 
     /**
-     * Crea un nuovo oggetto ShortConnection.
+     * Crea una nuova ShortConnectionFactory per un cluster di server.
      *
+     * @param partitionMap la mappa dei nodi del cluster, deve essere la stessa usata dai server
+     * @throws IllegalArgumentException se partitionMap è null
+     */
+    public ShortConnectionFactory(PartitionMap partitionMap) {
+        if (partitionMap == null)
+            throw new IllegalArgumentException();
+        this.partitionMap = partitionMap;
+    }
+
+    /**
+     * Crea un nuovo oggetto ShortConnection verso il nodo che gestisce l'utente specificato.
+     *
+     * @param username il nome dell'utente per cui viene fatta la richiesta
      * @return un oggetto ShortConnection
      * @throws IOException
      */
-    public ShortConnection makeConnection() throws IOException {
-        return new ShortConnection(serverAddress, serverPort);
+    public ShortConnection makeConnection(String username) throws IOException {
+        PartitionMap.Node node = getNode(username);
+        return new ShortConnection(connectionPool, new InetSocketAddress(node.getAddress(), node.getPort()));
+    }
+
+    /**
+     * Aggiunge una replica in sola lettura del nodo in posizione nodeIndex della PartitionMap.
+     *
+     * @param nodeIndex la posizione del nodo replicato
+     * @param host      l'host della replica
+     * @param port      la porta della replica
+     * @throws UnknownHostException
+     */
+    public void addReadReplica(int nodeIndex, String host, int port) throws UnknownHostException {
+        if (nodeIndex < 0 || nodeIndex >= partitionMap.size())
+            throw new IllegalArgumentException();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(host), port);
+        readReplicas.computeIfAbsent(nodeIndex, i -> new CopyOnWriteArrayList<>()).add(address);
     }
 
     /**
-     * Restituisce l'indirizzo col quale è stata configurata la factory.
+     * Indica se il nodo che gestisce l'utente specificato ha delle repliche in sola lettura.
      *
+     * @param username il nome dell'utente
+     * @return true se esiste almeno una replica
+     */
+    public boolean hasReadReplicas(String username) {
+        List<InetSocketAddress> replicas = readReplicas.get(getNode(username).getIndex());
+        return replicas != null && !replicas.isEmpty();
+    }
+
+    /**
+     * Crea un nuovo oggetto ShortConnection verso una replica in sola lettura del nodo che gestisce l'utente
+     * specificato, scelta a rotazione. Se il nodo non ha repliche la connessione viene aperta col nodo stesso.
+     *
+     * @param username il nome dell'utente per cui viene fatta la richiesta
+     * @return un oggetto ShortConnection
+     * @throws IOException
+     */
+    public ShortConnection makeReadConnection(String username) throws IOException {
+        List<InetSocketAddress> replicas = readReplicas.get(getNode(username).getIndex());
+        if (replicas == null || replicas.isEmpty())
+            return makeConnection(username);
+        InetSocketAddress a = replicas.get(Math.floorMod(nextReplica.getAndIncrement(), replicas.size()));
+        return new ShortConnection(connectionPool, a);
+    }
+
+    /**
+     * Restituisce il nodo che gestisce l'utente specificato.
+     *
+     * @param username il nome dell'utente
+     * @return il nodo dell'utente
+     */
+    public PartitionMap.Node getNode(String username) {
+        return partitionMap.getNode(username);
+    }
+
+    public PartitionMap getPartitionMap() {
+        return partitionMap;
+    }
+
+    /**
+     * Restituisce l'indirizzo del nodo che gestisce l'utente specificato.
+     *
+     * @param username il nome dell'utente
      * @return l'indirizzo
      */
-    public InetAddress getServerAddress() {
-        return serverAddress;
+    public InetAddress getServerAddress(String username) {
+        return getNode(username).getAddress();
+    }
+
+    /**
+     * Chiude le connessioni persistenti inutilizzate.
+     */
+    @Override
+    public void close() {
+        connectionPool.close();
     }
 
 
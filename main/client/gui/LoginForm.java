@@ -11,6 +11,7 @@ import client.ShortConnectionFactory;
 import com.intellij.uiDesigner.core.GridConstraints;
 import com.intellij.uiDesigner.core.GridLayoutManager;
 import com.intellij.uiDesigner.core.Spacer;
+import server.PartitionMap;
 
 import javax.swing.*;
 import javax.swing.text.AttributeSet;
@@ -55,10 +56,11 @@ public class LoginForm {
         settingsButton.setIcon(icon);
         settingsButton.addActionListener(o -> {
             JFrame frame = new JFrame();
-            String hostname = JOptionPane.showInputDialog(frame, "Server hostname", "localhost");
+            String hostname = JOptionPane.showInputDialog(frame, "Server hostname (host[:port][,host[:port]...])",
+                    "localhost");
             if (hostname != null) {
                 try {
-                    factory = new ShortConnectionFactory(hostname, SERVER_PORT);
+                    factory = new ShortConnectionFactory(PartitionMap.parse(hostname));
                 } catch (Exception e) {
                     showAlert("Error: " + e.getMessage());
                 }
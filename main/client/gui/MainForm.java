@@ -4,9 +4,9 @@
 
 package client.gui;
 
+import client.AsyncClient;
 import client.Client;
 import client.ClientEventListener;
-import client.ResponseException;
 import com.intellij.uiDesigner.core.GridConstraints;
 import com.intellij.uiDesigner.core.GridLayoutManager;
 
@@ -14,22 +14,25 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 
 public class MainForm {
 
     private JTextArea feedTextArea;
     JPanel panel1;
     private JTabbedPane tabbedPane1;
-    private JList searchList;
+    private JList<String> searchList;
     private JTextField searchField;
     private JButton searchButton;
     private JButton addFriendButton;
     private JTextField addFriendField;
-    private JList friendsList;
+    private JList<Client.FriendWithStatus> friendsList;
     private JButton publishButton;
     private JTextField publishField;
     private JButton refreshFriendsButton;
-    private JList requestsList;
+    private JList<String> requestsList;
     private JButton refreshRequestsButton;
     private JButton acceptButton;
     private JButton denyButton;
@@ -37,10 +40,26 @@ public class MainForm {
     private JButton refreshFeedButton;
     private JButton logoutButton;
     private Client client;
-    private ArrayList<String> requests = new ArrayList<>();
+    private AsyncClient asyncClient;
+    private final DefaultListModel<Client.FriendWithStatus> friendsModel = new DefaultListModel<>();
+    private final DefaultListModel<String> requestsModel = new DefaultListModel<>();
+    private final UpdateScheduler updateScheduler;
 
+    /**
+     * Crea la finestra principale. Le operazioni che contattano il server vengono eseguite da un {@link AsyncClient},
+     * per cui non bloccano l'interfaccia, e i loro risultati vengono mostrati nell'event dispatch thread. Le liste e il
+     * feed vengono aggiornati in background da un {@link UpdateScheduler}, quando arrivano notifiche dal server o
+     * quando l'utente preme Refresh.
+     *
+     * @param c          il Client dell'utente
+     * @param loginFrame la finestra di login, mostrata al logout
+     */
     public MainForm(Client c, JFrame loginFrame) {
         this.client = c;
+        this.asyncClient = new AsyncClient(c);
+        this.updateScheduler = new UpdateScheduler(c, friendsModel, requestsModel, feedTextArea, MainForm::showError);
+        friendsList.setModel(friendsModel);
+        requestsList.setModel(requestsModel);
 
         publishField.setDocument(new LoginForm.JTextFieldLimit(500));
         searchField.setDocument(new LoginForm.JTextFieldLimit(20));
@@ -53,15 +72,15 @@ public class MainForm {
                 return;
             }
             publishButton.setEnabled(false);
-            try {
-                client.publish(message);
-                publishField.setText("");
-                feedTextArea.append("ME: " + message + "\n\n");
-            } catch (IOException | ResponseException e) {
-                LoginForm.showAlert("Error: " + e.getMessage());
-            } finally {
+            asyncClient.publish(message).whenCompleteAsync((r, e) -> {
                 publishButton.setEnabled(true);
-            }
+                if (e != null) {
+                    showError(e);
+                    return;
+                }
+                publishField.setText("");
+                updateScheduler.appendFeed("ME: " + message + "\n\n");
+            }, SwingUtilities::invokeLater);
         });
 
         searchButton.addActionListener(a -> {
@@ -69,16 +88,17 @@ public class MainForm {
                 LoginForm.showAlert("Empty query");
                 return;
             }
-            try {
-                searchList.setListData(client.findUsers(searchField.getText()).toArray());
-            } catch (IOException | ResponseException e) {
-                LoginForm.showAlert("Error: " + e.getMessage());
-            }
+            asyncClient.findUsers(searchField.getText()).whenCompleteAsync((users, e) -> {
+                if (e != null)
+                    showError(e);
+                else
+                    searchList.setListData(users.toArray(new String[0]));
+            }, SwingUtilities::invokeLater);
         });
 
 
         DefaultListCellRenderer defaultRenderer = new DefaultListCellRenderer();
-        ListCellRenderer cellRenderer = ((list, value, index, isSelected, cellHasFocus) -> {
+        ListCellRenderer<String> cellRenderer = ((list, value, index, isSelected, cellHasFocus) -> {
             JLabel lbl = (JLabel) defaultRenderer.getListCellRendererComponent(list, value, index, isSelected,
                     cellHasFocus);
             lbl.setOpaque(isSelected);
@@ -90,86 +110,66 @@ public class MainForm {
         Color onlineColor = new Color(50, 100, 49);
         Color offlineColor = new Color(130, 51, 42);
         friendsList.setCellRenderer((list, value, index, isSelected, cellHasFocus) -> {
-            Client.FriendWithStatus f = (Client.FriendWithStatus) value;
-            JLabel label = (JLabel) defaultRenderer.getListCellRendererComponent(list, f.getUsername(), index, isSelected,
-                    cellHasFocus);
+            JLabel label = (JLabel) defaultRenderer.getListCellRendererComponent(list, value.getUsername(), index,
+                    isSelected, cellHasFocus);
             if (!isSelected)
-                label.setForeground(f.isOnline() ? onlineColor : offlineColor);
-            label.setText((f.isOnline() ? "◉" : "◎") + label.getText());
+                label.setForeground(value.isOnline() ? onlineColor : offlineColor);
+            label.setText((value.isOnline() ? "◉" : "◎") + label.getText());
             label.setOpaque(isSelected);
             return label;
         });
 
-        refreshRequestsButton.addActionListener(a -> {
-            java.util.List<String> newRequests = client.retrievePendingFriendRequests();
-            newRequests.stream().filter(r -> !requests.contains(r)).forEach(r -> requests.add(r));
-            requestsList.setListData(requests.toArray());
-        });
-
-        refreshFriendsButton.addActionListener(a -> {
-            try {
-                friendsList.setListData(client.retrieveFriends().toArray());
-            } catch (IOException | ResponseException e) {
-                LoginForm.showAlert("Error: " + e.getMessage());
-            }
-        });
+        refreshRequestsButton.addActionListener(a -> updateScheduler.request(UpdateScheduler.REQUESTS, true));
+        refreshFriendsButton.addActionListener(a -> updateScheduler.request(UpdateScheduler.FRIENDS, true));
+        refreshFeedButton.addActionListener(a -> updateScheduler.request(UpdateScheduler.FEED, true));
 
         addFriendButton.addActionListener(a -> {
             if (addFriendField.getText().isEmpty()) {
                 LoginForm.showAlert("Empty username");
                 return;
             }
-            try {
-                client.friendRequest(addFriendField.getText());
-                LoginForm.showAlert("Request sent");
-                addFriendField.setText("");
-            } catch (IOException | ResponseException e) {
-                LoginForm.showAlert("Error: " + e.getMessage());
-            }
+            asyncClient.friendRequest(addFriendField.getText()).whenCompleteAsync((r, e) -> {
+                if (e != null)
+                    showError(e);
+                else {
+                    LoginForm.showAlert("Request sent");
+                    addFriendField.setText("");
+                }
+            }, SwingUtilities::invokeLater);
         });
 
         acceptButton.addActionListener(a -> {
-            String username = (String) requestsList.getSelectedValue();
+            String username = requestsList.getSelectedValue();
             if (username == null)
                 return;
-            try {
-                client.respondFriendRequest(username, true);
-                requests.remove(username);
-                refreshRequestsButton.doClick();
-            } catch (IOException | ResponseException e) {
-                LoginForm.showAlert("Error: " + e.getMessage());
-            }
+            asyncClient.respondFriendRequest(username, true).whenCompleteAsync((r, e) -> {
+                if (e != null)
+                    showError(e);
+                else
+                    requestsModel.removeElement(username);
+            }, SwingUtilities::invokeLater);
         });
 
         denyButton.addActionListener(a -> {
-            String username = (String) requestsList.getSelectedValue();
+            String username = requestsList.getSelectedValue();
             if (username == null)
                 return;
-            try {
-                client.respondFriendRequest(username, false);
-                requests.remove(username);
-                refreshRequestsButton.doClick();
-            } catch (IOException | ResponseException e) {
-                LoginForm.showAlert("Error: " + e.getMessage());
-            }
+            asyncClient.respondFriendRequest(username, false).whenCompleteAsync((r, e) -> {
+                if (e != null)
+                    showError(e);
+                else
+                    requestsModel.removeElement(username);
+            }, SwingUtilities::invokeLater);
         });
 
         followButton.addActionListener(a -> {
-            String username = ((Client.FriendWithStatus) friendsList.getSelectedValue()).getUsername();
+            String username = friendsList.getSelectedValue().getUsername();
             if (username == null)
                 return;
-            try {
-                client.subscribe(username);
-            } catch (Exception e) {
-                LoginForm.showAlert("Error: " + e.getMessage());
-            }
-        });
-
-        refreshFeedButton.addActionListener(a -> {
-            java.util.List<Client.PostWithAuthor> unreadPosts = client.retrieveUnreadPosts();
-            for (Client.PostWithAuthor post : unreadPosts) {
-                feedTextArea.append(post.getAuthor() + ": " + post.getContent() + "\n\n");
-            }
+            asyncClient.subscribe(username).whenCompleteAsync((r, e) -> {
+                if (e != null)
+                    showError(e);
+            }, SwingUtilities::invokeLater);
         });
 
         searchField.addActionListener(a -> searchButton.doClick());
@@ -182,11 +182,12 @@ public class MainForm {
         });
         tabbedPane1.addChangeListener(e -> {
             if (tabbedPane1.getSelectedIndex() == 1)
-                refreshFriendsButton.doClick(0);
+                updateScheduler.request(UpdateScheduler.FRIENDS, false);
         });
 
         logoutButton.addActionListener(e -> {
-            client.close();
+            updateScheduler.close();
+            asyncClient.logout();
             loginFrame.setVisible(true);
             SwingUtilities.getWindowAncestor(panel1).setVisible(false);
             savePendingFriendRequests();
@@ -195,19 +196,24 @@ public class MainForm {
         client.setClientEventListener(new ClientEventListener() {
             @Override
             public void friendRequestReceived() {
-                refreshRequestsButton.doClick(0);
+                updateScheduler.request(UpdateScheduler.REQUESTS, false);
             }
 
             @Override
             public void friendPostReceived() {
-                refreshFeedButton.doClick(0);
+                updateScheduler.request(UpdateScheduler.FEED, false);
             }
         });
 
         loadPendingFriendRequests();
-        refreshFriendsButton.doClick(0);
-        refreshRequestsButton.doClick(0);
-        refreshFeedButton.doClick(0);
+        updateScheduler.request(UpdateScheduler.FRIENDS | UpdateScheduler.REQUESTS | UpdateScheduler.FEED, false);
+    }
+
+    private static void showError(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null)
+            e = e.getCause();
+        LoginForm.showAlert(e instanceof TimeoutException ? "Error: the server is not responding"
+                : "Error: " + e.getMessage());
     }
 
     private String getPendingFriendRequestsBackupPath() {
@@ -220,18 +226,26 @@ public class MainForm {
             ObjectInputStream oin = new ObjectInputStream(fin);
             @SuppressWarnings("unchecked")
             java.util.List<String> list = (java.util.List<String>) oin.readObject();
-            requests.addAll(list);
+            for (String r : list)
+                if (!requestsModel.contains(r))
+                    requestsModel.addElement(r);
         } catch (Exception e) {
 
         }
     }
 
+    /**
+     * Salva su file le richieste di amicizia ricevute e non ancora accettate o rifiutate, incluse quelle ricevute
+     * dopo l'ultimo aggiornamento della lista. Deve essere invocato nell'EDT.
+     */
     public void savePendingFriendRequests() {
-        refreshRequestsButton.doClick();
+        for (String r : client.retrievePendingFriendRequests())
+            if (!requestsModel.contains(r))
+                requestsModel.addElement(r);
         try {
             FileOutputStream fout = new FileOutputStream(getPendingFriendRequestsBackupPath());
             ObjectOutputStream oout = new ObjectOutputStream(fout);
-            oout.writeObject(requests);
+            oout.writeObject(new ArrayList<>(Collections.list(requestsModel.elements())));
         } catch (IOException e) {
 
         }
@@ -260,7 +274,7 @@ public class MainForm {
         panel2.setLayout(new GridLayoutManager(2, 2, new Insets(0, 0, 0, 0), -1, -1));
         panel2.setOpaque(false);
         tabbedPane1.addTab("Search", panel2);
-        searchList = new JList();
+        searchList = new JList<>();
         searchList.setOpaque(false);
         panel2.add(searchList, new GridConstraints(1, 0, 1, 2, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_BOTH, GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_WANT_GROW, null, new Dimension(150, 50), null, 0, false));
         searchField = new JTextField();
@@ -284,7 +298,7 @@ public class MainForm {
         addFriendButton.setFont(new Font(addFriendButton.getFont().getName(), addFriendButton.getFont().getStyle(), 10));
         addFriendButton.setText("Add");
         panel3.add(addFriendButton, new GridConstraints(0, 1, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
-        friendsList = new JList();
+        friendsList = new JList<>();
         friendsList.setEnabled(true);
         friendsList.setFocusable(false);
         friendsList.setOpaque(false);
@@ -297,7 +311,7 @@ public class MainForm {
         panel4.setLayout(new GridLayoutManager(2, 3, new Insets(0, 0, 0, 0), -1, -1));
         panel4.setOpaque(false);
         tabbedPane1.addTab("Requests", panel4);
-        requestsList = new JList();
+        requestsList = new JList<>();
         requestsList.setOpaque(false);
         panel4.add(requestsList, new GridConstraints(0, 0, 1, 3, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_BOTH, GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_WANT_GROW, null, new Dimension(150, 50), null, 0, false));
         refreshRequestsButton = new JButton();
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package client.gui;
+
+import client.Client;
+import client.ResponseException;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Un UpdateScheduler aggiorna le liste di amici e di richieste di amicizia e il feed della finestra principale senza
+ * occupare l'EDT. Gli aggiornamenti vengono richiesti da qualsiasi thread (v. {@link #request(int, boolean)}), ad
+ * esempio dal {@link client.ClientEventListener} quando arrivano post o richieste, e vengono uniti: le richieste che
+ * arrivano entro COALESCE_DELAY millisecondi dalla prima vengono servite insieme da un thread in background, che legge
+ * i dati dal Client, contattando il server solo per la lista di amici, e li applica all'interfaccia con un solo task
+ * invokeLater.
+ * <p>
+ * Le liste vengono aggiornate modificando solo gli elementi cambiati dei loro DefaultListModel, per cui anche con
+ * migliaia di amici un aggiornamento costa poco all'EDT e non perde la selezione. Il feed mostra gli ultimi
+ * MAX_FEED_LINES righe. La lista di amici viene inoltre aggiornata ogni FRIENDS_REFRESH_PERIOD millisecondi, perché
+ * il server non notifica i cambiamenti di stato degli amici.
+ */
+final class UpdateScheduler implements Closeable {
+
+    static final int FRIENDS = 1;
+    static final int REQUESTS = 2;
+    static final int FEED = 4;
+    static final long COALESCE_DELAY = 100;
+    static final long FRIENDS_REFRESH_PERIOD = TimeUnit.SECONDS.toMillis(10);
+    static final int MAX_FEED_LINES = 2000;
+
+    private final Client client;
+    private final DefaultListModel<Client.FriendWithStatus> friendsModel;
+    private final DefaultListModel<String> requestsModel;
+    private final JTextArea feedTextArea;
+    private final Consumer<Throwable> errorHandler;
+    private final ScheduledExecutorService executor;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean reportErrors = new AtomicBoolean();
+
+    /**
+     * Crea un UpdateScheduler e avvia l'aggiornamento periodico della lista di amici.
+     *
+     * @param client        il Client da cui leggere i dati
+     * @param friendsModel  il modello della lista di amici
+     * @param requestsModel il modello della lista di richieste di amicizia
+     * @param feedTextArea  la JTextArea del feed
+     * @param errorHandler  la funzione invocata nell'EDT se fallisce un aggiornamento richiesto dall'utente
+     */
+    UpdateScheduler(Client client, DefaultListModel<Client.FriendWithStatus> friendsModel,
+                    DefaultListModel<String> requestsModel, JTextArea feedTextArea, Consumer<Throwable> errorHandler) {
+        this.client = client;
+        this.friendsModel = friendsModel;
+        this.requestsModel = requestsModel;
+        this.feedTextArea = feedTextArea;
+        this.errorHandler = errorHandler;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gui-updates");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> request(FRIENDS, false), FRIENDS_REFRESH_PERIOD,
+                FRIENDS_REFRESH_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Richiede un aggiornamento. Può essere invocato da qualsiasi thread e ritorna subito.
+     *
+     * @param updates    le parti da aggiornare, una combinazione di FRIENDS, REQUESTS e FEED
+     * @param userAction true se l'aggiornamento è stato richiesto dall'utente, per cui un eventuale errore va mostrato
+     */
+    void request(int updates, boolean userAction) {
+        pending.accumulateAndGet(updates, (a, b) -> a | b);
+        if (userAction)
+            reportErrors.set(true);
+        if (scheduled.compareAndSet(false, true))
+            try {
+                executor.schedule(this::update, COALESCE_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+
+            }
+    }
+
+    private void update() {
+        scheduled.set(false);
+        int updates = pending.getAndSet(0);
+        boolean report = reportErrors.getAndSet(false);
+
+        StringBuilder feed = new StringBuilder();
+        if ((updates & FEED) != 0)
+            for (Client.PostWithAuthor post : client.retrieveUnreadPosts())
+                feed.append(post.getAuthor()).append(": ").append(post.getContent()).append("\n\n");
+        List<String> requests = (updates & REQUESTS) != 0 ? client.retrievePendingFriendRequests()
+                : Collections.emptyList();
+        List<Client.FriendWithStatus> friends = null;
+        Exception error = null;
+        if ((updates & FRIENDS) != 0)
+            try {
+                friends = client.retrieveFriends();
+                friends.sort(Comparator.comparing(Client.FriendWithStatus::getUsername));
+            } catch (IOException | ResponseException e) {
+                error = e;
+            }
+
+        if (feed.length() == 0 && requests.isEmpty() && friends == null && (error == null || !report))
+            return;
+        List<Client.FriendWithStatus> newFriends = friends;
+        Exception newError = report ? error : null;
+        SwingUtilities.invokeLater(() -> {
+            if (feed.length() > 0)
+                appendFeed(feed.toString());
+            for (String r : requests)
+                if (!requestsModel.contains(r))
+                    requestsModel.addElement(r);
+            if (newFriends != null)
+                updateFriends(newFriends);
+            if (newError != null)
+                errorHandler.accept(newError);
+        });
+    }
+
+    /**
+     * Aggiunge del testo al feed, quindi rimuove le righe più vecchie oltre MAX_FEED_LINES. Deve essere invocato
+     * nell'EDT.
+     *
+     * @param text il testo
+     */
+    void appendFeed(String text) {
+        feedTextArea.append(text);
+        int excess = feedTextArea.getLineCount() - MAX_FEED_LINES;
+        if (excess > 0)
+            try {
+                feedTextArea.replaceRange("", 0, feedTextArea.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+
+            }
+    }
+
+    /**
+     * Applica al modello della lista di amici le differenze rispetto a una nuova lista. Entrambe le liste sono
+     * ordinate per nome, per cui basta scorrerle insieme: gli amici che mancano nella nuova lista vengono rimossi,
+     * quelli nuovi inseriti e quelli che hanno cambiato stato sostituiti.
+     *
+     * @param friends la nuova lista, ordinata per nome
+     */
+    private void updateFriends(List<Client.FriendWithStatus> friends) {
+        int i = 0;
+        int j = 0;
+        while (j < friends.size() && i < friendsModel.size()) {
+            Client.FriendWithStatus old = friendsModel.get(i);
+            Client.FriendWithStatus f = friends.get(j);
+            int cmp = old.getUsername().compareTo(f.getUsername());
+            if (cmp < 0) {
+                friendsModel.remove(i);
+                continue;
+            }
+            if (cmp > 0)
+                friendsModel.add(i, f);
+            else if (old.isOnline() != f.isOnline())
+                friendsModel.set(i, f);
+            i++;
+            j++;
+        }
+        if (i < friendsModel.size())
+            friendsModel.removeRange(i, friendsModel.size() - 1);
+        if (j < friends.size())
+            friendsModel.addAll(friends.subList(j, friends.size()));
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import server.metrics.Histogram;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Un AdmissionController decide quali connessioni servire quando il server è sovraccarico. Le connessioni accettate
+ * attendono in una coda limitata, da cui un pool di thread le preleva in ordine di priorità e, a parità di priorità,
+ * di arrivo. La priorità dipende dal tipo della prima richiesta, se il client l'ha già inviata quando la connessione
+ * viene accettata (v. {@link #priorityOf(int)}).
+ * <p>
+ * Le connessioni che non possono essere servite ricevono subito la risposta {@link ResponseTypes#BUSY} e vengono
+ * chiuse senza leggere la richiesta. Ogni priorità può occupare solo una parte della coda, per cui
+ * le richieste meno importanti vengono scartate prima delle altre; vengono scartate anche le connessioni rimaste in
+ * coda più di MAX_QUEUE_TIME millisecondi, a cui il client ha probabilmente già rinunciato.
+ * <p>
+ * Le connessioni persistenti trasportano richieste di ogni tipo, per cui la priorità viene applicata a ogni richiesta:
+ * una connessione persistente che ha risposto a tutte le richieste ricevute viene parcheggiata senza occupare un
+ * thread (v. {@link IdleConnections}) e, quando arriva la richiesta successiva, torna in coda con la priorità di
+ * quest'ultima (v. {@link #resume(ServerTask, int)}). Le richieste di una connessione persistente che non possono essere
+ * servite ricevono la risposta BUSY senza che la connessione venga chiusa (v. {@link #admitRequest(int)}).
+ */
+public class AdmissionController implements Closeable {
+
+    public static final int HIGH_PRIORITY = 0;
+    public static final int NORMAL_PRIORITY = 1;
+    public static final int LOW_PRIORITY = 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final long MAX_QUEUE_TIME = ServerTask.REQUEST_TIMEOUT;
+    private static final long LOG_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    private static final long REQUEST_WAIT = 50;
+    private static final long LINGER_TIME = TimeUnit.SECONDS.toMillis(1);
+    private static final int MAX_PENDING_REJECTIONS = 4096;
+
+    private final Server server;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService rejecter;
+    private final IdleConnections idleConnections;
+    private final AtomicInteger pendingRejections = new AtomicInteger();
+    private final int capacity;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong lastLogTime = new AtomicLong();
+
+    // Statistiche
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder[] shed = {new LongAdder(), new LongAdder(), new LongAdder()};
+    private final LongAdder dequeued = new LongAdder();
+    private final LongAdder totalQueueTime = new LongAdder();
+    private final AtomicLong maxQueueTime = new AtomicLong();
+    private final Histogram queueTimes;
+
+    /**
+     * Una connessione in attesa di essere servita: una connessione appena accettata oppure una connessione persistente
+     * parcheggiata su cui è arrivata una nuova richiesta.
+     */
+    private class Admission implements Runnable, Comparable<Admission> {
+        final ServerTask task;
+        final int action;
+        final int priority;
+        final long sequence;
+        final boolean resumed;
+        final long enqueueTime = System.nanoTime();
+
+        Admission(ServerTask task, int action, int priority, long sequence, boolean resumed) {
+            this.task = task;
+            this.action = action;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.resumed = resumed;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            long queueTime = System.nanoTime() - enqueueTime;
+            dequeued.increment();
+            totalQueueTime.add(queueTime);
+            maxQueueTime.accumulateAndGet(queueTime, Math::max);
+            queueTimes.record(TimeUnit.NANOSECONDS.toMicros(queueTime));
+            if (queueTime > TimeUnit.MILLISECONDS.toNanos(MAX_QUEUE_TIME)) {
+                if (!resumed) {
+                    reject(task.getSocket(), action, priority);
+                    return;
+                }
+                countRejection(priority);
+                task.rejectNextRequest();
+            } else if (!resumed)
+                admitted.increment();
+            task.run();
+        }
+
+        @Override
+        public int compareTo(Admission o) {
+            if (priority != o.priority)
+                return Integer.compare(priority, o.priority);
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+
+    /**
+     * Crea un AdmissionController che serve le connessioni con al più threads thread alla volta e ne registra i
+     * contatori nelle metriche del server.
+     *
+     * @param server   il server
+     * @param threads  il numero massimo di connessioni servite contemporaneamente
+     * @param capacity il numero massimo di connessioni in attesa
+     * @throws IllegalArgumentException se server è null, threads < 1 o capacity < 1
+     */
+    public AdmissionController(Server server, int threads, int capacity) {
+        if (server == null || threads < 1 || capacity < 1)
+            throw new IllegalArgumentException();
+        this.server = server;
+        this.capacity = capacity;
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new PriorityBlockingQueue<>(),
+                r -> new Thread(r, "server-task"));
+        executor.allowCoreThreadTimeOut(true);
+        rejecter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "admission-rejecter");
+            t.setDaemon(true);
+            return t;
+        });
+
+        queueTimes = server.getMetrics().histogram("admission.queue_time");
+        server.getMetrics().gauge("admission.queue_length", this::getQueueLength);
+        server.getMetrics().gauge("admission.admitted", this::getAdmittedCount);
+        server.getMetrics().gauge("admission.shed.high", () -> getShedCount(HIGH_PRIORITY));
+        server.getMetrics().gauge("admission.shed.normal", () -> getShedCount(NORMAL_PRIORITY));
+        server.getMetrics().gauge("admission.shed.low", () -> getShedCount(LOW_PRIORITY));
+        server.getMetrics().gauge("admission.threads.active", executor::getActiveCount);
+
+        IdleConnections idle = null;
+        try {
+            idle = new IdleConnections(this);
+        } catch (IOException e) {
+            server.getLogger().warn("Idle connections will occupy a thread", "error", e.getMessage());
+        }
+        idleConnections = idle;
+    }
+
+    /**
+     * Restituisce la priorità di una richiesta: login, logout, registrazioni, pubblicazioni e richieste degli altri
+     * nodi del cluster hanno priorità alta; ricerche e suggerimenti hanno priorità bassa; le altre richieste, le
+     * connessioni persistenti e quelle di cui non si conosce ancora la richiesta hanno priorità normale.
+     *
+     * @param action il tipo della richiesta, oppure {@link ServerTask#ACTION_NOT_READ}
+     * @return HIGH_PRIORITY, NORMAL_PRIORITY oppure LOW_PRIORITY
+     */
+    public static int priorityOf(int action) {
+        switch (action) {
+            case RequestTypes.LOGIN:
+            case RequestTypes.LOGOUT:
+            case RequestTypes.REGISTER:
+            case RequestTypes.PUBLISH:
+            case RequestTypes.PEER_FIND_USER:
+            case RequestTypes.PEER_FRIEND_REQUEST:
+            case RequestTypes.PEER_FRIENDSHIP:
+            case RequestTypes.PEER_SUBSCRIBE:
+            case RequestTypes.PEER_POST:
+                return HIGH_PRIORITY;
+            case RequestTypes.FIND_USER:
+            case RequestTypes.SUGGEST_FRIENDS:
+                return LOW_PRIORITY;
+            default:
+                return NORMAL_PRIORITY;
+        }
+    }
+
+    /**
+     * Restituisce il numero di connessioni in attesa oltre il quale le connessioni con la priorità specificata vengono
+     * scartate: tutta la coda per la priorità alta, tre quarti per la normale, metà per la bassa.
+     */
+    private int limitOf(int priority) {
+        switch (priority) {
+            case HIGH_PRIORITY:
+                return capacity;
+            case NORMAL_PRIORITY:
+                return Math.max(capacity * 3 / 4, 1);
+            default:
+                return Math.max(capacity / 2, 1);
+        }
+    }
+
+    /**
+     * Accoda una connessione appena accettata, oppure la scarta se la coda è piena. Non solleva eccezioni e non
+     * attende la richiesta del client, per cui può essere invocato dal thread che accetta le connessioni.
+     *
+     * @param socket la connessione
+     */
+    public void admit(Socket socket) {
+        int action = peekAction(socket);
+        int priority = priorityOf(action);
+        if (queued.incrementAndGet() > limitOf(priority)) {
+            queued.decrementAndGet();
+            reject(socket, action, priority);
+            return;
+        }
+        try {
+            executor.execute(new Admission(new ServerTask(server, socket, action), action, priority,
+                    sequence.getAndIncrement(), false));
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            reject(socket, action, priority);
+        }
+    }
+
+    /**
+     * Parcheggia una connessione persistente inattiva finché non arriva la richiesta successiva (v. {@link
+     * IdleConnections}).
+     *
+     * @param task il ServerTask della connessione
+     * @return false se la connessione non può essere parcheggiata e il ServerTask deve attendere la richiesta
+     */
+    boolean park(ServerTask task) {
+        return idleConnections != null && idleConnections.park(task);
+    }
+
+    /**
+     * Rimette in coda una connessione persistente parcheggiata su cui è arrivata una nuova richiesta, con la priorità
+     * di quest'ultima. La connessione viene accodata anche se la coda è piena, perché è già stata accettata; se il
+     * server è sovraccarico la richiesta riceve la risposta BUSY quando la connessione viene servita (v.
+     * {@link #admitRequest(int)}).
+     *
+     * @param task   il ServerTask della connessione
+     * @param action il tipo della richiesta, oppure ServerTask.ACTION_NOT_READ se non è ancora arrivato
+     */
+    void resume(ServerTask task, int action) {
+        queued.incrementAndGet();
+        try {
+            executor.execute(new Admission(task, action, priorityOf(action), sequence.getAndIncrement(), true));
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            task.closeConnection();
+        }
+    }
+
+    /**
+     * Decide se servire una richiesta ricevuta su una connessione persistente: la richiesta viene scartata se la coda
+     * ha superato la parte riservata alla sua priorità (v. {@link #priorityOf(int)}).
+     *
+     * @param action il tipo della richiesta
+     * @return true se la richiesta può essere servita, false se deve ricevere la risposta BUSY
+     */
+    boolean admitRequest(int action) {
+        int priority = priorityOf(action);
+        if (queued.get() < limitOf(priority))
+            return true;
+        countRejection(priority);
+        return false;
+    }
+
+    /**
+     * Legge il tipo della prima richiesta se il client lo ha già inviato.
+     *
+     * @return il tipo della richiesta, oppure ServerTask.ACTION_NOT_READ
+     */
+    private static int peekAction(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            if (in.available() > 0)
+                return in.read();
+        } catch (IOException e) {
+
+        }
+        return ServerTask.ACTION_NOT_READ;
+    }
+
+    /**
+     * Scarta una connessione: risponde BUSY e la chiude (v. {@link #respondBusy(Socket, int)}). Le operazioni vengono
+     * eseguite dal thread admission-rejecter, per cui il chiamante non viene mai bloccato.
+     */
+    private void reject(Socket socket, int action, int priority) {
+        countRejection(priority);
+
+        if (pendingRejections.incrementAndGet() > MAX_PENDING_REJECTIONS) {
+            pendingRejections.decrementAndGet();
+            closeQuietly(socket);
+            return;
+        }
+        try {
+            if (action == ServerTask.ACTION_NOT_READ)
+                rejecter.schedule(() -> respondBusy(socket, peekAction(socket)), REQUEST_WAIT, TimeUnit.MILLISECONDS);
+            else
+                rejecter.execute(() -> respondBusy(socket, action));
+        } catch (RejectedExecutionException e) {
+            pendingRejections.decrementAndGet();
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Risponde BUSY e chiude la connessione in scrittura; se la connessione è persistente la risposta è un messaggio
+     * di {@link ChunkedOutputStream}. La connessione viene chiusa del tutto dopo LINGER_TIME millisecondi, così che la
+     * chiusura non venga segnalata al client come un errore prima che abbia inviato la richiesta e letto la risposta.
+     *
+     * @param action il tipo della prima richiesta, oppure ServerTask.ACTION_NOT_READ se il client non l'ha inviata
+     */
+    private void respondBusy(Socket socket, int action) {
+        try {
+            InputStream in = socket.getInputStream();
+            in.skip(in.available());
+            BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            if (action == RequestTypes.PERSISTENT) {
+                ChunkedOutputStream chunkedOut = new ChunkedOutputStream(out);
+                chunkedOut.write(ResponseTypes.BUSY);
+                chunkedOut.endMessage();
+            } else {
+                out.write(ResponseTypes.BUSY);
+                out.flush();
+            }
+            socket.shutdownOutput();
+            rejecter.schedule(() -> {
+                try {
+                    InputStream i = socket.getInputStream();
+                    i.skip(i.available());
+                } catch (IOException e) {
+
+                }
+                closeQuietly(socket);
+                pendingRejections.decrementAndGet();
+            }, LINGER_TIME, TimeUnit.MILLISECONDS);
+        } catch (IOException | RejectedExecutionException e) {
+            closeQuietly(socket);
+            pendingRejections.decrementAndGet();
+        }
+    }
+
+    private void countRejection(int priority) {
+        shed[priority].increment();
+        long now = System.currentTimeMillis();
+        long last = lastLogTime.get();
+        if (now - last >= LOG_INTERVAL && lastLogTime.compareAndSet(last, now))
+            server.getLogger().warn("Server busy", "rejected", getShedCount(), "queued", queued.get());
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+
+        }
+    }
+
+    /**
+     * Restituisce il numero di connessioni in attesa di essere servite.
+     *
+     * @return la lunghezza della coda
+     */
+    public int getQueueLength() {
+        return queued.get();
+    }
+
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Restituisce il numero di connessioni servite.
+     *
+     * @return il numero di connessioni che hanno superato la coda
+     */
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    /**
+     * Restituisce il numero di connessioni e di richieste di connessioni persistenti scartate con la risposta BUSY.
+     *
+     * @return il numero di connessioni e richieste scartate
+     */
+    public long getShedCount() {
+        return shed[HIGH_PRIORITY].sum() + shed[NORMAL_PRIORITY].sum() + shed[LOW_PRIORITY].sum();
+    }
+
+    /**
+     * Restituisce il numero di connessioni e di richieste con la priorità specificata scartate con la risposta BUSY.
+     *
+     * @param priority la priorità
+     * @return il numero di connessioni e richieste scartate
+     * @throws IllegalArgumentException se priority non è una priorità valida
+     */
+    public long getShedCount(int priority) {
+        if (priority < HIGH_PRIORITY || priority > LOW_PRIORITY)
+            throw new IllegalArgumentException();
+        return shed[priority].sum();
+    }
+
+    /**
+     * Restituisce il tempo medio trascorso in coda dalle connessioni uscite dalla coda, servite o scartate perché
+     * rimaste in attesa troppo a lungo.
+     *
+     * @return il tempo medio in coda in millisecondi
+     */
+    public double getAverageQueueTime() {
+        long count = dequeued.sum();
+        return count == 0 ? 0 : totalQueueTime.sum() / 1e6 / count;
+    }
+
+    /**
+     * Restituisce il tempo massimo trascorso in coda da una connessione.
+     *
+     * @return il tempo massimo in coda in millisecondi
+     */
+    public double getMaxQueueTime() {
+        return maxQueueTime.get() / 1e6;
+    }
+
+    /**
+     * Smette di accettare connessioni e chiude le connessioni persistenti parcheggiate. Le connessioni in coda vengono
+     * comunque servite.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        rejecter.shutdown();
+        if (idleConnections != null)
+            idleConnections.close();
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Un ChunkedInputStream legge i messaggi scritti da un {@link ChunkedOutputStream} su una connessione persistente.
+ * Ogni messaggio è una sequenza di blocchi, ognuno preceduto dalla propria lunghezza (4 byte), ed è terminato da un
+ * blocco di lunghezza 0.
+ * <p>
+ * Lo stream restituisce i byte del messaggio corrente e -1 alla sua fine, come una connessione che viene chiusa; il
+ * messaggio successivo si legge dopo aver invocato {@link #nextMessage()}. Una lettura non restituisce mai byte di
+ * blocchi diversi, per cui una read(byte[]) restituisce al più il contenuto di un flush del mittente.
+ */
+public class ChunkedInputStream extends InputStream {
+
+    private final InputStream in;
+    private int remaining;
+    private boolean endOfMessage = true;
+    private boolean endOfStream;
+
+    /**
+     * Crea un ChunkedInputStream che legge da in. Prima di leggere il primo messaggio bisogna invocare
+     * {@link #nextMessage()}.
+     *
+     * @param in lo stream della connessione, preferibilmente bufferizzato
+     */
+    public ChunkedInputStream(InputStream in) {
+        if (in == null)
+            throw new IllegalArgumentException();
+        this.in = in;
+    }
+
+    /**
+     * Scarta i byte non ancora letti del messaggio corrente e si prepara a leggere il messaggio successivo.
+     *
+     * @return false se la connessione è stata chiusa
+     * @throws IOException
+     */
+    public boolean nextMessage() throws IOException {
+        skipMessage();
+        if (endOfStream)
+            return false;
+        endOfMessage = false;
+        return true;
+    }
+
+    /**
+     * Scarta i byte non ancora letti del messaggio corrente, compresa la sua terminazione, senza iniziare a leggere il
+     * messaggio successivo.
+     *
+     * @throws IOException
+     */
+    public void skipMessage() throws IOException {
+        while (!endOfMessage)
+            if (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    if (in.read() < 0)
+                        throw new EOFException();
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            } else
+                readHeader();
+    }
+
+    /**
+     * Indica se la connessione è stata chiusa.
+     *
+     * @return true se non ci sono altri messaggi da leggere
+     */
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+    private void readHeader() throws IOException {
+        int b1 = in.read();
+        if (b1 < 0) {
+            endOfStream = endOfMessage = true;
+            return;
+        }
+        int b2 = in.read(), b3 = in.read(), b4 = in.read();
+        if ((b2 | b3 | b4) < 0)
+            throw new EOFException();
+        remaining = (b1 << 24) | (b2 << 16) | (b3 << 8) | b4;
+        if (remaining < 0)
+            throw new IOException("Invalid chunk length");
+        endOfMessage = remaining == 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (!endOfMessage && remaining == 0)
+            readHeader();
+        if (endOfMessage)
+            return -1;
+        int b = in.read();
+        if (b < 0)
+            throw new EOFException();
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        while (!endOfMessage && remaining == 0)
+            readHeader();
+        if (endOfMessage)
+            return -1;
+        int n = in.read(b, off, Math.min(len, remaining));
+        if (n < 0)
+            throw new EOFException();
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return endOfMessage ? 0 : Math.min(remaining, in.available());
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Un ChunkedOutputStream scrive messaggi su una connessione persistente, in modo che il destinatario ne riconosca la
+ * fine senza che la connessione venga chiusa (v. {@link ChunkedInputStream}). I byte scritti vengono accumulati e
+ * inviati come un unico blocco a ogni flush; {@link #endMessage()} termina il messaggio corrente.
+ * <p>
+ * Se il destinatario non deve leggere parti del messaggio prima della sua fine, i blocchi possono essere inviati
+ * insieme alla fine del messaggio (v. {@link #ChunkedOutputStream(OutputStream, boolean)}), così che un messaggio
+ * occupi una sola scrittura sulla connessione.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final boolean flushChunks;
+    private byte[] buffer = new byte[512];
+    private int count;
+
+    /**
+     * Crea un ChunkedOutputStream che scrive su out.
+     *
+     * @param out lo stream della connessione, preferibilmente bufferizzato
+     */
+    public ChunkedOutputStream(OutputStream out) {
+        this(out, true);
+    }
+
+    /**
+     * Crea un ChunkedOutputStream che scrive su out.
+     *
+     * @param out         lo stream della connessione, preferibilmente bufferizzato
+     * @param flushChunks false se i blocchi devono essere inviati solo alla fine del messaggio
+     */
+    public ChunkedOutputStream(OutputStream out, boolean flushChunks) {
+        if (out == null)
+            throw new IllegalArgumentException();
+        this.out = out;
+        this.flushChunks = flushChunks;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+
+    private void writeChunk() throws IOException {
+        if (count == 0)
+            return;
+        writeLength(count);
+        out.write(buffer, 0, count);
+        count = 0;
+    }
+
+    private void writeLength(int length) throws IOException {
+        out.write(length >>> 24);
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+    }
+
+    /**
+     * Invia i byte accumulati come un blocco del messaggio corrente.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        if (flushChunks)
+            out.flush();
+    }
+
+    /**
+     * Invia i byte accumulati e termina il messaggio corrente.
+     *
+     * @throws IOException
+     */
+    public void endMessage() throws IOException {
+        endMessage(true);
+    }
+
+    /**
+     * Termina il messaggio corrente, eventualmente senza inviarlo subito, così da inviare più messaggi insieme.
+     *
+     * @param flush true se il messaggio deve essere inviato subito
+     * @throws IOException
+     */
+    public void endMessage(boolean flush) throws IOException {
+        writeChunk();
+        writeLength(0);
+        if (flush)
+            out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import socialnetwork.Post;
+import socialnetwork.User;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Un ClusterManager gestisce le comunicazioni di un server con gli altri nodi del cluster descritto da una
+ * PartitionMap. Ogni nodo è proprietario di un sottoinsieme degli utenti; le relazioni tra utenti di nodi diversi sono
+ * rappresentate su ciascun nodo da utenti remoti (v. {@link User#isRemote()}), e le operazioni che le coinvolgono
+ * vengono inoltrate al nodo proprietario con le richieste RequestTypes.PEER_*.
+ * <p>
+ * Le richieste tra nodi vengono accettate solo dagli indirizzi dei nodi della PartitionMap e solo se autenticate con
+ * il segreto condiviso dal cluster (v. {@link #setSecret(byte[])}): ogni richiesta contiene un istante, un nonce, la
+ * lunghezza e i dati della richiesta, seguiti da un HMAC-SHA256 di tutti questi campi. Il nodo che la riceve la
+ * rifiuta se l'HMAC non è valido, se l'istante si discosta dal proprio orologio di più di MAX_CLOCK_SKEW millisecondi
+ * o se il nonce è già stato usato, per cui una richiesta intercettata non può essere modificata né ripetuta. Finché
+ * il segreto non è impostato le richieste tra nodi non vengono né inviate né accettate.
+ * <p>
+ * Con un solo nodo tutti gli utenti sono locali e il ClusterManager non effettua alcuna comunicazione.
+ */
+public class ClusterManager implements Closeable {
+
+    private final Server server;
+    private final PartitionMap partitionMap;
+    private final PartitionMap.Node localNode;
+    private final ExecutorService executor;
+    private static final int PEER_CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(2);
+    private static final int PEER_READ_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(5);
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_BYTES = 32;
+    public static final int MAX_PEER_REQUEST_BYTES = 4 << 20;
+    public static final long MAX_CLOCK_SKEW = TimeUnit.SECONDS.toMillis(30);
+    private final SecureRandom random = new SecureRandom();
+    private final Map<Long, Long> usedNonces = new ConcurrentHashMap<>();
+    private final AtomicLong lastNoncesPurge = new AtomicLong();
+    private volatile SecretKeySpec secret;
+
+    /**
+     * Crea un ClusterManager per il nodo del server specificato.
+     *
+     * @param server       l'oggetto server
+     * @param partitionMap la mappa dei nodi del cluster
+     * @param nodeIndex    la posizione del nodo locale nella mappa
+     */
+    public ClusterManager(Server server, PartitionMap partitionMap, int nodeIndex) {
+        this.server = server;
+        this.partitionMap = partitionMap;
+        this.localNode = partitionMap.getNode(nodeIndex);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "cluster-peer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Indica se il server fa parte di un cluster con più di un nodo.
+     *
+     * @return true se ci sono altri nodi
+     */
+    public boolean isEnabled() {
+        return partitionMap.size() > 1;
+    }
+
+    /**
+     * Indica se l'utente col nome specificato appartiene al nodo locale.
+     *
+     * @param username il nome dell'utente
+     * @return true se l'utente appartiene a questo nodo
+     */
+    public boolean isLocal(String username) {
+        return partitionMap.getNode(username) == localNode;
+    }
+
+    /**
+     * Imposta il segreto condiviso dai nodi del cluster, con cui vengono autenticate le richieste tra nodi.
+     *
+     * @param secret il segreto, almeno 16 byte
+     * @throws IllegalArgumentException se secret è null o più corto di 16 byte
+     */
+    public void setSecret(byte[] secret) {
+        if (secret == null || secret.length < 16)
+            throw new IllegalArgumentException("The cluster secret must be at least 16 bytes");
+        this.secret = new SecretKeySpec(secret.clone(), MAC_ALGORITHM);
+    }
+
+    boolean hasSecret() {
+        return secret != null;
+    }
+
+    /**
+     * Indica se un indirizzo è quello di uno dei nodi del cluster, così come è configurato nella PartitionMap.
+     *
+     * @param address l'indirizzo da verificare
+     * @return true se address è l'indirizzo di un nodo
+     */
+    public boolean isPeer(InetAddress address) {
+        if (!isEnabled())
+            return false;
+        for (PartitionMap.Node n : partitionMap.getNodes())
+            if (n.getAddress().equals(address))
+                return true;
+        return false;
+    }
+
+    /**
+     * Legge e verifica una richiesta di un altro nodo, di cui è già stato letto il tipo.
+     *
+     * @param requestType il tipo di richiesta
+     * @param in          lo stream da cui leggere la richiesta
+     * @return uno stream con i dati della richiesta, oppure null se la richiesta non è autenticata o è già stata
+     * ricevuta
+     * @throws IOException
+     */
+    DataInputStream readPeerRequest(int requestType, InputStream in) throws IOException {
+        SecretKeySpec key = secret;
+        DataInputStream dataIn = new DataInputStream(in);
+        long timestamp = dataIn.readLong();
+        long nonce = dataIn.readLong();
+        int length = dataIn.readInt();
+        if (key == null || length < 0 || length > MAX_PEER_REQUEST_BYTES)
+            return null;
+        byte[] data = new byte[length];
+        dataIn.readFully(data);
+        byte[] mac = new byte[MAC_BYTES];
+        dataIn.readFully(mac);
+
+        long now = System.currentTimeMillis();
+        if (!MessageDigest.isEqual(mac, mac(key, requestType, timestamp, nonce, data))
+                || Math.abs(now - timestamp) > MAX_CLOCK_SKEW)
+            return null;
+        long lastPurge = lastNoncesPurge.get();
+        if (now - lastPurge > MAX_CLOCK_SKEW && lastNoncesPurge.compareAndSet(lastPurge, now))
+            usedNonces.values().removeIf(t -> now - t > 2 * MAX_CLOCK_SKEW);
+        if (usedNonces.putIfAbsent(nonce, timestamp) != null)
+            return null;
+        return new DataInputStream(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Scrive una richiesta per un altro nodo, autenticata col segreto del cluster.
+     *
+     * @param out         lo stream su cui scrivere
+     * @param requestType il tipo di richiesta
+     * @param writer      la funzione che scrive i dati della richiesta
+     * @throws IOException se il segreto non è impostato o la scrittura fallisce
+     */
+    private void writePeerRequest(DataOutputStream out, byte requestType, PeerRequestWriter writer)
+            throws IOException {
+        SecretKeySpec key = secret;
+        if (key == null)
+            throw new IOException("Cluster secret not set");
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream dataOut = new DataOutputStream(buffer);
+        writer.write(dataOut);
+        dataOut.flush();
+        byte[] data = buffer.toByteArray();
+        long timestamp = System.currentTimeMillis();
+        long nonce = random.nextLong();
+
+        out.writeByte(requestType);
+        out.writeLong(timestamp);
+        out.writeLong(nonce);
+        out.writeInt(data.length);
+        out.write(data);
+        out.write(mac(key, requestType, timestamp, nonce, data));
+        out.flush();
+    }
+
+    private static byte[] mac(SecretKeySpec key, int requestType, long timestamp, long nonce, byte[] data) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            ByteArrayOutputStream header = new ByteArrayOutputStream(24);
+            DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeByte(requestType);
+            headerOut.writeLong(timestamp);
+            headerOut.writeLong(nonce);
+            headerOut.writeInt(data.length);
+            mac.update(header.toByteArray());
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Inoltra una richiesta di amicizia al nodo proprietario del destinatario e ne restituisce la risposta.
+     *
+     * @param sender   il nome dell'utente (locale) che chiede l'amicizia
+     * @param receiver il nome dell'utente (remoto) a cui è diretta la richiesta
+     * @return una delle ResponseTypes, USER_OFFLINE se il nodo non è raggiungibile
+     */
+    public byte forwardFriendRequest(String sender, String receiver) {
+        try (Socket socket = connect(partitionMap.getNode(receiver))) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writePeerRequest(out, RequestTypes.PEER_FRIEND_REQUEST, o -> {
+                o.writeUTF(sender);
+                o.writeUTF(receiver);
+            });
+            int response = socket.getInputStream().read();
+            return response < 0 ? ResponseTypes.USER_OFFLINE : (byte) response;
+        } catch (IOException e) {
+            return ResponseTypes.USER_OFFLINE;
+        }
+    }
+
+    /**
+     * Comunica in modo asincrono al nodo proprietario di remoteUser che è stata stabilita un'amicizia con localUser.
+     *
+     * @param localUser  il nome dell'utente locale
+     * @param remoteUser il nome dell'utente remoto
+     */
+    public void notifyFriendship(String localUser, String remoteUser) {
+        sendAsync(partitionMap.getNode(remoteUser), RequestTypes.PEER_FRIENDSHIP, out -> {
+            out.writeUTF(remoteUser);
+            out.writeUTF(localUser);
+        });
+    }
+
+    /**
+     * Comunica in modo asincrono al nodo proprietario di followed che follower vuole seguirne i contenuti.
+     *
+     * @param follower il nome dell'utente locale che vuole seguire
+     * @param followed il nome dell'utente remoto che viene seguito
+     */
+    public void notifySubscription(String follower, String followed) {
+        sendAsync(partitionMap.getNode(followed), RequestTypes.PEER_SUBSCRIBE, out -> {
+            out.writeUTF(follower);
+            out.writeUTF(followed);
+        });
+    }
+
+    /**
+     * Inoltra in modo asincrono un post ai nodi proprietari dei follower remoti, raggruppandoli per nodo.
+     *
+     * @param post            il post da inoltrare
+     * @param remoteFollowers i follower remoti dell'autore
+     */
+    public void forwardPost(Post post, Collection<User> remoteFollowers) {
+        Map<PartitionMap.Node, List<String>> byNode = remoteFollowers.stream()
+                .map(User::getUsername)
+                .collect(Collectors.groupingBy(partitionMap::getNode));
+        byNode.forEach((node, usernames) -> sendAsync(node, RequestTypes.PEER_POST, out -> {
+            out.writeUTF(post.getAuthor().getUsername());
+            out.writeUTF(post.getContent());
+            out.writeInt(usernames.size());
+            for (String u : usernames)
+                out.writeUTF(u);
+        }));
+    }
+
+    /**
+     * Cerca in parallelo sugli altri nodi gli utenti che contengono una certa stringa nello username. I nodi che non
+     * rispondono entro il timeout vengono ignorati.
+     *
+     * @param query la stringa da cercare
+     * @return i nomi degli utenti trovati sugli altri nodi
+     */
+    public List<String> findUsers(String query) {
+        List<Future<List<String>>> futures = new ArrayList<>();
+        for (PartitionMap.Node node : partitionMap.getNodes())
+            if (node != localNode)
+                futures.add(executor.submit(() -> findUsers(node, query)));
+
+        List<String> results = new ArrayList<>();
+        for (Future<List<String>> f : futures)
+            try {
+                results.addAll(f.get(PEER_READ_TIMEOUT, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException e) {
+                f.cancel(true);
+            }
+        return results;
+    }
+
+    private List<String> findUsers(PartitionMap.Node node, String query) throws IOException {
+        try (Socket socket = connect(node)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writePeerRequest(out, RequestTypes.PEER_FIND_USER, o -> o.writeUTF(query));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int count = in.readInt();
+            List<String> results = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                results.add(in.readUTF());
+            return results;
+        }
+    }
+
+    private interface PeerRequestWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void sendAsync(PartitionMap.Node node, byte requestType, PeerRequestWriter writer) {
+        executor.execute(() -> {
+            try (Socket socket = connect(node)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                writePeerRequest(out, requestType, writer);
+                if (socket.getInputStream().read() != ResponseTypes.OK)
+                    server.getLogger().error("Peer request refused", "type", RequestTypes.nameOf(requestType),
+                            "node", node);
+            } catch (IOException e) {
+                server.getLogger().error("Peer request failed", "type", RequestTypes.nameOf(requestType), "node", node,
+                        "error", e.getMessage());
+            }
+        });
+    }
+
+    private Socket connect(PartitionMap.Node node) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(node.getAddress(), node.getPort()), PEER_CONNECT_TIMEOUT);
+            socket.setSoTimeout(PEER_READ_TIMEOUT);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+}
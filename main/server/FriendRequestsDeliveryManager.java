@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import socialnetwork.FriendRequestsManager;
+import socialnetwork.User;
+
+import java.io.Closeable;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Un FriendRequestsDeliveryManager consegna in modo asincrono le richieste di amicizia ai destinatari, tramite la stessa
+ * callback RMI usata per notificare i post (v. {@link RemoteNotificationReceiver#notifyFriendRequests(List)}).
+ * <p>
+ * Le richieste dirette allo stesso utente vengono raccolte per BATCH_DELAY millisecondi e consegnate con una sola
+ * invocazione. Se la callback fallisce la consegna viene ritentata con un'attesa che raddoppia a ogni tentativo, fino a
+ * MAX_ATTEMPTS tentativi. Le richieste non consegnate restano memorizzate nel FriendRequestsManager e vengono consegnate
+ * quando il destinatario registra di nuovo la callback, finché non scadono. Una callback che non risponde occupa un
+ * thread al più per {@link NotificationManager#CALLBACK_TIMEOUT} millisecondi, dopodiché fallisce e viene ritentata.
+ */
+public class FriendRequestsDeliveryManager implements Closeable {
+
+    public static final int MAX_ATTEMPTS = 5;
+    private static final long BATCH_DELAY = 50;
+    private static final long INITIAL_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+    private static final int THREADS = 2;
+
+    private final Server server;
+    private final Map<User, Set<User>> outbox = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(THREADS, r -> {
+        Thread t = new Thread(r, "friend-requests-delivery");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public FriendRequestsDeliveryManager(Server server) {
+        if (server == null)
+            throw new IllegalArgumentException();
+        this.server = server;
+    }
+
+    /**
+     * Accoda la consegna di una richiesta di amicizia già registrata nel FriendRequestsManager.
+     *
+     * @param sender   l'utente che ha chiesto l'amicizia
+     * @param receiver l'utente a cui consegnare la richiesta
+     */
+    public void deliver(User sender, User receiver) {
+        enqueue(receiver, Collections.singleton(sender), 0, BATCH_DELAY);
+    }
+
+    /**
+     * Accoda la consegna di tutte le richieste pendenti non ancora consegnate a un utente. Viene invocato quando
+     * l'utente registra la callback.
+     *
+     * @param receiver l'utente
+     */
+    public void deliverPending(User receiver) {
+        List<User> senders = server.getFriendRequestManager().getUndeliveredRequests(receiver);
+        if (!senders.isEmpty())
+            enqueue(receiver, senders, 0, BATCH_DELAY);
+    }
+
+    /**
+     * Aggiunge dei mittenti al gruppo in attesa di consegna a receiver. Se il gruppo non esisteva ne pianifica la
+     * consegna.
+     */
+    private void enqueue(User receiver, Collection<User> senders, int attempt, long delay) {
+        boolean[] created = new boolean[1];
+        outbox.compute(receiver, (k, pending) -> {
+            if (pending == null) {
+                pending = new LinkedHashSet<>();
+                created[0] = true;
+            }
+            pending.addAll(senders);
+            return pending;
+        });
+        if (created[0])
+            try {
+                executor.schedule(() -> flush(receiver, attempt), delay, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                outbox.remove(receiver);
+            }
+    }
+
+    private void flush(User receiver, int attempt) {
+        Set<User> senders = outbox.remove(receiver);
+        if (senders == null)
+            return;
+
+        FriendRequestsManager friendRequestsManager = server.getFriendRequestManager();
+        List<User> batch = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (User sender : senders)
+            if (friendRequestsManager.isPending(sender, receiver)) {
+                batch.add(sender);
+                names.add(sender.getUsername());
+            }
+        RemoteNotificationReceiver remoteReceiver = server.getNotificationManager().getReceiver(receiver);
+        if (batch.isEmpty() || remoteReceiver == null)
+            return;
+
+        try {
+            remoteReceiver.notifyFriendRequests(names);
+            for (User sender : batch)
+                friendRequestsManager.markDelivered(sender, receiver);
+        } catch (RemoteException e) {
+            if (attempt + 1 < MAX_ATTEMPTS)
+                enqueue(receiver, batch, attempt + 1, INITIAL_BACKOFF << attempt);
+            else
+                server.getLogger().info("Friend requests will be delivered later", "user", receiver.getUsername());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+}
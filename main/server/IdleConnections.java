@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Un IdleConnections tiene le connessioni persistenti inattive fuori dal pool di thread dell'{@link
+ * AdmissionController}: invece di attendere la richiesta successiva con una lettura bloccante, un ServerTask che ha
+ * risposto a tutte le richieste ricevute parcheggia la propria connessione e libera il thread. Un solo thread attende
+ * con un Selector che le connessioni parcheggiate diventino leggibili, quindi le restituisce all'AdmissionController,
+ * che le rimette in coda con la priorità della loro richiesta successiva.
+ * <p>
+ * Per conoscere la priorità vengono letti senza bloccare l'intestazione del messaggio e il tipo della richiesta
+ * (HEADER_BYTES byte), che il ServerTask rilegge prima del resto della connessione. Le connessioni parcheggiate da più
+ * di {@link ServerTask#IDLE_TIMEOUT} millisecondi vengono chiuse. Si possono parcheggiare solo le connessioni create da
+ * un ServerSocketChannel (v. {@link java.net.Socket#getChannel()}).
+ */
+final class IdleConnections implements Closeable {
+
+    static final int HEADER_BYTES = 5;
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    private final AdmissionController admissionController;
+    private final Selector selector;
+    private final Queue<ServerTask> parking = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * Una connessione parcheggiata.
+     */
+    private static class Parked {
+        final ServerTask task;
+        final long since = System.currentTimeMillis();
+
+        Parked(ServerTask task) {
+            this.task = task;
+        }
+    }
+
+    /**
+     * Crea un IdleConnections e avvia il thread che attende le connessioni parcheggiate.
+     *
+     * @param admissionController l'AdmissionController a cui restituire le connessioni
+     * @throws IOException se non è possibile aprire il Selector
+     */
+    IdleConnections(AdmissionController admissionController) throws IOException {
+        this.admissionController = admissionController;
+        selector = Selector.open();
+        Thread thread = new Thread(this::run, "idle-connections");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Parcheggia la connessione di un ServerTask. Il chiamante non deve più usare la connessione, che verrà servita da
+     * un altro thread quando diventa leggibile.
+     *
+     * @param task il ServerTask
+     * @return false se la connessione non può essere parcheggiata
+     */
+    boolean park(ServerTask task) {
+        if (closed || task.getSocket().getChannel() == null)
+            return false;
+        parking.add(task);
+        if (closed && parking.remove(task))
+            return false;
+        selector.wakeup();
+        return true;
+    }
+
+    private void run() {
+        long lastSweep = System.currentTimeMillis();
+        while (!closed) {
+            try {
+                selector.select(SWEEP_INTERVAL);
+            } catch (IOException e) {
+                break;
+            }
+
+            ServerTask task;
+            while ((task = parking.poll()) != null)
+                register(task);
+
+            List<SelectionKey> ready = new ArrayList<>(selector.selectedKeys());
+            selector.selectedKeys().clear();
+            if (!ready.isEmpty())
+                resume(ready);
+
+            long now = System.currentTimeMillis();
+            if (now - lastSweep >= SWEEP_INTERVAL) {
+                lastSweep = now;
+                for (SelectionKey key : selector.keys()) {
+                    Parked parked = (Parked) key.attachment();
+                    if (key.isValid() && now - parked.since >= ServerTask.IDLE_TIMEOUT) {
+                        key.cancel();
+                        parked.task.closeConnection();
+                    }
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys())
+            ((Parked) key.attachment()).task.closeConnection();
+        parking.forEach(ServerTask::closeConnection);
+        try {
+            selector.close();
+        } catch (IOException e) {
+
+        }
+    }
+
+    private void register(ServerTask task) {
+        SocketChannel channel = task.getSocket().getChannel();
+        try {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Parked(task));
+        } catch (IOException e) {
+            task.closeConnection();
+        }
+    }
+
+    /**
+     * Restituisce all'AdmissionController le connessioni diventate leggibili. Le chiavi vengono cancellate tutte
+     * insieme, perché una connessione torna bloccante solo dopo essere stata rimossa dal Selector.
+     */
+    private void resume(List<SelectionKey> ready) {
+        for (SelectionKey key : ready)
+            key.cancel();
+        try {
+            selector.selectNow();
+        } catch (IOException e) {
+
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        for (SelectionKey key : ready) {
+            ServerTask task = ((Parked) key.attachment()).task;
+            SocketChannel channel = (SocketChannel) key.channel();
+            header.clear();
+            try {
+                if (channel.read(header) < 0) {
+                    task.closeConnection();
+                    continue;
+                }
+                channel.configureBlocking(true);
+            } catch (IOException e) {
+                task.closeConnection();
+                continue;
+            }
+
+            header.flip();
+            int action = ServerTask.ACTION_NOT_READ;
+            if (header.remaining() == HEADER_BYTES && header.getInt(0) > 0)
+                action = header.get(HEADER_BYTES - 1) & 0xFF;
+            try {
+                task.unread(header.array(), header.remaining());
+            } catch (IOException e) {
+                task.closeConnection();
+                continue;
+            }
+            admissionController.resume(task, action);
+        }
+    }
+
+    /**
+     * Chiude le connessioni parcheggiate e arresta il thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+}
@@ -4,22 +4,32 @@
 
 package server;
 
+import server.metrics.Counter;
+import server.metrics.Histogram;
 import socialnetwork.Post;
 import socialnetwork.User;
 
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 /**
  * Un NotificationManager si occupa di invocare una callback registrata da utenti che vogliono essere avvisati quando un
- * loro amico pubblica un Post.
+ * loro amico pubblica un Post. La stessa callback viene usata per consegnare le richieste di amicizia (v.
+ * {@link FriendRequestsDeliveryManager}).
+ * <p>
+ * Le callback sono invocazioni RMI bloccanti: perché un client che non risponde non occupi per sempre il thread che lo
+ * notifica, prima di esportare il servizio viene impostato un timeout di CALLBACK_TIMEOUT millisecondi sulle risposte
+ * RMI, a meno che la proprietà sun.rmi.transport.tcp.responseTimeout non sia già stata specificata. La proprietà
+ * viene letta alla prima invocazione RMI effettuata dalla JVM, per cui vale per tutte le callback.
  */
 public class NotificationManager extends UnicastRemoteObject implements RemoteNotificationSender {
 
@@ -27,7 +37,18 @@ public class NotificationManager extends UnicastRemoteObject implements RemoteNo
     private final transient Server server;
     private final transient Map<User, RemoteNotificationReceiver> allReceivers = new ConcurrentHashMap<>();
     private final transient Map<User, Collection<Post>> allUnsentPosts = new ConcurrentHashMap<>();
+    private final transient Histogram fanOutReceivers;
+    private final transient Histogram fanOutLatency;
+    private final transient Counter delivered;
+    private final transient Counter queued;
     public static final String SERVICE_NAME = "simpleSocialNotificationService";
+    public static final long CALLBACK_TIMEOUT = 5000;
+    private static final String RESPONSE_TIMEOUT_PROPERTY = "sun.rmi.transport.tcp.responseTimeout";
+
+    static {
+        if (System.getProperty(RESPONSE_TIMEOUT_PROPERTY) == null)
+            System.setProperty(RESPONSE_TIMEOUT_PROPERTY, String.valueOf(CALLBACK_TIMEOUT));
+    }
 
     /**
      * Crea un NotificationManager, se non esiste avvia un registro RMI, quindi vi salva un'associazione tra
@@ -38,12 +59,19 @@ public class NotificationManager extends UnicastRemoteObject implements RemoteNo
      */
     public NotificationManager(Server server) throws RemoteException {
         this.server = server;
+        fanOutReceivers = server.getMetrics().histogram("notifications.fanout.receivers");
+        fanOutLatency = server.getMetrics().histogram("notifications.fanout.latency");
+        delivered = server.getMetrics().counter("notifications.delivered");
+        queued = server.getMetrics().counter("notifications.queued");
+        server.getMetrics().gauge("notifications.pending", () -> allUnsentPosts.values().stream()
+                .mapToLong(Collection::size)
+                .sum());
         try {
-            LocateRegistry.createRegistry(Registry.REGISTRY_PORT);
+            LocateRegistry.createRegistry(server.getRegistryPort());
         } catch (Exception e) {
 
         } finally {
-            LocateRegistry.getRegistry(Registry.REGISTRY_PORT).rebind(SERVICE_NAME, this);
+            LocateRegistry.getRegistry(server.getRegistryPort()).rebind(SERVICE_NAME, this);
         }
     }
 
@@ -54,18 +82,23 @@ public class NotificationManager extends UnicastRemoteObject implements RemoteNo
             throw new OperationNotPermittedException("Invalid token");
 
         allReceivers.put(receiverSession.getUser(), receiver);
+        server.getFriendRequestsDeliveryManager().deliverPending(receiverSession.getUser());
         Collection<Post> unsentPosts = allUnsentPosts.get(receiverSession.getUser());
         if (unsentPosts == null)
             return;
+        // Le callback vengono invocate senza tenere il lock della lista, che non deve essere occupato durante l'I/O
+        List<Post> posts;
         synchronized (unsentPosts) {
-            for (Iterator<Post> i = unsentPosts.iterator(); i.hasNext(); ) {
-                try {
-                    Post post = i.next();
-                    receiver.notifyPost(post.getAuthor().getUsername(), post.getContent());
-                    i.remove();
-                } catch (RemoteException e) {
-
-                }
+            posts = new ArrayList<>(unsentPosts);
+            unsentPosts.clear();
+        }
+        for (Iterator<Post> i = posts.iterator(); i.hasNext(); ) {
+            Post post = i.next();
+            try {
+                receiver.notifyPost(post.getAuthor().getUsername(), post.getContent());
+            } catch (RemoteException e) {
+                unsentPosts.add(post);
+                i.forEachRemaining(unsentPosts::add);
             }
         }
     }
@@ -85,25 +118,57 @@ public class NotificationManager extends UnicastRemoteObject implements RemoteNo
             throw new OperationNotPermittedException("The user is not a friend.");
 
         server.getUsersNetwork().addSubscription(receiverSession.getUser(), user2);
+        if (user2.isRemote())
+            server.getClusterManager().notifySubscription(receiverSession.getUser().getUsername(), username);
+    }
+
+    /**
+     * Restituisce l'ultimo oggetto registrato da un utente per ricevere notifiche.
+     *
+     * @param user l'utente
+     * @return l'oggetto registrato oppure null
+     */
+    RemoteNotificationReceiver getReceiver(User user) {
+        return allReceivers.get(user);
     }
 
     /**
      * Notifica un post a tutti gli oggetti che si sono registrati ai contenuti all'autore (v. {@link
-     * #registerReceiver(RemoteNotificationReceiver, String)}.
+     * #registerReceiver(RemoteNotificationReceiver, String)}. I follower che appartengono ad altri nodi del cluster
+     * vengono notificati dai rispettivi nodi.
      *
      * @param post il post da notificare
      */
     public void notifyPost(Post post) {
-        Collection<User> followers = post.getAuthor().getFollowers();
-        followers.parallelStream()
+        Map<Boolean, List<User>> followers = post.getAuthor().getFollowers().stream()
+                .collect(Collectors.partitioningBy(User::isRemote));
+        if (!followers.get(true).isEmpty())
+            server.getClusterManager().forwardPost(post, followers.get(true));
+        notifyPost(post, followers.get(false));
+    }
+
+    /**
+     * Notifica un post agli oggetti registrati da un insieme di utenti locali. Il numero di utenti e la durata della
+     * notifica vengono registrati nelle metriche del server.
+     *
+     * @param post      il post da notificare
+     * @param receivers gli utenti da notificare
+     */
+    void notifyPost(Post post, Collection<User> receivers) {
+        long start = System.nanoTime();
+        receivers.parallelStream()
                 .forEach(f -> {
                     try {
                         allReceivers.get(f).notifyPost(post.getAuthor().getUsername(), post.getContent());
+                        delivered.increment();
                     } catch (Exception e) {
-                        allUnsentPosts.putIfAbsent(f, new ArrayList<>());
-                        allUnsentPosts.get(f).add(post);
+                        allUnsentPosts.computeIfAbsent(f, k -> Collections.synchronizedList(new ArrayList<>()))
+                                .add(post);
+                        queued.increment();
                     }
                 });
+        fanOutReceivers.record(receivers.size());
+        fanOutLatency.recordSince(start);
     }
 
 }
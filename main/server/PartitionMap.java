@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.rmi.registry.Registry;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Una PartitionMap descrive i nodi di un cluster di Simple-Social server e assegna ogni utente a uno di essi tramite
+ * consistent hashing: ogni nodo occupa più punti (nodi virtuali) su un anello di hash, e un utente appartiene al primo
+ * nodo che si incontra sull'anello a partire dall'hash del suo nome. Due PartitionMap costruite con la stessa
+ * specifica assegnano gli utenti agli stessi nodi, indipendentemente dal processo in cui si trovano.
+ * <p>
+ * Un server non in cluster corrisponde a una PartitionMap con un solo nodo.
+ */
+public class PartitionMap {
+
+    private static final int VIRTUAL_NODES = 128;
+    private final List<Node> nodes;
+    private final TreeMap<Long, Node> ring = new TreeMap<>();
+
+    /**
+     * Un nodo del cluster. Le porte dei servizi ausiliari sono derivate dalla porta e dalla posizione del nodo nella
+     * mappa, così che più nodi possano essere eseguiti sulla stessa macchina purché le loro porte distino almeno 4.
+     */
+    public static final class Node {
+        private final int index;
+        private final String host;
+        private final InetAddress address;
+        private final int port;
+
+        private Node(int index, String host, int port) throws UnknownHostException {
+            this.index = index;
+            this.host = host;
+            this.address = InetAddress.getByName(host);
+            this.port = port;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * Restituisce la porta su cui il nodo accetta le connessioni TCP.
+         *
+         * @return la porta del nodo
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * Restituisce la porta del registro RMI del nodo.
+         *
+         * @return la porta del registro RMI
+         */
+        public int getRegistryPort() {
+            return Registry.REGISTRY_PORT + index;
+        }
+
+        /**
+         * Restituisce la porta UDP su cui il nodo riceve gli heartbeat dei client (v. {@link PresenceManager}).
+         *
+         * @return la porta di keep-alive
+         */
+        public int getKeepAliveResponsePort() {
+            return port + Server.KEEP_ALIVE_RESPONSE_PORT - Server.SERVER_PORT;
+        }
+
+        /**
+         * Restituisce la porta su cui il nodo, se primario, accetta le connessioni delle repliche.
+         *
+         * @return la porta di replicazione
+         */
+        public int getReplicationPort() {
+            return port + Server.REPLICATION_PORT - Server.SERVER_PORT;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private PartitionMap(List<Node> nodes) {
+        this.nodes = Collections.unmodifiableList(nodes);
+        for (Node n : nodes)
+            for (int v = 0; v < VIRTUAL_NODES; v++)
+                ring.put(hash(n.toString() + "#" + v), n);
+    }
+
+    /**
+     * Crea una PartitionMap da una specifica nel formato host[:porta][,host[:porta]...]. Se la porta è omessa viene
+     * usata {@link Server#SERVER_PORT}.
+     *
+     * @param spec la specifica dei nodi
+     * @return la PartitionMap
+     * @throws UnknownHostException     se uno degli host non può essere risolto
+     * @throws IllegalArgumentException se la specifica è vuota o malformata
+     */
+    public static PartitionMap parse(String spec) throws UnknownHostException {
+        if (spec == null || spec.trim().isEmpty())
+            throw new IllegalArgumentException("Empty partition map");
+
+        List<Node> nodes = new ArrayList<>();
+        for (String s : spec.split(",")) {
+            String[] hostPort = s.trim().split(":", 2);
+            try {
+                int port = hostPort.length == 2 ? Integer.parseInt(hostPort[1]) : Server.SERVER_PORT;
+                nodes.add(new Node(nodes.size(), hostPort[0], port));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port in " + s);
+            }
+        }
+        return new PartitionMap(nodes);
+    }
+
+    /**
+     * Crea una PartitionMap con un solo nodo.
+     *
+     * @param host l'host del nodo
+     * @param port la porta del nodo
+     * @return la PartitionMap
+     * @throws UnknownHostException se l'host non può essere risolto
+     */
+    public static PartitionMap singleNode(String host, int port) throws UnknownHostException {
+        return new PartitionMap(Collections.singletonList(new Node(0, host, port)));
+    }
+
+    /**
+     * Restituisce il nodo a cui appartiene l'utente col nome specificato.
+     *
+     * @param username il nome dell'utente
+     * @return il nodo proprietario dell'utente
+     */
+    public Node getNode(String username) {
+        if (nodes.size() == 1)
+            return nodes.get(0);
+        Map.Entry<Long, Node> e = ring.ceilingEntry(hash(username));
+        return e != null ? e.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Restituisce il nodo in una certa posizione della mappa.
+     *
+     * @param index la posizione del nodo
+     * @return il nodo
+     */
+    public Node getNode(int index) {
+        return nodes.get(index);
+    }
+
+    /**
+     * Restituisce i nodi della mappa in ordine di posizione.
+     *
+     * @return una lista non modificabile di nodi
+     */
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < Long.BYTES; i++)
+                h = (h << 8) | (digest[i] & 0xFF);
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
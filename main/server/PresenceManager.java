@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Un PresenceManager tiene traccia degli utenti connessi tramite heartbeat inviati dai client: ogni client invia
+ * periodicamente su UDP un datagramma contenente il proprio token, con un intervallo casuale attorno a
+ * HEARTBEAT_INTERVAL (v. {@link #nextHeartbeatDelay()}) così che gli heartbeat dei client non arrivino tutti insieme.
+ * Un utente è considerato online se ha inviato un heartbeat, o un'altra richiesta autenticata, negli ultimi
+ * PRESENCE_TIMEOUT millisecondi.
+ * <p>
+ * Gli heartbeat vengono ricevuti da più thread, ognuno col proprio DatagramChannel non bloccante legato alla stessa
+ * porta con SO_REUSEPORT, così che il kernel distribuisca i datagrammi tra i canali. Se il sistema non supporta
+ * SO_REUSEPORT viene usato un solo canale. A ogni risveglio del selettore un thread elabora fino a BATCH_SIZE
+ * datagrammi con lo stesso buffer e lo stesso istante, e ogni datagramma aggiorna la sessione corrispondente in tempo
+ * costante e senza allocazioni (v. {@link SessionsManager#touch(int, long)}).
+ * <p>
+ * Il PresenceManager conta gli heartbeat ricevuti, quelli malformati, quelli con un token sconosciuto e quelli scartati
+ * dal kernel per il buffer di ricezione pieno.
+ */
+public class PresenceManager implements Closeable {
+
+    public static final long HEARTBEAT_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+    public static final long PRESENCE_TIMEOUT = HEARTBEAT_INTERVAL * 3;
+    private static final double HEARTBEAT_JITTER = 0.2;
+    private static final int BATCH_SIZE = 1024;
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final Server server;
+    private final int port;
+    private final List<Receiver> receivers = new ArrayList<>();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder unknown = new LongAdder();
+    private volatile boolean closed;
+
+    private class Receiver implements Runnable {
+        final DatagramChannel channel;
+        final Selector selector;
+
+        Receiver(InetSocketAddress address, boolean reusePort) throws IOException {
+            channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePort)
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            channel.bind(address);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Session.TOKEN_BYTES + 1);
+            SessionsManager sessionsManager = server.getSessionsManager();
+            while (!closed) {
+                try {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    long now = System.currentTimeMillis();
+                    for (int i = 0; i < BATCH_SIZE; i++) {
+                        buffer.clear();
+                        if (channel.receive(buffer) == null)
+                            break;
+                        received.increment();
+                        buffer.flip();
+                        if (buffer.remaining() != Session.TOKEN_BYTES)
+                            invalid.increment();
+                        else if (!sessionsManager.touch(buffer.getInt(), now))
+                            unknown.increment();
+                    }
+                } catch (ClosedSelectorException e) {
+                    return;
+                } catch (IOException e) {
+                    if (!closed)
+                        server.getLogger().error("Presence", "error", e.getMessage());
+                }
+            }
+        }
+
+        void close() {
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+
+            }
+        }
+    }
+
+    /**
+     * Crea un PresenceManager in ascolto sull'indirizzo specificato con il numero di thread specificato.
+     *
+     * @param server    il server
+     * @param address   l'indirizzo su cui ricevere gli heartbeat
+     * @param receivers il numero di thread che ricevono gli heartbeat
+     * @throws IOException              se non è possibile aprire i canali
+     * @throws IllegalArgumentException se server o address sono null o receivers < 1
+     */
+    public PresenceManager(Server server, InetSocketAddress address, int receivers) throws IOException {
+        if (server == null || address == null || receivers < 1)
+            throw new IllegalArgumentException();
+        this.server = server;
+        this.port = address.getPort();
+
+        boolean reusePort;
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            reusePort = receivers > 1 && probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+        if (!reusePort)
+            receivers = 1;
+        try {
+            for (int i = 0; i < receivers; i++)
+                this.receivers.add(new Receiver(address, reusePort));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Avvia i thread che ricevono gli heartbeat e ne registra i contatori nelle metriche del server.
+     */
+    public void start() {
+        for (int i = 0; i < receivers.size(); i++) {
+            Thread t = new Thread(receivers.get(i), "presence-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        server.getMetrics().gauge("presence.receivers", this::getReceiversCount);
+        server.getMetrics().gauge("presence.received", this::getReceivedCount);
+        server.getMetrics().gauge("presence.invalid", this::getInvalidCount);
+        server.getMetrics().gauge("presence.unknown", this::getUnknownCount);
+        server.getMetrics().gauge("presence.dropped", this::getDroppedCount);
+    }
+
+    /**
+     * Restituisce l'attesa prima del prossimo heartbeat: HEARTBEAT_INTERVAL con una variazione casuale di ±20%.
+     *
+     * @return l'attesa in millisecondi
+     */
+    public static long nextHeartbeatDelay() {
+        double jitter = ThreadLocalRandom.current().nextDouble(-HEARTBEAT_JITTER, HEARTBEAT_JITTER);
+        return (long) (HEARTBEAT_INTERVAL * (1 + jitter));
+    }
+
+    public int getReceiversCount() {
+        return receivers.size();
+    }
+
+    /**
+     * Restituisce il numero di datagrammi ricevuti.
+     *
+     * @return il numero di datagrammi ricevuti
+     */
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    /**
+     * Restituisce il numero di datagrammi ricevuti che non contenevano un token.
+     *
+     * @return il numero di datagrammi malformati
+     */
+    public long getInvalidCount() {
+        return invalid.sum();
+    }
+
+    /**
+     * Restituisce il numero di heartbeat ricevuti con un token che non corrisponde a nessuna sessione aperta.
+     *
+     * @return il numero di heartbeat con token sconosciuto
+     */
+    public long getUnknownCount() {
+        return unknown.sum();
+    }
+
+    /**
+     * Restituisce il numero di datagrammi diretti alla porta degli heartbeat scartati dal kernel, letto da
+     * /proc/net/udp e /proc/net/udp6. Sui sistemi che non li forniscono restituisce -1.
+     *
+     * @return il numero di datagrammi scartati oppure -1
+     */
+    public long getDroppedCount() {
+        long dropped = -1;
+        for (String file : new String[]{"/proc/net/udp", "/proc/net/udp6"})
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                reader.readLine();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split("\\s+");
+                    String local = fields[1];
+                    if (Integer.parseInt(local.substring(local.indexOf(':') + 1), 16) == port)
+                        dropped = Math.max(dropped, 0) + Long.parseLong(fields[fields.length - 1]);
+                }
+            } catch (IOException | RuntimeException e) {
+
+            }
+        return dropped;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Receiver r : receivers)
+            r.close();
+    }
+
+}
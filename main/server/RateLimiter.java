@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Un RateLimiter limita la frequenza delle richieste autenticate più costose. Ogni tipo di richiesta può avere un
+ * budget, cioè un numero di richieste al secondo e un numero di richieste consecutive (burst) che ogni utente può
+ * inviare; ogni indirizzo IP ha un budget ADDRESS_MULTIPLIER volte più grande, che limita i client che usano molti
+ * utenti. Le richieste senza budget non vengono limitate.
+ * <p>
+ * Ogni coppia utente o indirizzo e tipo di richiesta ha un secchio di gettoni, rappresentato dall'istante in cui il
+ * secchio tornerà pieno: una richiesta consuma un gettone spostando in avanti quell'istante, se il secchio non è vuoto.
+ * Lo stato di un secchio è un solo AtomicLong aggiornato con compareAndSet, per cui le richieste concorrenti non
+ * vengono mai bloccate. I secchi pieni vengono rimossi periodicamente.
+ */
+public class RateLimiter implements Closeable {
+
+    public static final int ADDRESS_MULTIPLIER = 10;
+    private static final int MAX_REQUEST_TYPE = 32;
+    private static final long CLEANUP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final Budget[] userBudgets = new Budget[MAX_REQUEST_TYPE];
+    private final Budget[] addressBudgets = new Budget[MAX_REQUEST_TYPE];
+    private final Timer cleanupTimer = new Timer("rate-limiter-cleanup", true);
+
+    /**
+     * Il budget di un tipo di richiesta e i secchi di chi lo usa.
+     */
+    private static class Budget {
+        final long interval;
+        final long capacity;
+        final ConcurrentHashMap<Object, AtomicLong> buckets = new ConcurrentHashMap<>();
+        final LongAdder throttled = new LongAdder();
+
+        Budget(double perSecond, int burst) {
+            interval = Math.max((long) (TimeUnit.SECONDS.toNanos(1) / perSecond), 1);
+            capacity = interval * burst;
+        }
+
+        boolean tryAcquire(Object key, long now) {
+            AtomicLong bucket = buckets.get(key);
+            if (bucket == null)
+                bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+            while (true) {
+                long fullAt = bucket.get();
+                long next = Math.max(fullAt, now) + interval;
+                if (next - now > capacity) {
+                    throttled.increment();
+                    return false;
+                }
+                if (bucket.compareAndSet(fullAt, next))
+                    return true;
+            }
+        }
+
+        /**
+         * Restituisce un gettone consumato da tryAcquire.
+         */
+        void release(Object key) {
+            AtomicLong bucket = buckets.get(key);
+            if (bucket != null)
+                bucket.addAndGet(-interval);
+        }
+
+        void removeFullBuckets(long now) {
+            buckets.values().removeIf(b -> b.get() - now <= 0);
+        }
+    }
+
+    /**
+     * Crea un RateLimiter con i budget di default: 5 ricerche al secondo (burst di 20), 2 suggerimenti al secondo
+     * (burst di 10), una pubblicazione al secondo (burst di 10) e una richiesta di amicizia ogni 2 secondi (burst di
+     * 5).
+     */
+    public RateLimiter() {
+        setBudget(RequestTypes.FIND_USER, 5, 20);
+        setBudget(RequestTypes.SUGGEST_FRIENDS, 2, 10);
+        setBudget(RequestTypes.PUBLISH, 1, 10);
+        setBudget(RequestTypes.FORWARD_FRIEND_REQUEST, 0.5, 5);
+        cleanupTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                removeFullBuckets();
+            }
+        }, CLEANUP_INTERVAL, CLEANUP_INTERVAL);
+    }
+
+    /**
+     * Imposta il budget di un tipo di richiesta, sostituendo quello precedente.
+     *
+     * @param requestType il tipo di richiesta (v. {@link RequestTypes})
+     * @param perSecond   il numero di richieste al secondo concesse a un utente
+     * @param burst       il numero di richieste consecutive concesse a un utente
+     * @throws IllegalArgumentException se requestType non è un tipo valido, perSecond non è positivo o burst < 1
+     */
+    public void setBudget(int requestType, double perSecond, int burst) {
+        if (requestType < 0 || requestType >= MAX_REQUEST_TYPE || !(perSecond > 0) || burst < 1)
+            throw new IllegalArgumentException();
+        userBudgets[requestType] = new Budget(perSecond, burst);
+        addressBudgets[requestType] = new Budget(perSecond * ADDRESS_MULTIPLIER, burst * ADDRESS_MULTIPLIER);
+    }
+
+    /**
+     * Rimuove il budget di un tipo di richiesta, che non verrà più limitato.
+     *
+     * @param requestType il tipo di richiesta (v. {@link RequestTypes})
+     * @throws IllegalArgumentException se requestType non è un tipo valido
+     */
+    public void removeBudget(int requestType) {
+        if (requestType < 0 || requestType >= MAX_REQUEST_TYPE)
+            throw new IllegalArgumentException();
+        userBudgets[requestType] = null;
+        addressBudgets[requestType] = null;
+    }
+
+    /**
+     * Indica se un tipo di richiesta ha un budget.
+     *
+     * @param requestType il tipo di richiesta
+     * @return true se le richieste di quel tipo vengono limitate
+     */
+    public boolean hasBudget(int requestType) {
+        return requestType >= 0 && requestType < MAX_REQUEST_TYPE && userBudgets[requestType] != null;
+    }
+
+    /**
+     * Consuma un gettone dai secchi dell'utente e dell'indirizzo per una richiesta del tipo specificato. I gettoni
+     * vengono consumati solo se entrambi i secchi ne hanno: un utente che ha esaurito il proprio budget non consuma
+     * quello dell'indirizzo, condiviso con gli altri utenti, e un gettone dell'utente preso quando il secchio
+     * dell'indirizzo è vuoto viene restituito.
+     *
+     * @param requestType il tipo di richiesta
+     * @param username    l'utente che invia la richiesta
+     * @param address     l'indirizzo da cui arriva la richiesta
+     * @return true se la richiesta può essere servita, false se deve essere rifiutata
+     */
+    public boolean tryAcquire(int requestType, String username, InetAddress address) {
+        if (requestType < 0 || requestType >= MAX_REQUEST_TYPE)
+            return true;
+        Budget userBudget = userBudgets[requestType];
+        Budget addressBudget = addressBudgets[requestType];
+        if (userBudget == null || addressBudget == null)
+            return true;
+        long now = System.nanoTime();
+        if (!userBudget.tryAcquire(username, now))
+            return false;
+        if (addressBudget.tryAcquire(address, now))
+            return true;
+        userBudget.release(username);
+        return false;
+    }
+
+    /**
+     * Restituisce il numero di richieste del tipo specificato rifiutate per aver superato il budget di un utente o di
+     * un indirizzo.
+     *
+     * @param requestType il tipo di richiesta
+     * @return il numero di richieste rifiutate, 0 se il tipo non ha un budget
+     */
+    public long getThrottledCount(int requestType) {
+        if (requestType < 0 || requestType >= MAX_REQUEST_TYPE)
+            return 0;
+        Budget userBudget = userBudgets[requestType];
+        Budget addressBudget = addressBudgets[requestType];
+        return (userBudget == null ? 0 : userBudget.throttled.sum())
+                + (addressBudget == null ? 0 : addressBudget.throttled.sum());
+    }
+
+    /**
+     * Rimuove i secchi pieni, equivalenti a quelli non ancora creati. Un secchio rimosso mentre viene usato può
+     * regalare al più un gettone.
+     */
+    private void removeFullBuckets() {
+        long now = System.nanoTime();
+        for (int i = 0; i < MAX_REQUEST_TYPE; i++) {
+            Budget userBudget = userBudgets[i];
+            Budget addressBudget = addressBudgets[i];
+            if (userBudget != null)
+                userBudget.removeFullBuckets(now);
+            if (addressBudget != null)
+                addressBudget.removeFullBuckets(now);
+        }
+    }
+
+    @Override
+    public void close() {
+        cleanupTimer.cancel();
+    }
+
+}
@@ -6,6 +6,7 @@ package server;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface RemoteNotificationReceiver extends Remote {
 
@@ -18,6 +19,14 @@ public interface RemoteNotificationReceiver extends Remote {
      */
     void notifyPost(String author, String content) throws RemoteException;
 
+    /**
+     * Un metodo invocato dal server per consegnare un gruppo di richieste di amicizia ricevute.
+     *
+     * @param senders i nomi degli utenti che hanno chiesto l'amicizia
+     * @throws RemoteException
+     */
+    void notifyFriendRequests(List<String> senders) throws RemoteException;
+
     /**
      * Restituisce il token dell'utente che vuole essere notificato di nuovi contenuti.
      *
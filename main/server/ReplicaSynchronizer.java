@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import socialnetwork.Post;
+import socialnetwork.User;
+import socialnetwork.UserNotFoundException;
+import socialnetwork.UsersNetwork;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Un ReplicaSynchronizer mantiene una replica in sola lettura di un server primario: si connette alla porta di
+ * replicazione del primario (v. {@link ReplicationManager}), riceve uno snapshot se necessario e applica le modifiche
+ * alla UsersNetwork e alle sessioni del server locale. Se la connessione si interrompe viene ristabilita riprendendo
+ * dall'ultima posizione applicata. Se un evento non può essere applicato la replica chiede un nuovo snapshot.
+ * <p>
+ * La replica è considerata aggiornata se ha ricevuto dati dal primario negli ultimi MAX_STALENESS millisecondi; il
+ * primario invia un heartbeat ogni {@link ReplicationManager#HEARTBEAT_INTERVAL} millisecondi anche in assenza di
+ * modifiche.
+ */
+public class ReplicaSynchronizer implements Runnable, Closeable {
+
+    public static final long MAX_STALENESS = TimeUnit.SECONDS.toMillis(5);
+    private static final int RECONNECT_DELAY = (int) TimeUnit.SECONDS.toMillis(2);
+
+    private final Server server;
+    private final InetSocketAddress primaryAddress;
+    private long epoch;
+    private long lastSeq = -1;
+    private long idempotentUntilSeq = -1;
+    private volatile long lastContact;
+    private volatile boolean closed;
+    private Socket socket;
+
+    /**
+     * Crea un ReplicaSynchronizer per il server locale.
+     *
+     * @param server         il server replica
+     * @param primaryAddress l'indirizzo della porta di replicazione del primario
+     */
+    public ReplicaSynchronizer(Server server, InetSocketAddress primaryAddress) {
+        if (server == null || primaryAddress == null)
+            throw new IllegalArgumentException();
+        this.server = server;
+        this.primaryAddress = primaryAddress;
+    }
+
+    /**
+     * Indica se la replica è in ritardo rispetto al primario più del limite MAX_STALENESS, o non ha ancora ricevuto
+     * uno snapshot.
+     *
+     * @return true se la replica non deve servire letture
+     */
+    public boolean isStale() {
+        return lastSeq < 0 || System.currentTimeMillis() - lastContact > MAX_STALENESS;
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            try {
+                socket = new Socket();
+                socket.connect(primaryAddress, RECONNECT_DELAY);
+                socket.setSoTimeout((int) (ReplicationManager.HEARTBEAT_INTERVAL * 5));
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeLong(epoch);
+                out.writeLong(lastSeq);
+                out.flush();
+                server.getLogger().info("Connected to primary", "primary", primaryAddress);
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (!closed)
+                    applyEvent(in);
+            } catch (IOException | ClassNotFoundException e) {
+                if (closed)
+                    break;
+                server.getLogger().error("Replication failed", "primary", primaryAddress, "error", e.getMessage());
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException e1) {
+                    break;
+                }
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+
+                }
+            }
+        }
+    }
+
+    private void applyEvent(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte type = in.readByte();
+        lastContact = System.currentTimeMillis();
+        if (type == ReplicationManager.HEARTBEAT)
+            return;
+        if (type == ReplicationManager.SNAPSHOT) {
+            applySnapshot(in);
+            return;
+        }
+
+        long seq = in.readLong();
+        UsersNetwork usersNetwork = server.getUsersNetwork();
+        SessionsManager sessionsManager = server.getSessionsManager();
+        try {
+            switch (type) {
+                case ReplicationManager.EVENT_USER:
+                    usersNetwork.addUser(in.readUTF(), in.readUTF());
+                    break;
+                case ReplicationManager.EVENT_REMOTE_USER:
+                    usersNetwork.getOrAddRemoteUser(in.readUTF());
+                    break;
+                case ReplicationManager.EVENT_FRIENDSHIP:
+                    usersNetwork.addFriendship(usersNetwork.getUser(in.readUTF()), usersNetwork.getUser(in.readUTF()));
+                    break;
+                case ReplicationManager.EVENT_SUBSCRIPTION:
+                    usersNetwork.addSubscription(usersNetwork.getUser(in.readUTF()), usersNetwork.getUser(in.readUTF()));
+                    break;
+                case ReplicationManager.EVENT_POST: {
+                    User author = usersNetwork.getUser(in.readUTF());
+                    Date date = new Date(in.readLong());
+                    String content = in.readUTF();
+                    if (seq > idempotentUntilSeq || !containsPost(author, date, content))
+                        usersNetwork.addPost(author, content, date);
+                    break;
+                }
+                case ReplicationManager.EVENT_SESSION_OPENED: {
+                    User user = usersNetwork.getUser(in.readUTF());
+                    byte[] token = new byte[Session.TOKEN_BYTES];
+                    in.readFully(token);
+                    long startTime = in.readLong();
+                    if (user != null)
+                        sessionsManager.restoreSession(user, token, startTime);
+                    break;
+                }
+                case ReplicationManager.EVENT_SESSION_CLOSED: {
+                    User user = usersNetwork.getUser(in.readUTF());
+                    if (user != null)
+                        sessionsManager.logout(user);
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown replication event " + type);
+            }
+        } catch (UserNotFoundException e) {
+            // La replica non è più coerente col primario: invece di saltare l'evento si riconnette chiedendo uno
+            // snapshot, e nel frattempo non serve letture
+            lastSeq = -1;
+            throw new IOException("Replication event " + seq + " refers to an unknown user, resynchronizing");
+        }
+        lastSeq = seq;
+    }
+
+    /**
+     * Verifica se un post è già presente nella replica. Serve solo per gli eventi registrati durante uno snapshot,
+     * che possono esservi già contenuti.
+     */
+    private boolean containsPost(User author, Date date, String content) {
+        if (author == null)
+            return false;
+        for (Post p : author.getPosts())
+            if (p.getDate().equals(date) && p.getContent().equals(content))
+                return true;
+        return false;
+    }
+
+    private void applySnapshot(DataInputStream in) throws IOException, ClassNotFoundException {
+        long snapshotEpoch = in.readLong();
+        long startSeq = in.readLong();
+        long endSeq = in.readLong();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        UsersNetwork usersNetwork;
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            usersNetwork = (UsersNetwork) ois.readObject();
+        }
+
+        SessionsManager sessionsManager = server.getSessionsManager();
+        sessionsManager.clear();
+        int sessions = in.readInt();
+        for (int i = 0; i < sessions; i++) {
+            User user = usersNetwork.getUser(in.readUTF());
+            byte[] token = new byte[Session.TOKEN_BYTES];
+            in.readFully(token);
+            long startTime = in.readLong();
+            if (user != null)
+                sessionsManager.restoreSession(user, token, startTime);
+        }
+
+        server.setUsersNetwork(usersNetwork);
+        epoch = snapshotEpoch;
+        lastSeq = startSeq;
+        idempotentUntilSeq = endSeq;
+        server.getLogger().info("Snapshot received", "users", usersNetwork.size(), "position", startSeq);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (socket != null)
+                socket.close();
+        } catch (IOException e) {
+
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import socialnetwork.Post;
+import socialnetwork.User;
+import socialnetwork.UsersNetworkListener;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Un ReplicationManager rende un server primario: registra in un log circolare le modifiche alla UsersNetwork e alle
+ * sessioni, e le invia alle repliche in sola lettura (v. {@link ReplicaSynchronizer}) che si connettono alla porta di
+ * replicazione del nodo.
+ * <p>
+ * Una replica che si connette comunica l'ultima posizione del log che ha applicato. Se quella posizione è ancora nel
+ * log riceve solo le modifiche successive, altrimenti riceve prima uno snapshot della rete e delle sessioni insieme
+ * all'intervallo di posizioni del log registrate durante lo snapshot. Lo snapshot non blocca le modifiche: gli eventi
+ * di quell'intervallo possono essere già contenuti nello snapshot, e la replica li applica in modo idempotente.
+ */
+public class ReplicationManager implements UsersNetworkListener, Closeable {
+
+    static final byte EVENT_USER = 1;
+    static final byte EVENT_REMOTE_USER = 2;
+    static final byte EVENT_FRIENDSHIP = 3;
+    static final byte EVENT_SUBSCRIPTION = 4;
+    static final byte EVENT_POST = 5;
+    static final byte EVENT_SESSION_OPENED = 6;
+    static final byte EVENT_SESSION_CLOSED = 7;
+    static final byte HEARTBEAT = 8;
+    static final byte SNAPSHOT = 9;
+    static final long HEARTBEAT_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    private static final int LOG_CAPACITY = 1 << 17;
+    private static final int MAX_BATCH = 1024;
+
+    private final Server server;
+    private final long epoch = new Random().nextLong();
+    private final byte[][] log = new byte[LOG_CAPACITY][];
+    private long lastSeq;
+    private ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    private interface EventWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    public ReplicationManager(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Si mette in ascolto delle repliche sulla porta specificata. Ogni replica viene servita da un thread dedicato.
+     *
+     * @param port la porta di replicazione
+     * @throws IOException se non è possibile aprire la porta
+     */
+    public void start(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+        Thread acceptThread = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread t = new Thread(() -> serveReplica(socket), "replication-sender");
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e) {
+                    if (!closed)
+                        server.getLogger().error("Replica connection", "error", e.getMessage());
+                }
+            }
+        }, "replication-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Registra nel log l'apertura di una sessione, insieme alla sua data di creazione, così che la replica la faccia
+     * scadere insieme al primario.
+     *
+     * @param session la sessione
+     */
+    void sessionOpened(Session session) {
+        append(EVENT_SESSION_OPENED, out -> {
+            out.writeUTF(session.getUser().getUsername());
+            out.write(session.getToken());
+            out.writeLong(session.getStartDate().getTime());
+        });
+    }
+
+    /**
+     * Registra nel log la chiusura di una sessione.
+     *
+     * @param user l'utente della sessione
+     */
+    void sessionClosed(User user) {
+        append(EVENT_SESSION_CLOSED, out -> out.writeUTF(user.getUsername()));
+    }
+
+    @Override
+    public void userAdded(User user) {
+        if (user.isRemote())
+            append(EVENT_REMOTE_USER, out -> out.writeUTF(user.getUsername()));
+        else
+            append(EVENT_USER, out -> {
+                out.writeUTF(user.getUsername());
+                out.writeUTF(user.getPassword());
+            });
+    }
+
+    @Override
+    public void friendshipAdded(User user1, User user2) {
+        append(EVENT_FRIENDSHIP, out -> {
+            out.writeUTF(user1.getUsername());
+            out.writeUTF(user2.getUsername());
+        });
+    }
+
+    @Override
+    public void subscriptionAdded(User follower, User followed) {
+        append(EVENT_SUBSCRIPTION, out -> {
+            out.writeUTF(follower.getUsername());
+            out.writeUTF(followed.getUsername());
+        });
+    }
+
+    @Override
+    public void postAdded(Post post) {
+        append(EVENT_POST, out -> {
+            out.writeUTF(post.getAuthor().getUsername());
+            out.writeLong(post.getDate().getTime());
+            out.writeUTF(post.getContent());
+        });
+    }
+
+    /**
+     * Codifica un evento e lo aggiunge al log. L'evento è codificato come tipo, posizione nel log e parametri. Gli
+     * eventi della rete vengono aggiunti mentre la UsersNetwork possiede i lock che proteggono la modifica (v.
+     * {@link UsersNetworkListener}), per cui un evento riceve sempre una posizione successiva a quella degli eventi da
+     * cui dipende.
+     */
+    private void append(byte type, EventWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeLong(0);
+            writer.write(out);
+        } catch (IOException e) {
+            return;
+        }
+        byte[] event = bytes.toByteArray();
+
+        synchronized (this) {
+            long seq = ++lastSeq;
+            for (int i = 0; i < Long.BYTES; i++)
+                event[1 + i] = (byte) (seq >>> (56 - 8 * i));
+            log[(int) (seq % LOG_CAPACITY)] = event;
+            notifyAll();
+        }
+    }
+
+    private void serveReplica(Socket socket) {
+        String replica = socket.getRemoteSocketAddress().toString();
+        server.getLogger().info("Replica connected", "replica", replica);
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            long replicaEpoch = in.readLong();
+            long next = in.readLong() + 1;
+
+            List<byte[]> batch = new ArrayList<>();
+            boolean needsSnapshot = replicaEpoch != epoch;
+            while (!closed) {
+                synchronized (this) {
+                    if (needsSnapshot || next < 1 || next > lastSeq + 1 || next <= lastSeq - LOG_CAPACITY)
+                        needsSnapshot = true;
+                    else {
+                        if (next > lastSeq)
+                            wait(HEARTBEAT_INTERVAL);
+                        for (long seq = next; seq <= lastSeq && batch.size() < MAX_BATCH; seq++)
+                            batch.add(log[(int) (seq % LOG_CAPACITY)]);
+                    }
+                }
+
+                if (needsSnapshot) {
+                    next = sendSnapshot(out) + 1;
+                    needsSnapshot = false;
+                    continue;
+                }
+                if (batch.isEmpty())
+                    out.writeByte(HEARTBEAT);
+                for (byte[] event : batch)
+                    out.write(event);
+                out.flush();
+                next += batch.size();
+                batch.clear();
+            }
+        } catch (IOException | InterruptedException e) {
+            server.getLogger().info("Replica disconnected", "replica", replica);
+        }
+    }
+
+    /**
+     * Invia uno snapshot della rete e delle sessioni, preceduto dalle posizioni del log all'inizio e alla fine dello
+     * snapshot.
+     *
+     * @return la posizione del log all'inizio dello snapshot
+     */
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        long startSeq;
+        synchronized (this) {
+            startSeq = lastSeq;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(server.getUsersNetwork());
+        oos.close();
+        Collection<Session> sessions = server.getSessionsManager().getSessions();
+
+        long endSeq;
+        synchronized (this) {
+            endSeq = lastSeq;
+        }
+
+        out.writeByte(SNAPSHOT);
+        out.writeLong(epoch);
+        out.writeLong(startSeq);
+        out.writeLong(endSeq);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        out.writeInt(sessions.size());
+        for (Session s : sessions) {
+            out.writeUTF(s.getUser().getUsername());
+            out.write(s.getToken());
+            out.writeLong(s.getStartDate().getTime());
+        }
+        out.flush();
+        return startSeq;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            if (serverSocket != null)
+                serverSocket.close();
+        } catch (IOException e) {
+
+        }
+    }
+
+}
@@ -4,6 +4,10 @@
 
 package server;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Locale;
+
 public class RequestTypes {
 
     public static final byte REGISTER = 0;
@@ -15,5 +19,38 @@ public class RequestTypes {
     public static final byte PUBLISH = 6;
     public static final byte ACCEPT_FRIEND_REQUEST = 7;
     public static final byte DENY_FRIEND_REQUEST = 8;
+    public static final byte SUGGEST_FRIENDS = 9;
+
+    // Primo byte di una connessione persistente, su cui seguono più richieste (v. ServerTask)
+    public static final byte PERSISTENT = 10;
+
+    // Richieste scambiate tra i nodi di un cluster (v. ClusterManager)
+    public static final byte PEER_FIND_USER = 20;
+    public static final byte PEER_FRIEND_REQUEST = 21;
+    public static final byte PEER_FRIENDSHIP = 22;
+    public static final byte PEER_SUBSCRIBE = 23;
+    public static final byte PEER_POST = 24;
+
+    private static final String[] NAMES = new String[32];
+
+    static {
+        for (Field f : RequestTypes.class.getFields())
+            if (f.getType() == byte.class && Modifier.isStatic(f.getModifiers()))
+                try {
+                    NAMES[f.getByte(null)] = f.getName().toLowerCase(Locale.ROOT);
+                } catch (IllegalAccessException e) {
+
+                }
+    }
+
+    /**
+     * Restituisce il nome di un tipo di richiesta in minuscolo, ad esempio find_user.
+     *
+     * @param type il tipo di richiesta
+     * @return il nome, oppure null se il tipo non esiste
+     */
+    public static String nameOf(int type) {
+        return type >= 0 && type < NAMES.length ? NAMES[type] : null;
+    }
 
 }
@@ -12,5 +12,10 @@ public class ResponseTypes {
     public static final byte INVALID_CREDENTIALS = 3;
     public static final byte USER_OFFLINE = 4;
     public static final byte BAD_REQUEST = 5;
+    public static final byte WRONG_PARTITION = 6;
+    public static final byte REPLICA_STALE = 7;
+    public static final byte BUSY = 8;
+    public static final byte THROTTLED = 9;
+    public static final byte READ_ONLY_REPLICA = 10;
 
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Una coda limitata senza lock per molti produttori e consumatori, su un array circolare. Ogni cella ha un numero di
+ * sequenza che indica se è libera per il produttore del giro corrente o piena per il consumatore del giro corrente:
+ * produttori e consumatori prenotano una cella con un compareAndSet sulla posizione di coda o di testa e la rilasciano
+ * aggiornandone la sequenza, per cui nessuno attende un lock. Se la coda è piena {@link #offer(Object)} fallisce
+ * subito, mentre {@link #forceOffer(Object)} scarta gli elementi più vecchi.
+ * <p>
+ * Viene usata dal {@link server.log.Logger} per passare gli eventi al thread di scrittura e dal client per accodare i
+ * post notificati dal server.
+ *
+ * @param <E> il tipo degli elementi
+ */
+public final class RingBuffer<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Crea un RingBuffer.
+     *
+     * @param capacity la capacità minima, viene arrotondata alla potenza di 2 successiva
+     * @throws IllegalArgumentException se capacity non è compresa tra 1 e 2^30
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException();
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Inserisce un elemento, può essere invocato da qualsiasi thread.
+     *
+     * @param e l'elemento, non null
+     * @return false se la coda è piena
+     */
+    public boolean offer(E e) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, e);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0)
+                return false;
+            else
+                position = tail.get();
+        }
+    }
+
+    /**
+     * Inserisce un elemento, estraendo e scartando gli elementi più vecchi finché non c'è posto. Può essere invocato
+     * da qualsiasi thread.
+     *
+     * @param e l'elemento, non null
+     * @return il numero di elementi scartati
+     */
+    public int forceOffer(E e) {
+        int dropped = 0;
+        while (!offer(e))
+            if (poll() != null)
+                dropped++;
+        return dropped;
+    }
+
+    /**
+     * Estrae l'elemento più vecchio, può essere invocato da qualsiasi thread.
+     *
+     * @return l'elemento, oppure null se la coda è vuota o il prossimo elemento non è ancora stato pubblicato
+     */
+    public E poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E e = elements.get(index);
+                    elements.lazySet(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return e;
+                }
+                position = head.get();
+            } else if (difference < 0)
+                return null;
+            else
+                position = head.get();
+        }
+    }
+
+    /**
+     * Estrae tutti gli elementi presenti, dal più vecchio al più recente, e li aggiunge a una collezione.
+     *
+     * @param collection la collezione
+     * @return il numero di elementi estratti
+     */
+    public int drainTo(Collection<? super E> collection) {
+        int count = 0;
+        E e;
+        while ((e = poll()) != null) {
+            collection.add(e);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Restituisce il numero di elementi inseriti dalla creazione della coda.
+     *
+     * @return il numero di inserimenti
+     */
+    public long getProducedCount() {
+        return tail.get();
+    }
+
+    /**
+     * Restituisce il numero di elementi estratti dalla creazione della coda.
+     *
+     * @return il numero di estrazioni
+     */
+    public long getConsumedCount() {
+        return head.get();
+    }
+
+    public int size() {
+        return (int) Math.max(tail.get() - head.get(), 0);
+    }
+
+}
@@ -4,44 +4,102 @@
 
 package server;
 
+import server.log.Level;
+import server.log.Logger;
+import server.log.PrintStreamSink;
+import server.log.RollingFileSink;
+import server.metrics.Counter;
+import server.metrics.Histogram;
+import server.metrics.MetricsEndpoint;
+import server.metrics.MetricsRegistry;
+import server.trace.Tracer;
 import socialnetwork.FriendRequestsManager;
+import socialnetwork.FriendSuggestions;
 import socialnetwork.UsersNetwork;
 
+import javax.management.JMException;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 public class Server implements Closeable {
 
     // Logica del programma
     private NotificationManager notificationManager;
-    private UsersNetwork usersNetwork = new UsersNetwork();
+    private volatile UsersNetwork usersNetwork = new UsersNetwork();
     private SessionsManager sessionsManager = new SessionsManager();
     private FriendRequestsManager friendRequestManager;
-    private TimerTask keepAliveTimerTask;
+    private final ClusterManager clusterManager;
+    private final PartitionMap.Node localNode;
+    private ReplicationManager replicationManager;
+    private FriendSuggestions friendSuggestions;
+    private FriendRequestsDeliveryManager friendRequestsDeliveryManager;
+    private ReplicaSynchronizer replicaSynchronizer;
+    private PresenceManager presenceManager;
+    private final RateLimiter rateLimiter = new RateLimiter();
+    private InetAddress presenceAddress;
+    private int presenceReceivers = Runtime.getRuntime().availableProcessors();
     private TimerTask backupTask;
-    private final PrintStream console;
     private boolean closed;
     private boolean usersNetworkDidChange;
     private final boolean backupEnabled;
+    private volatile long lastBackupSize;
     public static final long MAX_FRIEND_REQUEST_LIFE = TimeUnit.DAYS.toMillis(3);
 
+    // Metriche
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final Histogram[] requestLatencies = new Histogram[32];
+    private final Counter openConnections = metrics.counter("connections.open");
+    private final Counter replicaRejections = metrics.counter("replica.rejected");
+    private int metricsPort;
+    private MetricsEndpoint metricsEndpoint;
+
+    // Log
+    private final Logger logger = new Logger();
+    private final Tracer tracer = new Tracer(logger);
+
+    // Esecuzione delle richieste
+    public static final int DEFAULT_MAX_CONCURRENT_TASKS = 10_000;
+    private ExecutionMode executionMode = ExecutionMode.POOL;
+    private int maxConcurrentTasks = DEFAULT_MAX_CONCURRENT_TASKS;
+    private int queueCapacity = AdmissionController.DEFAULT_QUEUE_CAPACITY;
+    private AdmissionController admissionController;
+
+    /**
+     * I modi in cui il server può eseguire i ServerTask (v. {@link #setExecutionMode(ExecutionMode, int)}).
+     */
+    public enum ExecutionMode {
+        /**
+         * Un pool di al più 25 thread per processore: le connessioni che arrivano quando tutti i thread sono occupati
+         * attendono in una coda limitata, in ordine di priorità, e quando la coda è piena vengono scartate con la
+         * risposta BUSY (v. {@link AdmissionController}).
+         */
+        POOL,
+        /**
+         * Un nuovo thread per ogni connessione, un virtual thread se la JVM li supporta. Il numero di connessioni
+         * servite contemporaneamente è limitato da un semaforo: quando è raggiunto il limite il server smette di
+         * accettare connessioni finché una non termina.
+         */
+        THREAD_PER_TASK
+    }
+
     // Connessione di rete
     private ServerSocket serverSocket;
-    private InetAddress multicastAddress;
-    private MulticastSocket keepAliveRequestSocket;
-    private DatagramSocket keepAliveResponseSocket;
     public static final int SERVER_PORT = 11234;
-    public static final int KEEP_ALIVE_TIME = 10000;
     public static final int KEEP_ALIVE_RESPONSE_PORT = 11236;
-    public static final int KEEP_ALIVE_REQUEST_PORT = 11235;
-    public static final String KEEP_ALIVE_REQUEST_MULTICAST_ADDRESS = "239.255.123.43";
+    public static final int REPLICATION_PORT = 11237;
 
     /**
      * Crea un nuovo oggetto Server con un PrintStream personalizzato su cui verranno scritti i messaggi di log.
@@ -50,24 +108,74 @@ public class Server implements Closeable {
      * @param backupEnabled true se devono essere salvati e ripristinati i backup
      */
     public Server(PrintStream console, boolean backupEnabled) {
+        this(console, backupEnabled, standaloneMap(), 0);
+    }
+
+    /**
+     * Crea un nuovo oggetto Server che fa parte di un cluster. Il server gestisce solo gli utenti che la PartitionMap
+     * assegna al nodo nodeIndex, e usa le porte di quel nodo.
+     *
+     * @param console       il PrintStream su cui verranno scritti i messaggi di log, può essere null
+     * @param backupEnabled true se devono essere salvati e ripristinati i backup
+     * @param partitionMap  la mappa dei nodi del cluster
+     * @param nodeIndex     la posizione di questo server nella mappa
+     * @throws IllegalArgumentException se nodeIndex non è una posizione valida della mappa
+     */
+    public Server(PrintStream console, boolean backupEnabled, PartitionMap partitionMap, int nodeIndex) {
+        if (partitionMap == null || nodeIndex < 0 || nodeIndex >= partitionMap.size())
+            throw new IllegalArgumentException();
+        this.backupEnabled = backupEnabled;
+        if (console != null)
+            logger.addSink(new PrintStreamSink(console));
+        this.localNode = partitionMap.getNode(nodeIndex);
+        this.clusterManager = new ClusterManager(this, partitionMap, nodeIndex);
+        usersNetwork.setLockWaitListener(tracer::lockWait);
+        for (int i = 0; i < requestLatencies.length; i++)
+            if (RequestTypes.nameOf(i) != null && i != RequestTypes.PERSISTENT)
+                requestLatencies[i] = metrics.histogram("requests." + RequestTypes.nameOf(i) + ".latency");
+    }
+
+    private static PartitionMap standaloneMap() {
         try {
-            multicastAddress = InetAddress.getByName(KEEP_ALIVE_REQUEST_MULTICAST_ADDRESS);
-        } catch (Exception e) {
-            e.printStackTrace();
+            return PartitionMap.singleNode("localhost", SERVER_PORT);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
         }
-        this.backupEnabled = backupEnabled;
-        this.console = console;
     }
 
-    void log(String s) {
-        if (console != null)
-            console.println(s);
+    /**
+     * Restituisce il Logger del server, a cui si possono aggiungere altre destinazioni dei messaggi oltre al
+     * PrintStream passato al costruttore.
+     *
+     * @return il Logger
+     */
+    public Logger getLogger() {
+        return logger;
+    }
+
+    /**
+     * Restituisce il Tracer che registra le fasi delle richieste servite dal server.
+     *
+     * @return il Tracer
+     */
+    public Tracer getTracer() {
+        return tracer;
     }
 
     UsersNetwork getUsersNetwork() {
         return usersNetwork;
     }
 
+    /**
+     * Sostituisce la rete sociale del server. Usato dalle repliche quando ricevono uno snapshot dal primario.
+     *
+     * @param usersNetwork la nuova rete sociale
+     */
+    void setUsersNetwork(UsersNetwork usersNetwork) {
+        usersNetwork.setLockWaitListener(tracer::lockWait);
+        this.usersNetwork = usersNetwork;
+    }
+
     NotificationManager getNotificationManager() {
         return notificationManager;
     }
@@ -76,62 +184,212 @@ public class Server implements Closeable {
         return sessionsManager;
     }
 
+    FriendRequestsDeliveryManager getFriendRequestsDeliveryManager() {
+        return friendRequestsDeliveryManager;
+    }
+
+    FriendSuggestions getFriendSuggestions() {
+        return friendSuggestions;
+    }
+
     FriendRequestsManager getFriendRequestManager() {
         return friendRequestManager;
     }
 
+    ClusterManager getClusterManager() {
+        return clusterManager;
+    }
+
+    /**
+     * Imposta il segreto condiviso dai nodi del cluster, con cui vengono autenticate le richieste tra nodi (v.
+     * {@link ClusterManager}). Deve essere lo stesso su tutti i nodi; senza segreto i nodi non comunicano tra loro.
+     *
+     * @param secret il segreto, almeno 16 byte
+     * @throws IllegalArgumentException se secret è null o più corto di 16 byte
+     */
+    public void setClusterSecret(byte[] secret) {
+        clusterManager.setSecret(secret);
+    }
+
+    /**
+     * Restituisce il ReplicationManager del server oppure null se il server non è un primario.
+     *
+     * @return il ReplicationManager oppure null
+     */
+    ReplicationManager getReplicationManager() {
+        return replicationManager;
+    }
+
+    /**
+     * Restituisce il ReplicaSynchronizer del server oppure null se il server non è una replica.
+     *
+     * @return il ReplicaSynchronizer oppure null
+     */
+    ReplicaSynchronizer getReplicaSynchronizer() {
+        return replicaSynchronizer;
+    }
+
+    /**
+     * Rende il server un primario: le modifiche alla rete e alle sessioni verranno inviate alle repliche che si
+     * connettono alla porta di replicazione del nodo. Deve essere invocato prima di {@link #startServer()}.
+     */
+    public void enableReplication() {
+        if (replicaSynchronizer != null)
+            throw new IllegalStateException("A replica can't be a primary");
+        replicationManager = new ReplicationManager(this);
+    }
+
+    /**
+     * Rende il server una replica in sola lettura del primario specificato. Una replica serve solo richieste
+     * FIND_USER e GET_FRIENDS. Deve essere invocato prima di {@link #startServer()}.
+     *
+     * @param primaryAddress l'indirizzo della porta di replicazione del primario
+     */
+    public void replicate(InetSocketAddress primaryAddress) {
+        if (replicationManager != null)
+            throw new IllegalStateException("A primary can't be a replica");
+        replicaSynchronizer = new ReplicaSynchronizer(this, primaryAddress);
+    }
+
     /**
-     * Avvia un timer periodico che invia un messaggio di keep-alive su un gruppo multicast. Avvia un thread che ascolta
-     * su una connessione UDP le risposte a tale messaggio da parte dei client e ne aggiorna di conseguenza lo stato.
+     * Restituisce la porta del registro RMI su cui è pubblicato il NotificationManager di questo server.
+     *
+     * @return la porta del registro RMI
+     */
+    int getRegistryPort() {
+        return localNode.getRegistryPort();
+    }
+
+    /**
+     * Avvia i thread che ricevono gli heartbeat dei client sulla porta di keep-alive del nodo e ne aggiornano di
+     * conseguenza lo stato (v. {@link PresenceManager}).
      *
      * @throws IOException
      */
     private void startKeepAliveTask() throws IOException {
-        // Avvia il timer periodico
-        keepAliveRequestSocket = new MulticastSocket();
-        DatagramPacket keepAlivePacket = new DatagramPacket(new byte[]{'?'}, 0, 1, multicastAddress, KEEP_ALIVE_REQUEST_PORT);
-        keepAliveTimerTask = new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    keepAliveRequestSocket.send(keepAlivePacket);
-                } catch (Exception e) {
+        int port = localNode.getKeepAliveResponsePort();
+        InetSocketAddress address = presenceAddress == null ? new InetSocketAddress(port)
+                : new InetSocketAddress(presenceAddress, port);
+        presenceManager = new PresenceManager(this, address, presenceReceivers);
+        presenceManager.start();
+        logger.info("Receiving heartbeats", "address", address, "threads", presenceManager.getReceiversCount());
+    }
 
-                }
-            }
-        };
-        new Timer().scheduleAtFixedRate(keepAliveTimerTask, KEEP_ALIVE_TIME, KEEP_ALIVE_TIME);
+    /**
+     * Imposta l'interfaccia e il numero di thread con cui ricevere gli heartbeat. Deve essere invocato prima di
+     * startServer(). Di default gli heartbeat vengono ricevuti su tutte le interfacce con un thread per processore.
+     *
+     * @param address   l'indirizzo dell'interfaccia, oppure null per tutte le interfacce
+     * @param receivers il numero di thread
+     * @throws IllegalArgumentException se receivers < 1
+     */
+    public void setPresenceOptions(InetAddress address, int receivers) {
+        if (receivers < 1)
+            throw new IllegalArgumentException();
+        this.presenceAddress = address;
+        this.presenceReceivers = receivers;
+    }
 
-        // Avvia il thread che ascolta le risposte
-        keepAliveResponseSocket = new DatagramSocket(null);
-        keepAliveResponseSocket.setReuseAddress(true);
-        keepAliveResponseSocket.bind(new InetSocketAddress("localhost", KEEP_ALIVE_RESPONSE_PORT));
-        DatagramPacket packet = new DatagramPacket(new byte[Session.TOKEN_BYTES], Session.TOKEN_BYTES);
+    public PresenceManager getPresenceManager() {
+        return presenceManager;
+    }
 
-        new Thread() {
-            @Override
-            public void run() {
-                while (true) {
-                    try {
-                        keepAliveResponseSocket.receive(packet);
-                        if (packet.getLength() == Session.TOKEN_BYTES) {
-                            byte[] token = packet.getData();
-                            Session s = sessionsManager.getSession(token);
-                            if (s != null)
-                                s.setLastActionDate(new Date());
-                        }
-                    } catch (Exception e) {
-                        if (closed)
-                            break;
-                    }
-                }
+    /**
+     * Restituisce il RateLimiter che limita le richieste autenticate, i cui budget possono essere modificati prima di
+     * avviare il server.
+     *
+     * @return il RateLimiter
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Restituisce le metriche del server. Le latenze sono in microsecondi.
+     *
+     * @return il MetricsRegistry del server
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Restituisce l'Histogram delle latenze delle richieste del tipo specificato.
+     *
+     * @param requestType il tipo di richiesta
+     * @return l'Histogram, oppure null se il tipo non esiste
+     */
+    Histogram getRequestLatency(int requestType) {
+        return requestType >= 0 && requestType < requestLatencies.length ? requestLatencies[requestType] : null;
+    }
+
+    Counter getOpenConnections() {
+        return openConnections;
+    }
+
+    /**
+     * Restituisce il Counter delle richieste rifiutate con READ_ONLY_REPLICA perché il server è una replica in sola
+     * lettura.
+     *
+     * @return il Counter
+     */
+    Counter getReplicaRejections() {
+        return replicaRejections;
+    }
+
+    /**
+     * Imposta la porta locale su cui esporre le metriche come testo (v. {@link MetricsEndpoint}). Deve essere invocato
+     * prima di startServer(). Di default le metriche vengono esposte solo tramite JMX.
+     *
+     * @param port la porta, oppure 0 per non esporre le metriche come testo
+     * @throws IllegalArgumentException se port non è una porta valida
+     */
+    public void setMetricsPort(int port) {
+        if (port < 0 || port > 65535)
+            throw new IllegalArgumentException();
+        this.metricsPort = port;
+    }
+
+    /**
+     * Registra le metriche dei componenti che non le registrano da sé, quindi le esporta tramite JMX e, se è stata
+     * impostata una porta, come testo.
+     */
+    private void startMetrics() {
+        metrics.gauge("sessions.active", sessionsManager::getSessionsCount);
+        metrics.gauge("sessions.created", sessionsManager::getCreatedCount);
+        metrics.gauge("sessions.closed", sessionsManager::getClosedCount);
+        metrics.gauge("sessions.expired", sessionsManager::getExpiredCount);
+        metrics.gauge("sessions.invalid_tokens", sessionsManager::getInvalidTokensCount);
+        for (int i = 0; i < requestLatencies.length; i++)
+            if (rateLimiter.hasBudget(i)) {
+                int requestType = i;
+                metrics.gauge("ratelimit." + RequestTypes.nameOf(i) + ".throttled",
+                        () -> rateLimiter.getThrottledCount(requestType));
+            }
+        metrics.gauge("users", () -> usersNetwork.size());
+        metrics.gauge("log.queued", logger::getQueueLength);
+        metrics.gauge("log.dropped", logger::getDroppedCount);
+        metrics.gauge("requests.slow", tracer::getSlowCount);
+
+        try {
+            metrics.registerMBean("simplesocial:type=Metrics,port=" + localNode.getPort());
+        } catch (JMException e) {
+            logger.error("Registering metrics MBean", "error", e.getMessage());
+        }
+        if (metricsPort > 0)
+            try {
+                metricsEndpoint = new MetricsEndpoint(metrics, metricsPort);
+                metricsEndpoint.addPage("/traces", tracer::dump);
+                logger.info("Metrics available", "url", "http://localhost:" + metricsPort + "/");
+            } catch (IOException e) {
+                logger.error("Metrics endpoint", "error", e.getMessage());
             }
-        }.start();
     }
 
     /**
      * Avvia un timer che periodicamente effettua il backup della rete sociale quando ci sono cambiamenti, quindi prova
-     * a ripristinare un backup esistente.
+     * a ripristinare un backup esistente. Il backup contiene la rete seguita dalle richieste di amicizia pendenti
+     * (v. {@link FriendRequestsManager#writeRequests(DataOutput)}), che vengono ripristinate insieme alla rete.
      *
      * @return true se è stato ripristinato un backup
      */
@@ -140,34 +398,53 @@ public class Server implements Closeable {
             return false;
 
         boolean loaded = false;
-        final String backupPath = "usersNetwork.ssbk";
+        final String backupPath = clusterManager.isEnabled() ? "usersNetwork-" + localNode.getIndex() + ".ssbk"
+                : "usersNetwork.ssbk";
         if (new File(backupPath).exists())
             try {
                 FileInputStream fileInputStream = new FileInputStream(backupPath);
                 ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);
                 UsersNetwork temp = (UsersNetwork) objectInputStream.readObject();
                 if (temp != null) {
+                    temp.setLockWaitListener(tracer::lockWait);
                     usersNetwork = temp;
                     loaded = true;
+                    friendRequestManager = new FriendRequestsManager(usersNetwork, MAX_FRIEND_REQUEST_LIFE);
+                    int restored = friendRequestManager.readRequests(objectInputStream);
+                    logger.info("Pending friend requests restored", "count", restored);
                 }
+                objectInputStream.close();
+            } catch (EOFException e) {
+                if (loaded)
+                    logger.info("The backup has no pending friend requests");
+                else
+                    logger.error("Restoring a backup", "error", "truncated file");
             } catch (IOException | ClassNotFoundException e) {
-                log("[ERROR] Restoring a backup: " + e.getMessage());
+                logger.error("Restoring a backup", "error", e.getMessage());
             }
 
+        Histogram backupLatency = metrics.histogram("backup.latency");
+        Counter backupsFailed = metrics.counter("backup.failed");
+        metrics.gauge("backup.size", () -> lastBackupSize);
         backupTask = new TimerTask() {
             @Override
             public void run() {
                 if (!usersNetworkDidChange)
                     return;
+                long start = System.nanoTime();
                 try {
                     FileOutputStream fout = new FileOutputStream(backupPath);
                     ObjectOutputStream oos = new ObjectOutputStream(fout);
                     oos.writeObject(usersNetwork);
+                    friendRequestManager.writeRequests(oos);
                     oos.close();
                     fout.close();
                     usersNetworkDidChange = false;
+                    lastBackupSize = new File(backupPath).length();
+                    backupLatency.recordSince(start);
                 } catch (IOException e) {
-
+                    backupsFailed.increment();
+                    logger.error("Backup", "error", e.getMessage());
                 }
             }
         };
@@ -178,32 +455,143 @@ public class Server implements Closeable {
 
     private void startLoop() {
         closed = false;
+        if (executionMode == ExecutionMode.THREAD_PER_TASK) {
+            startThreadPerTaskLoop();
+            return;
+        }
         int processors = Runtime.getRuntime().availableProcessors();
-        ExecutorService threadPool = new ThreadPoolExecutor(processors, processors * 25, 60L, TimeUnit.SECONDS, new SynchronousQueue<>());
+        admissionController = new AdmissionController(this, processors * 25, queueCapacity);
         while (true) {
             try {
-                Socket socket = serverSocket.accept();
-                threadPool.submit(new ServerTask(this, socket));
+                admissionController.admit(serverSocket.accept());
             } catch (IOException e) {
                 if (closed)
                     break;
                 else
-                    log("[ERROR] New connection: " + e.getMessage());
+                    logger.error("New connection", "error", e.getMessage());
             }
         }
-        threadPool.shutdown();
+        admissionController.close();
+    }
+
+    /**
+     * Esegue ogni ServerTask in un nuovo thread, al più maxConcurrentTasks alla volta (v.
+     * {@link ExecutionMode#THREAD_PER_TASK}).
+     */
+    private void startThreadPerTaskLoop() {
+        ExecutorService executor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+        if (executor != null)
+            logger.info("Requests are served by virtual threads");
+        else {
+            logger.info("Virtual threads are not supported, requests are served by platform threads");
+            executor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "server-task");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        Semaphore admission = new Semaphore(maxConcurrentTasks);
+        while (true) {
+            try {
+                admission.acquire();
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    admission.release();
+                    throw e;
+                }
+                executor.execute(() -> {
+                    try {
+                        new ServerTask(this, socket).run();
+                    } finally {
+                        admission.release();
+                    }
+                });
+            } catch (IOException e) {
+                if (closed)
+                    break;
+                else
+                    logger.error("New connection", "error", e.getMessage());
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Restituisce l'AdmissionController del server oppure null se il server non usa {@link ExecutionMode#POOL} o non
+     * è ancora stato avviato.
+     *
+     * @return l'AdmissionController oppure null
+     */
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Imposta il numero massimo di connessioni in attesa in modo POOL (v. {@link AdmissionController}). Deve essere
+     * invocato prima di startServer().
+     *
+     * @param queueCapacity il numero massimo di connessioni in attesa
+     * @throws IllegalArgumentException se queueCapacity < 1
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException();
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Imposta il modo in cui il server esegue le richieste. Deve essere invocato prima di startServer(). Di default il
+     * server usa {@link ExecutionMode#POOL}.
+     *
+     * @param mode               il modo di esecuzione
+     * @param maxConcurrentTasks il numero massimo di connessioni servite contemporaneamente in modo THREAD_PER_TASK
+     * @throws IllegalArgumentException se mode è null o maxConcurrentTasks < 1
+     */
+    public void setExecutionMode(ExecutionMode mode, int maxConcurrentTasks) {
+        if (mode == null || maxConcurrentTasks < 1)
+            throw new IllegalArgumentException();
+        this.executionMode = mode;
+        this.maxConcurrentTasks = maxConcurrentTasks;
     }
 
     public void startServer() throws IOException {
-        serverSocket = new ServerSocket(SERVER_PORT);
-        log("[INFO] Server started");
+        // Le connessioni accettate da un ServerSocketChannel possono essere parcheggiate (v. IdleConnections)
+        serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(localNode.getPort())).socket();
+        if (clusterManager.isEnabled())
+            logger.info("Server started", "node", localNode.getIndex(), "address", localNode);
+        else
+            logger.info("Server started");
+        if (clusterManager.isEnabled() && !clusterManager.hasSecret())
+            logger.warn("Cluster secret not set, requests between nodes are disabled");
+        startMetrics();
+        if (replicaSynchronizer != null) {
+            Thread t = new Thread(replicaSynchronizer, "replication-receiver");
+            t.setDaemon(true);
+            t.start();
+            logger.info("Read-only replica started");
+            startLoop();
+            return;
+        }
         startKeepAliveTask();
-        log("[INFO] Keep-alive component started");
+        logger.info("Keep-alive component started");
         notificationManager = new NotificationManager(this);
-        log("[INFO] NotificationManager component started");
+        logger.info("NotificationManager component started");
         if (startBackupTask())
-            log("[INFO] Backup loaded (" + usersNetwork.getUsers().size() + " users)");
-        friendRequestManager = new FriendRequestsManager(usersNetwork);
+            logger.info("Backup loaded", "users", usersNetwork.size());
+        if (friendRequestManager == null)
+            friendRequestManager = new FriendRequestsManager(usersNetwork, MAX_FRIEND_REQUEST_LIFE);
+        friendRequestsDeliveryManager = new FriendRequestsDeliveryManager(this);
+        if (replicationManager != null) {
+            usersNetwork.addListener(replicationManager);
+            replicationManager.start(localNode.getReplicationPort());
+            logger.info("Replication component started");
+        }
+        friendSuggestions = new FriendSuggestions(usersNetwork);
         startLoop();
     }
 
@@ -212,20 +600,30 @@ public class Server implements Closeable {
         try {
             if (serverSocket != null && !serverSocket.isClosed())
                 serverSocket.close();
-            if (keepAliveTimerTask != null)
-                keepAliveTimerTask.cancel();
-            if (keepAliveRequestSocket != null)
-                keepAliveRequestSocket.close();
-            if (keepAliveResponseSocket != null)
-                keepAliveResponseSocket.close();
+            if (presenceManager != null)
+                presenceManager.close();
+            rateLimiter.close();
+            metrics.unregisterMBean();
+            if (metricsEndpoint != null)
+                metricsEndpoint.close();
             if (backupTask != null) {
                 backupTask.cancel();
                 backupTask.run();
             }
+            clusterManager.close();
+            if (friendRequestManager != null)
+                friendRequestManager.close();
+            if (friendRequestsDeliveryManager != null)
+                friendRequestsDeliveryManager.close();
+            if (replicationManager != null)
+                replicationManager.close();
+            if (replicaSynchronizer != null)
+                replicaSynchronizer.close();
         } catch (IOException e) {
 
         }
-        log("[INFO] Server closed");
+        logger.info("Server closed");
+        logger.flush();
     }
 
     /**
@@ -237,12 +635,127 @@ public class Server implements Closeable {
         this.usersNetworkDidChange = true;
     }
 
+    /**
+     * Avvia un server. Senza argomenti avvia un server singolo. Gli argomenti possibili sono:
+     * <p>
+     * -cluster host:porta,host:porta,... -node i: avvia l'i-esimo nodo (a partire da 0) del cluster specificato; il
+     * segreto condiviso dai nodi viene letto dalla variabile d'ambiente SIMPLESOCIAL_CLUSTER_SECRET, così che non
+     * compaia tra gli argomenti del processo (v. {@link #setClusterSecret(byte[])});
+     * <p>
+     * -primary: invia le modifiche alle repliche che si connettono;
+     * <p>
+     * -replicaof host:porta -port p: avvia sulla porta p una replica in sola lettura del server host:porta;
+     * <p>
+     * -bind indirizzo -receivers n: riceve gli heartbeat solo sull'interfaccia specificata con n thread;
+     * <p>
+     * -thread-per-task n: esegue ogni richiesta in un nuovo thread, al più n alla volta (v.
+     * {@link ExecutionMode#THREAD_PER_TASK});
+     * <p>
+     * -queue n: accoda al più n connessioni quando tutti i thread sono occupati (v. {@link AdmissionController});
+     * <p>
+     * -rate-limit tipo:r:b: concede a ogni utente r richieste al secondo del tipo specificato, fino a b consecutive; se
+     * r è 0 le richieste di quel tipo non vengono limitate (v. {@link RateLimiter});
+     * <p>
+     * -metrics-port p: espone le metriche come testo su http://localhost:p/ (v. {@link MetricsEndpoint}) e le fasi
+     * delle richieste conservate su http://localhost:p/traces;
+     * <p>
+     * -trace-sample r -slow-request ms: conserva le fasi di una richiesta su r e di quelle che durano almeno ms
+     * millisecondi, che vengono anche scritte nel log (v. {@link Tracer}).
+     *
+     * @param args gli argomenti da riga di comando
+     */
     public static void main(String[] args) {
         System.setProperty("java.net.preferIPv4Stack", "true");
-        Server s = new Server(System.out, true);
+        String clusterSpec = null;
+        String primarySpec = null;
+        int nodeIndex = 0;
+        int port = SERVER_PORT;
+        boolean primary = false;
+        String bindAddress = null;
+        int receivers = Runtime.getRuntime().availableProcessors();
+        int maxTasks = 0;
+        int queueCapacity = AdmissionController.DEFAULT_QUEUE_CAPACITY;
+        List<String> rateLimits = new ArrayList<>();
+        int metricsPort = 0;
+        String logFile = null;
+        String logLevel = Level.INFO.name();
+        double traceSample = Tracer.DEFAULT_SAMPLE_RATE;
+        long slowRequest = Tracer.DEFAULT_SLOW_THRESHOLD;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-primary"))
+                primary = true;
+            else if (i + 1 < args.length && args[i].equals("-cluster"))
+                clusterSpec = args[++i];
+            else if (i + 1 < args.length && args[i].equals("-node"))
+                nodeIndex = Integer.parseInt(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-replicaof"))
+                primarySpec = args[++i];
+            else if (i + 1 < args.length && args[i].equals("-port"))
+                port = Integer.parseInt(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-bind"))
+                bindAddress = args[++i];
+            else if (i + 1 < args.length && args[i].equals("-receivers"))
+                receivers = Integer.parseInt(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-thread-per-task"))
+                maxTasks = Integer.parseInt(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-queue"))
+                queueCapacity = Integer.parseInt(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-rate-limit"))
+                rateLimits.add(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-metrics-port"))
+                metricsPort = Integer.parseInt(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-log-file"))
+                logFile = args[++i];
+            else if (i + 1 < args.length && args[i].equals("-log-level"))
+                logLevel = args[++i];
+            else if (i + 1 < args.length && args[i].equals("-trace-sample"))
+                traceSample = Double.parseDouble(args[++i]);
+            else if (i + 1 < args.length && args[i].equals("-slow-request"))
+                slowRequest = Long.parseLong(args[++i]);
+        }
+
         try {
+            Server s;
+            if (primarySpec != null) {
+                PartitionMap.Node primaryNode = PartitionMap.parse(primarySpec).getNode(0);
+                s = new Server(System.out, false, PartitionMap.singleNode("localhost", port), 0);
+                s.replicate(new InetSocketAddress(primaryNode.getAddress(), primaryNode.getReplicationPort()));
+            } else if (clusterSpec != null) {
+                String secret = System.getenv("SIMPLESOCIAL_CLUSTER_SECRET");
+                if (secret == null)
+                    throw new IllegalArgumentException("SIMPLESOCIAL_CLUSTER_SECRET is not set");
+                s = new Server(System.out, true, PartitionMap.parse(clusterSpec), nodeIndex);
+                s.setClusterSecret(secret.getBytes(StandardCharsets.UTF_8));
+            } else
+                s = new Server(System.out, true);
+            if (primary)
+                s.enableReplication();
+            s.setPresenceOptions(bindAddress == null ? null : InetAddress.getByName(bindAddress), receivers);
+            if (maxTasks > 0)
+                s.setExecutionMode(ExecutionMode.THREAD_PER_TASK, maxTasks);
+            s.setQueueCapacity(queueCapacity);
+            s.setMetricsPort(metricsPort);
+            s.getLogger().setLevel(Level.valueOf(logLevel.toUpperCase(Locale.ROOT)));
+            if (logFile != null)
+                s.getLogger().addSink(new RollingFileSink(Paths.get(logFile), RollingFileSink.DEFAULT_MAX_BYTES,
+                        RollingFileSink.DEFAULT_MAX_FILES));
+            s.getTracer().setSampleRate(traceSample);
+            s.getTracer().setSlowThreshold(slowRequest);
+            for (String limit : rateLimits) {
+                String[] fields = limit.split(":");
+                if (fields.length != 2 && fields.length != 3)
+                    throw new IllegalArgumentException("Invalid rate limit " + limit);
+                int requestType = Integer.parseInt(fields[0]);
+                double perSecond = Double.parseDouble(fields[1]);
+                if (perSecond == 0)
+                    s.getRateLimiter().removeBudget(requestType);
+                else if (fields.length == 2)
+                    throw new IllegalArgumentException("Invalid rate limit " + limit);
+                else
+                    s.getRateLimiter().setBudget(requestType, perSecond, Integer.parseInt(fields[2]));
+            }
             s.startServer();
-        } catch (IOException e) {
+        } catch (IOException | IllegalArgumentException e) {
             System.out.println("Il server non può essere avviato: " + e.getLocalizedMessage());
         }
     }
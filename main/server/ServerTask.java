@@ -4,111 +4,311 @@
 
 package server;
 
+import server.metrics.Histogram;
+import server.trace.Stage;
+import server.trace.Trace;
+import server.trace.Tracer;
+import socialnetwork.FriendSuggestions;
 import socialnetwork.Post;
 import socialnetwork.User;
+import socialnetwork.UsersNetwork;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.io.*;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
  * Un ServerTask è una componente del server che legge e risponde alle richieste di un singolo client.
+ * <p>
+ * Di norma una connessione trasporta una sola richiesta, la cui risposta termina con la chiusura della connessione. Se
+ * il primo byte è {@link RequestTypes#PERSISTENT} la connessione resta aperta e trasporta una sequenza di richieste,
+ * ognuna seguita dalla propria risposta: richieste e risposte sono messaggi scritti con un {@link ChunkedOutputStream},
+ * così che la fine di un messaggio si riconosca senza chiudere la connessione. Il client può inviare più richieste
+ * senza attendere le risposte, che vengono scritte nello stesso ordine. Una connessione persistente viene chiusa dopo
+ * IDLE_TIMEOUT millisecondi senza richieste. Se il server usa un {@link AdmissionController}, una connessione
+ * persistente senza richieste da leggere viene parcheggiata e il ServerTask lascia il thread; quando arriva una nuova
+ * richiesta il ServerTask viene eseguito di nuovo e riprende a servire la connessione.
+ * <p>
+ * Su una connessione persistente le richieste autenticate viaggiano in un solo messaggio, che contiene tipo, token e
+ * dati: il server non invia l'esito della verifica del token prima di leggere i dati, ma lo scrive all'inizio della
+ * risposta, seguito dai dati della risposta (v. {@link #validateToken()}).
+ * <p>
+ * Le fasi di ogni richiesta (lettura, verifica del token, operazione, notifiche, scrittura della risposta) vengono
+ * registrate nel {@link Tracer} del server.
  */
 public class ServerTask implements Runnable {
 
+    public static final int REQUEST_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(5);
+    public static final int IDLE_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(15);
+    static final int ACTION_NOT_READ = -2;
+
     private Server server;
     private Socket socket;
-    private BufferedInputStream buffInputStream;
-    private BufferedOutputStream buffOutputStream;
+    private InputStream buffInputStream;
+    private OutputStream buffOutputStream;
+    private boolean persistent;
+    private PushbackInputStream pushbackInputStream;
+    private ChunkedInputStream chunkedInputStream;
+    private ChunkedOutputStream chunkedOutputStream;
+    private boolean rejectNextRequest;
+    private final int firstAction;
+    private int action;
+    private Trace trace;
 
     public ServerTask(Server server, Socket socket) {
+        this(server, socket, ACTION_NOT_READ);
+    }
+
+    /**
+     * Crea un ServerTask per una connessione di cui è già stato letto il primo byte (v. {@link AdmissionController}).
+     *
+     * @param server il server
+     * @param socket la connessione
+     * @param action il primo byte della connessione, oppure ACTION_NOT_READ se non è ancora stato letto
+     */
+    ServerTask(Server server, Socket socket, int action) {
         this.server = server;
         this.socket = socket;
+        this.firstAction = action;
     }
 
+    /**
+     * Serve la connessione. Se la connessione è persistente e viene parcheggiata (v. {@link
+     * AdmissionController#park(ServerTask)}) non viene chiusa, e il metodo viene invocato di nuovo quando arriva la
+     * richiesta successiva.
+     */
     @Override
     public void run() {
+        if (!persistent)
+            server.getOpenConnections().increment();
+        boolean parked = false;
         try {
-            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(5));
-            buffInputStream = new BufferedInputStream(socket.getInputStream());
-            buffOutputStream = new BufferedOutputStream(socket.getOutputStream());
-            int action = buffInputStream.read();
-            switch (action) {
-                case RequestTypes.LOGIN:
-                    login();
-                    break;
-                case RequestTypes.LOGOUT:
-                    logout();
-                    break;
-                case RequestTypes.REGISTER:
-                    register();
-                    break;
-                case RequestTypes.FIND_USER:
-                    findUser();
-                    break;
-                case RequestTypes.GET_FRIENDS:
-                    sendFriends();
-                    break;
-                case RequestTypes.PUBLISH:
-                    publish();
-                    break;
-                case RequestTypes.FORWARD_FRIEND_REQUEST:
-                    forwardFriendRequest();
-                    break;
-                case RequestTypes.ACCEPT_FRIEND_REQUEST:
-                    respondFriendRequest(true);
-                    break;
-                case RequestTypes.DENY_FRIEND_REQUEST:
-                    respondFriendRequest(false);
-                    break;
-                default:
-                    break;
+            if (persistent)
+                parked = serveMessages();
+            else {
+                socket.setSoTimeout(REQUEST_TIMEOUT);
+                buffInputStream = new BufferedInputStream(socket.getInputStream());
+                buffOutputStream = new BufferedOutputStream(socket.getOutputStream());
+                int action = firstAction == ACTION_NOT_READ ? buffInputStream.read() : firstAction;
+                if (action == RequestTypes.PERSISTENT)
+                    parked = handlePersistentConnection();
+                else
+                    handleRequest(action);
             }
         } catch (IOException e) {
 
         } finally {
-            if (!socket.isClosed())
-                try {
-                    socket.close();
-                } catch (Exception e) {
+            if (!parked)
+                closeConnection();
+        }
+    }
 
-                }
+    /**
+     * Chiude la connessione, se non è già stata chiusa.
+     */
+    void closeConnection() {
+        server.getOpenConnections().decrement();
+        if (!socket.isClosed())
+            try {
+                socket.close();
+            } catch (Exception e) {
+
+            }
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Restituisce alla connessione dei byte letti da un altro thread mentre era parcheggiata, che verranno letti prima
+     * di quelli successivi.
+     *
+     * @param data   i byte letti
+     * @param length il numero di byte letti, al più {@link IdleConnections#HEADER_BYTES}
+     * @throws IOException
+     */
+    void unread(byte[] data, int length) throws IOException {
+        pushbackInputStream.unread(data, 0, length);
+    }
+
+    /**
+     * Fa sì che la prossima richiesta della connessione persistente riceva la risposta BUSY, perché la connessione è
+     * rimasta in coda troppo a lungo.
+     */
+    void rejectNextRequest() {
+        rejectNextRequest = true;
+    }
+
+    /**
+     * Inizia a servire una connessione persistente (v. {@link #serveMessages()}).
+     *
+     * @return true se la connessione è stata parcheggiata
+     * @throws IOException
+     */
+    private boolean handlePersistentConnection() throws IOException {
+        pushbackInputStream = new PushbackInputStream(buffInputStream, IdleConnections.HEADER_BYTES);
+        chunkedInputStream = new ChunkedInputStream(pushbackInputStream);
+        chunkedOutputStream = new ChunkedOutputStream(buffOutputStream, false);
+        buffInputStream = chunkedInputStream;
+        buffOutputStream = chunkedOutputStream;
+        persistent = true;
+        socket.setTcpNoDelay(true);
+        return serveMessages();
+    }
+
+    /**
+     * Gestisce le richieste di una connessione persistente finché il client non la chiude o resta inattivo per
+     * IDLE_TIMEOUT millisecondi, oppure finché non ci sono più richieste da leggere e la connessione viene
+     * parcheggiata. Le richieste che l'AdmissionController non ammette ricevono la risposta BUSY (v. {@link
+     * AdmissionController#admitRequest(int)}).
+     *
+     * @return true se la connessione è stata parcheggiata
+     * @throws IOException
+     */
+    private boolean serveMessages() throws IOException {
+        ChunkedInputStream in = chunkedInputStream;
+        ChunkedOutputStream out = chunkedOutputStream;
+        AdmissionController admissionController = server.getAdmissionController();
+        while (true) {
+            in.skipMessage();
+            if (in.isEndOfStream())
+                return false;
+            if (admissionController != null && pushbackInputStream.available() == 0
+                    && admissionController.park(this))
+                return true;
+            if (!in.nextMessage())
+                return false;
+            socket.setSoTimeout(IDLE_TIMEOUT);
+            int action = in.read();
+            if (action < 0 && in.isEndOfStream())
+                return false;
+            socket.setSoTimeout(REQUEST_TIMEOUT);
+            if (action < 0)
+                out.endMessage();
+            else if (rejectNextRequest || admissionController != null && !admissionController.admitRequest(action)) {
+                out.write(ResponseTypes.BUSY);
+                out.endMessage();
+            } else
+                handleRequest(action);
+            rejectNextRequest = false;
         }
     }
 
     /**
-     * Gestisce una richiesta di login. Si aspetta di ricevere la porta di ascolto di richieste di amicizia (2 byte),
-     * quindi nome + '\n' + password. Risponde con OK e un token o con INVALID_CREDENTIALS.
+     * Gestisce una richiesta e ne registra la latenza nelle metriche del server (v. {@link Server#getMetrics()}) e le
+     * fasi nel Tracer del server (v. {@link Server#getTracer()}). Su una connessione persistente termina anche il
+     * messaggio di risposta, così che latenza e fase ENCODE comprendano l'invio della risposta.
+     * <p>
+     * Una replica in sola lettura serve solo FIND_USER e GET_FRIENDS: alle altre richieste risponde con
+     * READ_ONLY_REPLICA e le conta in {@link Server#getReplicaRejections()}.
+     *
+     * @param action il tipo di richiesta
+     * @throws IOException
+     */
+    private void handleRequest(int action) throws IOException {
+        this.action = action;
+        Tracer tracer = server.getTracer();
+        trace = tracer.begin(RequestTypes.nameOf(action));
+        long start = System.nanoTime();
+        try {
+            if (server.getReplicaSynchronizer() != null && action != RequestTypes.FIND_USER
+                    && action != RequestTypes.GET_FRIENDS) {
+                server.getReplicaRejections().increment();
+                sendQuickResponse(ResponseTypes.READ_ONLY_REPLICA);
+            } else
+                dispatch(action);
+            if (persistent) {
+                long encodeStart = System.nanoTime();
+                chunkedOutputStream.endMessage();
+                trace.span(Stage.ENCODE, encodeStart);
+            }
+        } finally {
+            Histogram latency = server.getRequestLatency(action);
+            if (latency != null)
+                latency.recordSince(start);
+            tracer.end(trace);
+            trace = null;
+        }
+    }
+
+    private void dispatch(int action) throws IOException {
+        switch (action) {
+            case RequestTypes.LOGIN:
+                login();
+                break;
+            case RequestTypes.LOGOUT:
+                logout();
+                break;
+            case RequestTypes.REGISTER:
+                register();
+                break;
+            case RequestTypes.FIND_USER:
+                findUser();
+                break;
+            case RequestTypes.GET_FRIENDS:
+                sendFriends();
+                break;
+            case RequestTypes.PUBLISH:
+                publish();
+                break;
+            case RequestTypes.FORWARD_FRIEND_REQUEST:
+                forwardFriendRequest();
+                break;
+            case RequestTypes.ACCEPT_FRIEND_REQUEST:
+                respondFriendRequest(true);
+                break;
+            case RequestTypes.DENY_FRIEND_REQUEST:
+                respondFriendRequest(false);
+                break;
+            case RequestTypes.SUGGEST_FRIENDS:
+                suggestFriends();
+                break;
+            default:
+                if (server.getClusterManager().isPeer(socket.getInetAddress()))
+                    handlePeerRequest(action);
+                break;
+        }
+    }
+
+    /**
+     * Gestisce una richiesta di login. Si aspetta di ricevere nome + '\n' + password. Risponde con OK e un token, con
+     * INVALID_CREDENTIALS, oppure con WRONG_PARTITION se l'utente appartiene a un altro nodo del cluster.
      *
      * @throws IOException
      */
     private void login() throws IOException {
-        byte[] portData = new byte[2];
         byte[] loginData = new byte[1024];
-        int bytes1 = buffInputStream.read(portData);
-        int bytes2 = buffInputStream.read(loginData);
+        int bytes = read(loginData);
 
-        if (bytes1 == 2 && bytes2 > 0) {
-            String[] login = new String(loginData, 0, bytes2, StandardCharsets.UTF_8).split("\n", 2);
+        if (bytes > 0) {
+            String[] login = new String(loginData, 0, bytes, StandardCharsets.UTF_8).split("\n", 2);
             if (login.length == 2) {
                 User u = server.getUsersNetwork().getUser(login[0]);
-                if (u == null || !u.getPassword().equals(login[1]))
+                if (!server.getClusterManager().isLocal(login[0]))
+                    sendQuickResponse(ResponseTypes.WRONG_PARTITION);
+                else if (u == null || u.isRemote() || !u.getPassword().equals(login[1]))
                     sendQuickResponse(ResponseTypes.INVALID_CREDENTIALS);
                 else {
-                    byte[] token = server.getSessionsManager().login(u);
-                    buffOutputStream.write(new byte[]{ResponseTypes.OK});
-                    buffOutputStream.write(token);
-                    buffOutputStream.flush();
-                    int port = portData[0] & 0xFF | (portData[1] << 8) & 0xFF00;
-                    InetSocketAddress sa = new InetSocketAddress(socket.getInetAddress(), port);
-                    server.getSessionsManager().getSession(u).setUserAddress(sa);
+                    trace.setUser(u.getUsername());
+                    long start = System.nanoTime();
+                    Session session = server.getSessionsManager().openSession(u);
+                    byte[] token = session.getToken();
+                    trace.span(Stage.DOMAIN, start);
+                    if (server.getReplicationManager() != null) {
+                        start = System.nanoTime();
+                        server.getReplicationManager().sessionOpened(session);
+                        trace.span(Stage.FANOUT, start);
+                    }
+                    byte[] response = new byte[token.length + 1];
+                    response[0] = ResponseTypes.OK;
+                    System.arraycopy(token, 0, response, 1, token.length);
+                    sendResponse(response);
                 }
             }
         }
@@ -125,38 +325,57 @@ public class ServerTask implements Runnable {
         if (s == null)
             return;
 
+        long start = System.nanoTime();
         server.getSessionsManager().logout(s.getToken());
+        trace.span(Stage.DOMAIN, start);
+        if (server.getReplicationManager() != null) {
+            start = System.nanoTime();
+            server.getReplicationManager().sessionClosed(s.getUser());
+            trace.span(Stage.FANOUT, start);
+        }
         sendQuickResponse(ResponseTypes.OK);
     }
 
     /**
      * Gestisce una richiesta di registrazione. Si aspetta di ricevere nome e password, separati da '\n'. Scrive OK
-     * sull'output stream se l'utente è stato registrato oppure INVALID_CREDENTIALS se un utente con quel nome già
-     * esiste.
+     * sull'output stream se l'utente è stato registrato, INVALID_CREDENTIALS se un utente con quel nome già esiste
+     * oppure WRONG_PARTITION se l'utente appartiene a un altro nodo del cluster.
      *
      * @throws IOException
      */
     private void register() throws IOException {
         byte[] data = new byte[256];
-        int bytes = buffInputStream.read(data);
+        int bytes = read(data);
 
         if (bytes > 0) {
             String[] loginData = new String(data, 0, bytes, StandardCharsets.UTF_8).split("\n", 2);
             if (loginData.length == 2) {
-                if (null == server.getUsersNetwork().addUser(loginData[0], loginData[1]))
+                if (!server.getClusterManager().isLocal(loginData[0]))
+                    sendQuickResponse(ResponseTypes.WRONG_PARTITION);
+                else if (null == addUser(loginData[0], loginData[1]))
                     sendQuickResponse(ResponseTypes.INVALID_CREDENTIALS);
                 else {
                     sendQuickResponse(ResponseTypes.OK);
-                    server.log("[INFO] New user: " + loginData[0]);
+                    server.getLogger().info("New user", "user", loginData[0]);
                     server.setUsersNetworkDidChange();
                 }
             }
         }
     }
 
+    private User addUser(String username, String password) {
+        long start = System.nanoTime();
+        try {
+            return server.getUsersNetwork().addUser(username, password);
+        } finally {
+            trace.span(Stage.DOMAIN, start);
+        }
+    }
+
     /**
      * Gestisce una richiesta di ricerca. Si aspetta di ricevere un token, seguito da una stringa di ricerca. Verifica
-     * il token, quindi scrive OK e una sequenza di nomi utente separati da '\n' sull'output stream.
+     * il token, quindi scrive OK e una sequenza di nomi utente separati da '\n' sull'output stream. In un cluster la
+     * ricerca viene estesa agli utenti degli altri nodi.
      *
      * @throws IOException
      */
@@ -165,22 +384,36 @@ public class ServerTask implements Runnable {
             return;
 
         byte[] data = new byte[256];
-        int bytes = buffInputStream.read(data);
+        int bytes = read(data);
         if (bytes >= 0) {
             String query = new String(data, 0, bytes, StandardCharsets.UTF_8);
-            String usernames = server.getUsersNetwork().findUsers(query)
-                    .parallelStream()
-                    .map(User::getUsername)
-                    .collect(Collectors.joining("\n"));
-            buffOutputStream.write(usernames.getBytes(StandardCharsets.UTF_8));
-            buffOutputStream.flush();
+            List<String> usernames = findLocalUsers(query);
+            if (server.getClusterManager().isEnabled()) {
+                long start = System.nanoTime();
+                usernames.addAll(server.getClusterManager().findUsers(query));
+                trace.span(Stage.FANOUT, start);
+            }
+            sendResponse(String.join("\n", usernames).getBytes(StandardCharsets.UTF_8));
         }
     }
 
+    private List<String> findLocalUsers(String query) {
+        long start = System.nanoTime();
+        List<String> usernames = server.getUsersNetwork().findUsers(query)
+                .parallelStream()
+                .filter(u -> !u.isRemote())
+                .map(User::getUsername)
+                .collect(Collectors.toList());
+        trace.span(Stage.DOMAIN, start);
+        return usernames;
+    }
+
     /**
      * Gestisce una richiesta di invio lista amici. Si aspetta di ricevere un token. Verifica il token, quindi scrive
      * sull'output stream una sequenza di utenti separati da '\n' e preceduti ognuno da '0' o '1' in base loro stato
-     * (rispettivamente offline e online).
+     * (rispettivamente offline e online). Un utente è online se è stato attivo negli ultimi
+     * {@link PresenceManager#PRESENCE_TIMEOUT} millisecondi; una replica, che non riceve gli heartbeat, considera online
+     * gli utenti con una sessione aperta.
      *
      * @throws IOException
      */
@@ -189,13 +422,40 @@ public class ServerTask implements Runnable {
         if (s == null)
             return;
 
-        Collection<User> activeUsers = server.getSessionsManager().getActiveUsers(10);
+        SessionsManager sessionsManager = server.getSessionsManager();
+        long timeout = server.getReplicaSynchronizer() == null ? PresenceManager.PRESENCE_TIMEOUT : Long.MAX_VALUE;
+        long start = System.nanoTime();
         String data = s.getUser().getFriends()
-                .parallelStream()
-                .map(u -> (activeUsers.contains(u) ? "1" : "0") + u.getUsername())
+                .stream()
+                .map(u -> (sessionsManager.isActive(u, timeout) ? "1" : "0") + u.getUsername())
                 .collect(Collectors.joining("\n"));
-        buffOutputStream.write(data.getBytes(StandardCharsets.UTF_8));
-        buffOutputStream.flush();
+        trace.span(Stage.DOMAIN, start);
+        sendResponse(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gestisce una richiesta di suggerimenti di amicizia. Si aspetta di ricevere un token, seguito dal numero massimo
+     * di suggerimenti (1 byte). Verifica il token, quindi scrive sull'output stream una sequenza di utenti separati da
+     * '\n' e preceduti ognuno dal numero di amici in comune e da uno spazio. Un numero massimo fuori
+     * dall'intervallo [1, MAX_SUGGESTIONS], o mancante, viene riportato nell'intervallo: l'OK della verifica del
+     * token è già stato inviato, per cui la richiesta non può più essere rifiutata.
+     *
+     * @throws IOException
+     * @see FriendSuggestions#suggest(User, int)
+     */
+    private void suggestFriends() throws IOException {
+        Session s = validateToken();
+        if (s == null)
+            return;
+
+        int limit = Math.max(1, Math.min(buffInputStream.read(), FriendSuggestions.MAX_SUGGESTIONS));
+        long start = System.nanoTime();
+        String data = server.getFriendSuggestions().suggest(s.getUser(), limit)
+                .stream()
+                .map(f -> f.getMutualFriends() + " " + f.getUser().getUsername())
+                .collect(Collectors.joining("\n"));
+        trace.span(Stage.DOMAIN, start);
+        sendResponse(data.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
@@ -210,11 +470,15 @@ public class ServerTask implements Runnable {
             return;
 
         byte[] data = new byte[8192];
-        int bytes = buffInputStream.read(data);
+        int bytes = read(data);
         if (bytes > 0) {
             String content = new String(data, 0, bytes, StandardCharsets.UTF_8);
+            long start = System.nanoTime();
             Post p = server.getUsersNetwork().addPost(s.getUser(), content);
+            trace.span(Stage.DOMAIN, start);
+            start = System.nanoTime();
             server.getNotificationManager().notifyPost(p);
+            trace.span(Stage.FANOUT, start);
             sendQuickResponse(ResponseTypes.OK);
             server.setUsersNetworkDidChange();
         }
@@ -222,18 +486,21 @@ public class ServerTask implements Runnable {
 
     /**
      * Gestisce una richiesta di amicizia. Si aspetta di ricevere un token, seguito dal nome di un utente. Verifica il
-     * token, quindi prova a inoltrare la richiesta di amicizia a quell'utente. L'inoltro viene fatto contattando
-     * l'utente su una porta conosciuta e sull'ultimo indirizzo con cui l'utente ha effettuato (v. {@link #login()}..
+     * token, quindi registra la richiesta di amicizia e ne accoda la consegna a quell'utente (v.
+     * {@link FriendRequestsDeliveryManager}), senza attendere che venga consegnata.
      * <p>
      * Le possibili risposte sono:
      * <p>
      * - ResponseTypes.USER_NOT_FOUND se lo username ricevuto non esiste;
      * <p>
-     * - ResponseTypes.USER_OFFLINE se non è possibile inoltrare la richiesta al destinatario;
+     * - ResponseTypes.USER_OFFLINE se il destinatario appartiene a un nodo del cluster non raggiungibile;
+     * <p>
+     * - ResponseTypes.BAD_REQUEST se gli utenti sono già amici o il destinatario ha troppe richieste pendenti;
      * <p>
-     * - ResponseTypes.BAD_REQUEST se gli utenti sono già amici;
+     * - ResponseTypes.OK se la richiesta è stata registrata.
      * <p>
-     * - ResponseTypes.OK se la richiesta è stata inoltrata correttamente.
+     * Se il destinatario appartiene a un altro nodo del cluster la richiesta viene inoltrata a quel nodo, e la sua
+     * risposta viene girata al client.
      *
      * @throws IOException
      */
@@ -243,32 +510,50 @@ public class ServerTask implements Runnable {
             return;
 
         byte[] data = new byte[256];
-        int bytes = buffInputStream.read(data);
+        int bytes = read(data);
         if (bytes >= 0) {
-            User receiverUser = server.getUsersNetwork().getUser(new String(data, 0, bytes, StandardCharsets.UTF_8));
-            if (receiverUser == null) {
-                sendQuickResponse(ResponseTypes.USER_NOT_FOUND);
+            String receiverName = new String(data, 0, bytes, StandardCharsets.UTF_8);
+            if (!server.getClusterManager().isLocal(receiverName)) {
+                long start = System.nanoTime();
+                byte response = server.getClusterManager().forwardFriendRequest(s.getUser().getUsername(), receiverName);
+                trace.span(Stage.FANOUT, start);
+                sendQuickResponse(response);
                 return;
             }
 
-            Session receiverUserSession = server.getSessionsManager().getSession(receiverUser);
-            if (s.getUser().getFriends().contains(receiverUser)) {
-                sendQuickResponse(ResponseTypes.BAD_REQUEST);
+            User receiverUser = server.getUsersNetwork().getUser(receiverName);
+            if (receiverUser == null || receiverUser.isRemote()) {
+                sendQuickResponse(ResponseTypes.USER_NOT_FOUND);
                 return;
             }
-            try {
-                InetSocketAddress sa = receiverUserSession.getUserAddress();
-                Socket socket = new Socket(sa.getAddress(), sa.getPort());
-                socket.getOutputStream().write(s.getUser().getUsername().getBytes(StandardCharsets.UTF_8));
-                socket.close();
-                server.getFriendRequestManager().addFriendRequest(s.getUser(), receiverUser);
-                sendQuickResponse(ResponseTypes.OK);
-            } catch (Exception e) {
-                sendQuickResponse(ResponseTypes.USER_OFFLINE);
-            }
+            sendQuickResponse(deliverFriendRequest(s.getUser(), receiverUser));
         }
     }
 
+    /**
+     * Registra una richiesta di amicizia diretta a un utente locale e ne accoda la consegna.
+     *
+     * @param sender   l'utente che chiede l'amicizia, locale o remoto
+     * @param receiver l'utente locale a cui è diretta la richiesta
+     * @return la risposta da inviare a chi ha fatto la richiesta
+     */
+    private byte deliverFriendRequest(User sender, User receiver) {
+        if (sender.getFriends().contains(receiver))
+            return ResponseTypes.BAD_REQUEST;
+
+        long start = System.nanoTime();
+        boolean added = server.getFriendRequestManager().addFriendRequest(sender, receiver);
+        trace.span(Stage.DOMAIN, start);
+        if (!added)
+            return ResponseTypes.BAD_REQUEST;
+
+        start = System.nanoTime();
+        server.getFriendRequestsDeliveryManager().deliver(sender, receiver);
+        trace.span(Stage.FANOUT, start);
+        server.setUsersNetworkDidChange();
+        return ResponseTypes.OK;
+    }
+
     /**
      * Accetta o nega una richiesta di amicizia. Si aspetta di ricevere un token, seguito dal nome dell'utente che ha
      * inviato la richiesta. Verifica il token e risponde con OK se la richiesta esisteva e non è scaduta. Altrimenti
@@ -283,25 +568,119 @@ public class ServerTask implements Runnable {
             return;
 
         byte[] data = new byte[256];
-        int bytes = buffInputStream.read(data);
+        int bytes = read(data);
         if (bytes >= 0) {
             User sender = server.getUsersNetwork().getUser(new String(data, 0, bytes, StandardCharsets.UTF_8));
             User receiver = s.getUser();
             if (sender == null)
                 sendQuickResponse(ResponseTypes.USER_NOT_FOUND);
             else {
-                server.getFriendRequestManager().removeRequestsOlderThan(receiver, Server.MAX_FRIEND_REQUEST_LIFE);
+                long start = System.nanoTime();
                 boolean found = server.getFriendRequestManager().confirmFriendRequest(sender, receiver, yesOrNo);
+                trace.span(Stage.DOMAIN, start);
                 sendQuickResponse(found ? ResponseTypes.OK : ResponseTypes.BAD_REQUEST);
                 if (found)
                     server.setUsersNetworkDidChange();
+                if (found && yesOrNo && sender.isRemote()) {
+                    start = System.nanoTime();
+                    server.getClusterManager().notifyFriendship(receiver.getUsername(), sender.getUsername());
+                    trace.span(Stage.FANOUT, start);
+                }
             }
         }
     }
 
+    /**
+     * Gestisce una richiesta proveniente da un altro nodo del cluster (v. {@link ClusterManager}). I parametri delle
+     * richieste tra nodi sono stringhe codificate con {@link DataOutputStream#writeUTF(String)}. Le richieste non
+     * autenticate col segreto del cluster vengono ignorate.
+     *
+     * @param action il tipo di richiesta
+     * @throws IOException
+     */
+    private void handlePeerRequest(int action) throws IOException {
+        DataInputStream in = server.getClusterManager().readPeerRequest(action, buffInputStream);
+        if (in == null) {
+            server.getLogger().warn("Peer request rejected", "type", RequestTypes.nameOf(action), "address",
+                    socket.getInetAddress().getHostAddress());
+            return;
+        }
+        UsersNetwork usersNetwork = server.getUsersNetwork();
+        switch (action) {
+            case RequestTypes.PEER_FIND_USER: {
+                List<String> usernames = findLocalUsers(in.readUTF());
+                DataOutputStream out = new DataOutputStream(buffOutputStream);
+                out.writeInt(usernames.size());
+                for (String u : usernames)
+                    out.writeUTF(u);
+                out.flush();
+                break;
+            }
+            case RequestTypes.PEER_FRIEND_REQUEST: {
+                String senderName = in.readUTF();
+                User receiver = usersNetwork.getUser(in.readUTF());
+                if (receiver == null || receiver.isRemote())
+                    sendQuickResponse(ResponseTypes.USER_NOT_FOUND);
+                else
+                    sendQuickResponse(deliverFriendRequest(usersNetwork.getOrAddRemoteUser(senderName), receiver));
+                break;
+            }
+            case RequestTypes.PEER_FRIENDSHIP: {
+                User localUser = usersNetwork.getUser(in.readUTF());
+                String remoteName = in.readUTF();
+                if (localUser == null || localUser.isRemote()) {
+                    sendQuickResponse(ResponseTypes.USER_NOT_FOUND);
+                    break;
+                }
+                long start = System.nanoTime();
+                usersNetwork.addFriendship(localUser, usersNetwork.getOrAddRemoteUser(remoteName));
+                trace.span(Stage.DOMAIN, start);
+                server.setUsersNetworkDidChange();
+                sendQuickResponse(ResponseTypes.OK);
+                break;
+            }
+            case RequestTypes.PEER_SUBSCRIBE: {
+                String followerName = in.readUTF();
+                User followed = usersNetwork.getUser(in.readUTF());
+                if (followed == null || followed.isRemote()) {
+                    sendQuickResponse(ResponseTypes.USER_NOT_FOUND);
+                    break;
+                }
+                long start = System.nanoTime();
+                usersNetwork.addSubscription(usersNetwork.getOrAddRemoteUser(followerName), followed);
+                trace.span(Stage.DOMAIN, start);
+                server.setUsersNetworkDidChange();
+                sendQuickResponse(ResponseTypes.OK);
+                break;
+            }
+            case RequestTypes.PEER_POST: {
+                User author = usersNetwork.getOrAddRemoteUser(in.readUTF());
+                Post post = new Post(author, new Date(), in.readUTF());
+                int count = in.readInt();
+                List<User> receivers = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    User u = usersNetwork.getUser(in.readUTF());
+                    if (u != null && !u.isRemote())
+                        receivers.add(u);
+                }
+                long start = System.nanoTime();
+                server.getNotificationManager().notifyPost(post, receivers);
+                trace.span(Stage.FANOUT, start);
+                sendQuickResponse(ResponseTypes.OK);
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
     /**
      * Legge un token e verifica che sia valido, quindi scrive OK sull'output stream. Se il token non è valido risponde
-     * con INVALID_TOKEN.
+     * con INVALID_TOKEN; se il server è una replica non aggiornata risponde con REPLICA_STALE; se l'utente o il suo
+     * indirizzo hanno superato il budget per il tipo di richiesta risponde con THROTTLED (v. {@link RateLimiter}).
+     * <p>
+     * Su una connessione persistente l'OK non viene inviato subito, perché il client ha già inviato i dati della
+     * richiesta insieme al token, e viene inviato insieme al resto della risposta.
      *
      * @return la sessione associata al token se questo è valido ed è stato scritto OK sull'output stream, null
      * altrimenti
@@ -309,22 +688,68 @@ public class ServerTask implements Runnable {
      */
     private Session validateToken() throws IOException {
         byte[] token = new byte[Session.TOKEN_BYTES];
-        if (Session.TOKEN_BYTES == buffInputStream.read(token)) {
+        if (Session.TOKEN_BYTES == read(token)) {
+            long start = System.nanoTime();
+            ReplicaSynchronizer replica = server.getReplicaSynchronizer();
             Session session = server.getSessionsManager().getSession(token);
-            if (session == null)
-                sendQuickResponse(ResponseTypes.INVALID_TOKEN);
+            byte response;
+            if (replica != null && replica.isStale())
+                response = ResponseTypes.REPLICA_STALE;
+            else if (session == null)
+                response = ResponseTypes.INVALID_TOKEN;
+            else if (!server.getRateLimiter().tryAcquire(action, session.getUser().getUsername(),
+                    socket.getInetAddress()))
+                response = ResponseTypes.THROTTLED;
             else {
-                sendQuickResponse(ResponseTypes.OK);
-                session.setLastActionDate(new Date());
+                response = ResponseTypes.OK;
+                session.touch(System.currentTimeMillis());
+            }
+            if (session != null)
+                trace.setUser(session.getUser().getUsername());
+            trace.span(Stage.AUTH, start);
+
+            if (response != ResponseTypes.OK)
+                sendQuickResponse(response);
+            else {
+                if (persistent)
+                    buffOutputStream.write(ResponseTypes.OK);
+                else
+                    sendQuickResponse(ResponseTypes.OK);
                 return session;
             }
         }
         return null;
     }
 
-    private void sendQuickResponse(byte response) throws IOException {
-        buffOutputStream.write(new byte[]{response});
+    /**
+     * Legge i dati di una richiesta e ne registra la durata come fase DECODE.
+     *
+     * @param data il buffer in cui leggere i dati
+     * @return il numero di byte letti, oppure -1 se la connessione è stata chiusa
+     * @throws IOException
+     */
+    private int read(byte[] data) throws IOException {
+        long start = System.nanoTime();
+        int bytes = buffInputStream.read(data);
+        trace.span(Stage.DECODE, start);
+        return bytes;
+    }
+
+    /**
+     * Scrive una risposta e ne registra la durata come fase ENCODE.
+     *
+     * @param response la risposta
+     * @throws IOException
+     */
+    private void sendResponse(byte[] response) throws IOException {
+        long start = System.nanoTime();
+        buffOutputStream.write(response);
         buffOutputStream.flush();
+        trace.span(Stage.ENCODE, start);
+    }
+
+    private void sendQuickResponse(byte response) throws IOException {
+        sendResponse(new byte[]{response});
     }
 
 }
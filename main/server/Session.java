@@ -6,7 +6,6 @@ package server;
 
 import socialnetwork.User;
 
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Date;
 
@@ -14,9 +13,9 @@ public class Session {
 
     private User user;
     private byte[] token;
+    private final int tokenKey;
     private Date startDate;
-    private Date lastActionDate;
-    private InetSocketAddress userAddress;
+    private volatile long lastActionTime;
     public final static int TOKEN_BYTES = Integer.BYTES;
 
     /**
@@ -25,23 +24,33 @@ public class Session {
      * @param user l'utente
      */
     public Session(User user) {
-        this(user, null);
+        if (user == null)
+            throw new IllegalArgumentException();
+
+        this.user = user;
+        this.token = ByteBuffer.allocate(TOKEN_BYTES).putInt(this.hashCode() + (int) (Math.random() * 1000000)).array();
+        this.tokenKey = ByteBuffer.wrap(this.token).getInt();
+        this.startDate = new Date();
+        this.lastActionTime = startDate.getTime();
     }
 
     /**
-     * Crea una nuova sessione per l'utente specificato, con associato un indirizzo.
+     * Crea una sessione per l'utente specificato con un token e una data di creazione già assegnati, ad esempio da un
+     * altro server.
      *
-     * @param user        l'utente
-     * @param userAddress l'indirizzo dell'utente oppure null
+     * @param user      l'utente
+     * @param token     il token della sessione
+     * @param startTime l'istante di creazione della sessione in millisecondi
      */
-    public Session(User user, InetSocketAddress userAddress) {
-        if (user == null)
+    Session(User user, byte[] token, long startTime) {
+        if (user == null || token == null || token.length != TOKEN_BYTES)
             throw new IllegalArgumentException();
 
         this.user = user;
-        this.userAddress = userAddress;
-        this.token = ByteBuffer.allocate(TOKEN_BYTES).putInt(this.hashCode() + (int) (Math.random() * 1000000)).array();
-        this.startDate = this.lastActionDate = new Date();
+        this.token = token.clone();
+        this.tokenKey = ByteBuffer.wrap(this.token).getInt();
+        this.startDate = new Date(startTime);
+        this.lastActionTime = startTime;
     }
 
     /**
@@ -50,7 +59,35 @@ public class Session {
      * @return la data dell'ultima attività
      */
     public Date getLastActionDate() {
-        return new Date(lastActionDate.getTime());
+        return new Date(lastActionTime);
+    }
+
+    /**
+     * Restituisce l'istante dell'ultima attività dell'utente in millisecondi.
+     *
+     * @return l'istante dell'ultima attività
+     */
+    long getLastActionTime() {
+        return lastActionTime;
+    }
+
+    /**
+     * Registra un'attività dell'utente nell'istante specificato, se successivo all'ultima registrata.
+     *
+     * @param time l'istante in millisecondi
+     */
+    void touch(long time) {
+        if (time > lastActionTime)
+            lastActionTime = time;
+    }
+
+    /**
+     * Restituisce il token come intero, usato come chiave dell'indice delle sessioni.
+     *
+     * @return il token come intero
+     */
+    int getTokenKey() {
+        return tokenKey;
     }
 
     /**
@@ -59,7 +96,7 @@ public class Session {
      * @param lastActionDate la data dell'ultima attività
      */
     public void setLastActionDate(Date lastActionDate) {
-        this.lastActionDate = new Date(lastActionDate.getTime());
+        this.lastActionTime = lastActionDate.getTime();
     }
 
     /**
@@ -89,22 +126,4 @@ public class Session {
         return user;
     }
 
-
-    /**
-     * Restituisce l'indirizzo associato all'utente della sessione, oppure null se non ne esiste uno.
-     *
-     * @return un indirizzo
-     */
-    public InetSocketAddress getUserAddress() {
-        return userAddress;
-    }
-
-    /**
-     * Imposta l'indirizzo associato all'utente della sessione.
-     *
-     * @param userAddress l'indirizzo da associare
-     */
-    public void setUserAddress(InetSocketAddress userAddress) {
-        this.userAddress = userAddress;
-    }
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Un SessionIndex associa il token di una sessione, come intero, alla sessione stessa. È una tabella hash ad
+ * indirizzamento aperto: le ricerche non acquisiscono lock e non allocano oggetti, mentre inserimenti e rimozioni
+ * devono essere serializzati dal chiamante.
+ * <p>
+ * Le sessioni rimosse vengono sostituite da un segnaposto, così che le ricerche concorrenti non si interrompano prima
+ * di trovare una sessione inserita dopo. Quando la tabella è piena per metà viene ricostruita e pubblicata tramite un
+ * riferimento volatile.
+ */
+class SessionIndex {
+
+    private static final Object REMOVED = new Object();
+    private static final int INITIAL_CAPACITY = 1024;
+    private volatile AtomicReferenceArray<Object> table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private int used;
+    private int size;
+
+    /**
+     * Restituisce la sessione col token specificato, oppure null.
+     *
+     * @param token il token come intero
+     * @return la sessione oppure null
+     */
+    Session get(int token) {
+        AtomicReferenceArray<Object> t = table;
+        int mask = t.length() - 1;
+        for (int i = mix(token) & mask; ; i = (i + 1) & mask) {
+            Object o = t.get(i);
+            if (o == null)
+                return null;
+            if (o != REMOVED && ((Session) o).getTokenKey() == token)
+                return (Session) o;
+        }
+    }
+
+    /**
+     * Verifica se esiste una sessione col token specificato.
+     *
+     * @param token il token come intero
+     * @return true se il token è già in uso
+     */
+    boolean containsKey(int token) {
+        return get(token) != null;
+    }
+
+    /**
+     * Inserisce una sessione. Il token della sessione non deve essere già presente.
+     *
+     * @param session la sessione
+     */
+    void put(Session session) {
+        if ((used + 1) * 2 > table.length())
+            rebuild();
+        AtomicReferenceArray<Object> t = table;
+        int mask = t.length() - 1;
+        int i = mix(session.getTokenKey()) & mask;
+        while (t.get(i) != null && t.get(i) != REMOVED)
+            i = (i + 1) & mask;
+        if (t.get(i) == null)
+            used++;
+        t.set(i, session);
+        size++;
+    }
+
+    /**
+     * Rimuove una sessione, se presente.
+     *
+     * @param session la sessione
+     */
+    void remove(Session session) {
+        AtomicReferenceArray<Object> t = table;
+        int mask = t.length() - 1;
+        for (int i = mix(session.getTokenKey()) & mask; t.get(i) != null; i = (i + 1) & mask)
+            if (t.get(i) == session) {
+                t.set(i, REMOVED);
+                size--;
+                return;
+            }
+    }
+
+    /**
+     * Rimuove tutte le sessioni.
+     */
+    void clear() {
+        table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        used = size = 0;
+    }
+
+    private void rebuild() {
+        AtomicReferenceArray<Object> old = table;
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < (size + 1) * 4)
+            capacity <<= 1;
+        AtomicReferenceArray<Object> t = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < old.length(); j++) {
+            Object o = old.get(j);
+            if (o == null || o == REMOVED)
+                continue;
+            int i = mix(((Session) o).getTokenKey()) & mask;
+            while (t.get(i) != null)
+                i = (i + 1) & mask;
+            t.set(i, o);
+        }
+        used = size;
+        table = t;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
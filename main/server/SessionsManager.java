@@ -6,8 +6,10 @@ package server;
 
 import socialnetwork.User;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
@@ -15,6 +17,10 @@ import java.util.stream.Collectors;
 /**
  * Un SessionManager permette di creare e gestire sessioni di uno User nel social network. Una sessione viene creata con
  * un {@link #login(User)}, e distrutta dopo un {@link #logout(User)} o dopo un periodo definito.
+ * <p>
+ * Le sessioni sono indicizzate anche per token, così che la ricerca di una sessione a partire dal token e la
+ * registrazione di un'attività (v. {@link #touch(int, long)}) richiedano tempo costante, nessun lock e nessuna
+ * allocazione (v. {@link SessionIndex}).
  */
 public class SessionsManager {
 
@@ -22,7 +28,12 @@ public class SessionsManager {
     private Session oldestSession;
     private Timer oldestSessionTimer;
     private final Map<User, Session> sessionsMap = new HashMap<>();
+    private final SessionIndex sessionsByToken = new SessionIndex();
     private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder invalidTokens = new LongAdder();
     public static final long DEFAULT_SESSION_DURATION = TimeUnit.HOURS.toSeconds(24);
 
     /**
@@ -56,6 +67,17 @@ public class SessionsManager {
      * @throws IllegalArgumentException se user è null
      */
     public byte[] login(User user) throws IllegalArgumentException {
+        return openSession(user).getToken();
+    }
+
+    /**
+     * Come {@link #login(User)}, ma restituisce la sessione invece del solo token.
+     *
+     * @param user l'utente per il quale si vuole una sessione aperta
+     * @return la sessione
+     * @throws IllegalArgumentException se user è null
+     */
+    Session openSession(User user) throws IllegalArgumentException {
         if (user == null)
             throw new IllegalArgumentException();
 
@@ -64,14 +86,64 @@ public class SessionsManager {
             Session sessionForUser = sessionsMap.get(user);
             if (sessionForUser != null) {
                 sessionForUser.setLastActionDate(new Date());
-                return sessionForUser.getToken();
+                return sessionForUser;
             }
 
-            Session newSession = new Session(user);
+            Session newSession;
+            do
+                newSession = new Session(user);
+            while (sessionsByToken.containsKey(newSession.getTokenKey()));
             sessionsMap.put(user, newSession);
+            sessionsByToken.put(newSession);
+            created.increment();
             if (sessionsMap.size() == 1)
                 restartTimer();
-            return newSession.getToken();
+            return newSession;
+        } finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Apre per l'utente una sessione con un token e una data di creazione già assegnati, sostituendo un'eventuale
+     * sessione esistente. Permette a una replica di accettare i token emessi dal server primario: la sessione scade
+     * quando scadrebbe sul primario, purché i due server abbiano la stessa durata di sessione. Una sessione già scaduta
+     * non viene aperta, ma sostituisce comunque quella esistente.
+     *
+     * @param user      l'utente
+     * @param token     il token della sessione
+     * @param startTime l'istante di creazione della sessione sul primario in millisecondi
+     */
+    void restoreSession(User user, byte[] token, long startTime) {
+        readWriteLock.writeLock().lock();
+        try {
+            Session old = removeSession(user);
+            Session sameToken = sessionsByToken.get(ByteBuffer.wrap(token).getInt());
+            if (sameToken != null)
+                removeSession(sameToken.getUser());
+            Session session = null;
+            if (System.currentTimeMillis() - startTime < maxSessionDurationMillis) {
+                session = new Session(user, token, startTime);
+                sessionsMap.put(user, session);
+                sessionsByToken.put(session);
+            }
+            if (oldestSession == null || old == oldestSession || sameToken == oldestSession
+                    || session != null && startTime < oldestSession.getStartDate().getTime())
+                restartTimer();
+        } finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Elimina tutte le sessioni aperte.
+     */
+    void clear() {
+        readWriteLock.writeLock().lock();
+        try {
+            sessionsMap.clear();
+            sessionsByToken.clear();
+            restartTimer();
         } finally {
             readWriteLock.writeLock().unlock();
         }
@@ -89,7 +161,9 @@ public class SessionsManager {
 
         readWriteLock.writeLock().lock();
         try {
-            Session sessionForUser = sessionsMap.remove(user);
+            Session sessionForUser = removeSession(user);
+            if (sessionForUser != null)
+                closed.increment();
             if (sessionForUser != null && sessionForUser == oldestSession)
                 restartTimer();
         } finally {
@@ -118,7 +192,7 @@ public class SessionsManager {
     public Collection<Session> getSessions() {
         readWriteLock.readLock().lock();
         try {
-            return Collections.unmodifiableCollection(sessionsMap.values());
+            return Collections.unmodifiableCollection(new ArrayList<>(sessionsMap.values()));
         } finally {
             readWriteLock.readLock().unlock();
         }
@@ -131,17 +205,27 @@ public class SessionsManager {
      * @return la sessione corrispondente al token oppure null
      */
     public Session getSession(byte[] token) {
-        readWriteLock.readLock().lock();
-        try {
-            Optional<Session> s = sessionsMap.values().stream()
-                    .filter(o -> Arrays.equals(o.getToken(), token))
-                    .findFirst();
-            if (s.isPresent())
-                return s.get();
-            return null;
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        Session s = null;
+        if (token != null && token.length == Session.TOKEN_BYTES)
+            s = sessionsByToken.get(ByteBuffer.wrap(token).getInt());
+        if (s == null)
+            invalidTokens.increment();
+        return s;
+    }
+
+    /**
+     * Registra un'attività nella sessione col token specificato, senza acquisire lock.
+     *
+     * @param token il token della sessione come intero (v. {@link ByteBuffer#getInt()})
+     * @param time  l'istante dell'attività in millisecondi
+     * @return true se esiste una sessione aperta con quel token
+     */
+    public boolean touch(int token, long time) {
+        Session s = sessionsByToken.get(token);
+        if (s == null)
+            return false;
+        s.touch(time);
+        return true;
     }
 
     /**
@@ -159,6 +243,18 @@ public class SessionsManager {
         }
     }
 
+    /**
+     * Verifica se un utente ha una sessione aperta con un'attività negli ultimi millisecondi specificati.
+     *
+     * @param user   l'utente
+     * @param millis l'intervallo in millisecondi
+     * @return true se l'utente è attivo
+     */
+    public boolean isActive(User user, long millis) {
+        Session s = getSession(user);
+        return s != null && System.currentTimeMillis() - s.getLastActionTime() < millis;
+    }
+
     /**
      * Trova gli utenti attivi recentemente, cioè utenti che hanno sessioni aperte e per i quali è stato invocato {@link
      * #login(User)} negli ultimi secondi.
@@ -179,6 +275,58 @@ public class SessionsManager {
         }
     }
 
+    /**
+     * Restituisce il numero di sessioni aperte.
+     *
+     * @return il numero di sessioni aperte
+     */
+    public int getSessionsCount() {
+        readWriteLock.readLock().lock();
+        try {
+            return sessionsMap.size();
+        } finally {
+            readWriteLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Restituisce il numero di sessioni create con {@link #login(User)}.
+     */
+    public long getCreatedCount() {
+        return created.sum();
+    }
+
+    /**
+     * Restituisce il numero di sessioni chiuse con un logout.
+     */
+    public long getClosedCount() {
+        return closed.sum();
+    }
+
+    /**
+     * Restituisce il numero di sessioni scadute.
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Restituisce il numero di ricerche per token che non hanno trovato una sessione aperta.
+     */
+    public long getInvalidTokensCount() {
+        return invalidTokens.sum();
+    }
+
+    /**
+     * Rimuove la sessione di un utente da entrambi gli indici. Il chiamante deve possedere il write lock.
+     */
+    private Session removeSession(User user) {
+        Session s = sessionsMap.remove(user);
+        if (s != null)
+            sessionsByToken.remove(s);
+        return s;
+    }
+
     /**
      * Interrompe un eventuale timer attivo e ne avvia un nuovo per la sessione aperta più vecchia. Allo scadere del
      * timer, tale sessione viene distrutta.
@@ -196,7 +344,8 @@ public class SessionsManager {
             long fireDelay = maxSessionDurationMillis - oldestSessionDuration;
 
             if (fireDelay < 0) {
-                sessionsMap.remove(oldestSession.getUser());
+                removeSession(oldestSession.getUser());
+                expired.increment();
                 oldestSession = null;
                 restartTimer();
             } else {
@@ -205,7 +354,8 @@ public class SessionsManager {
                     @Override
                     public void run() {
                         readWriteLock.writeLock().lock();
-                        sessionsMap.remove(oldestSession.getUser());
+                        removeSession(oldestSession.getUser());
+                        expired.increment();
                         restartTimer();
                         readWriteLock.writeLock().unlock();
                     }
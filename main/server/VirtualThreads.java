@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Permette di usare i virtual thread quando il programma viene eseguito da una JVM che li supporta (Java 21 o
+ * successive), pur compilando con versioni precedenti.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Indica se la JVM supporta i virtual thread.
+     *
+     * @return true se i virtual thread sono disponibili
+     */
+    public static boolean isSupported() {
+        return Runtime.version().feature() >= 21;
+    }
+
+    /**
+     * Crea un ExecutorService che esegue ogni task in un nuovo virtual thread.
+     *
+     * @return l'ExecutorService, oppure null se la JVM non supporta i virtual thread
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (!isSupported())
+            return null;
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+}
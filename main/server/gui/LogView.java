@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.gui;
+
+import server.log.LogEvent;
+import server.log.LogSink;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Una LogView mostra in una JTextArea gli ultimi MAX_LINES messaggi di log. Il testo può essere aggiunto da qualsiasi
+ * thread senza attendere l'EDT: viene accumulato in una coda limitata e aggiunto alla JTextArea da un solo task
+ * invokeLater alla volta, per cui un'EDT lenta riceve il testo a blocchi e la memoria occupata resta limitata anche se
+ * il server produce messaggi più velocemente di quanto la JTextArea riesca a mostrarli.
+ */
+class LogView implements LogSink {
+
+    static final int MAX_LINES = 1000;
+
+    private final JTextArea textArea;
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private boolean scheduled;
+
+    LogView(JTextArea textArea) {
+        this.textArea = textArea;
+    }
+
+    @Override
+    public void write(List<LogEvent> events) {
+        StringBuilder sb = new StringBuilder();
+        for (LogEvent event : events)
+            sb.append(event.format()).append('\n');
+        append(sb.toString());
+    }
+
+    /**
+     * Accoda del testo da aggiungere alla JTextArea. Se la coda contiene più di MAX_LINES blocchi di testo, i più
+     * vecchi vengono scartati.
+     *
+     * @param text il testo
+     */
+    void append(String text) {
+        synchronized (pending) {
+            pending.add(text);
+            while (pending.size() > MAX_LINES)
+                pending.poll();
+            if (scheduled)
+                return;
+            scheduled = true;
+        }
+        SwingUtilities.invokeLater(this::flush);
+    }
+
+    private void flush() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (pending) {
+            for (String text : pending)
+                sb.append(text);
+            pending.clear();
+            scheduled = false;
+        }
+        textArea.append(sb.toString());
+
+        int excess = textArea.getLineCount() - MAX_LINES;
+        if (excess > 0)
+            try {
+                textArea.replaceRange("", 0, textArea.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+
+            }
+    }
+
+}
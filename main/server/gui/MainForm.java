@@ -22,24 +22,20 @@ public class MainForm {
     private JButton startButton;
     private JTextArea textArea;
     private JButton stopButton;
+    private final LogView logView;
 
     public void appendToTextArea(String s) {
-        if (SwingUtilities.isEventDispatchThread())
-            textArea.append(s);
-        else
-            try {
-                SwingUtilities.invokeAndWait(() -> textArea.append(s));
-            } catch (Exception e) {
-
-            }
+        logView.append(s);
     }
 
     public MainForm() {
-        // Dirotta lo stdout e stderr sulla textarea
+        logView = new LogView(textArea);
+
+        // Dirotta lo stdout e stderr sulla textarea, senza attendere l'EDT
         OutputStream out = new OutputStream() {
             @Override
             public void write(final int b) throws IOException {
-                appendToTextArea(String.valueOf(b));
+                appendToTextArea(String.valueOf((char) b));
             }
 
             @Override
@@ -54,7 +50,8 @@ public class MainForm {
         };
 
         PrintStream ps = new PrintStream(out, true);
-        server = new Server(ps, true);
+        server = new Server(null, true);
+        server.getLogger().addSink(logView);
         System.setErr(ps);
         System.setOut(ps);
 
@@ -69,7 +66,7 @@ public class MainForm {
                     try {
                         server.startServer();
                     } catch (Exception e) {
-                        System.out.println("[ERROR] " + e.getMessage());
+                        server.getLogger().error("Starting the server", "error", e.getMessage());
                         SwingUtilities.invokeLater(() -> {
                             startButton.setEnabled(true);
                             stopButton.setEnabled(false);
@@ -87,7 +84,7 @@ public class MainForm {
                     stopButton.setEnabled(false);
                     server.close();
                 } catch (Exception e) {
-                    System.out.println("[ERROR] " + e.getMessage());
+                    server.getLogger().error("Stopping the server", "error", e.getMessage());
                 }
             }
         });
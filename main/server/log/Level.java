@@ -0,0 +1,15 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.log;
+
+/**
+ * I livelli di gravità dei messaggi di log, dal meno al più grave.
+ */
+public enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.log;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Un messaggio di log immutabile: istante, livello, thread che lo ha prodotto, testo e campi strutturati, cioè coppie
+ * nome-valore che si possono filtrare o estrarre senza interpretare il testo.
+ */
+public final class LogEvent {
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    private final long timestamp;
+    private final Level level;
+    private final String thread;
+    private final String message;
+    private final Object[] fields;
+
+    LogEvent(long timestamp, Level level, String thread, String message, Object[] fields) {
+        this.timestamp = timestamp;
+        this.level = level;
+        this.thread = thread;
+        this.message = message;
+        this.fields = fields;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public String getThread() {
+        return thread;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Restituisce il numero di campi strutturati.
+     *
+     * @return il numero di campi
+     */
+    public int getFieldsCount() {
+        return fields.length / 2;
+    }
+
+    public String getFieldName(int i) {
+        return String.valueOf(fields[2 * i]);
+    }
+
+    public Object getFieldValue(int i) {
+        return fields[2 * i + 1];
+    }
+
+    /**
+     * Restituisce il messaggio su una riga, nella forma "data livello [thread] testo nome=valore ...". I valori che
+     * contengono spazi o virgolette vengono racchiusi tra virgolette.
+     *
+     * @return la riga, senza terminatore
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder(64 + message.length());
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(timestamp), sb);
+        sb.append(' ').append(level);
+        if (level.name().length() < 5)
+            sb.append(' ');
+        sb.append(" [").append(thread).append("] ").append(message);
+        for (int i = 0; i < getFieldsCount(); i++) {
+            sb.append(' ').append(getFieldName(i)).append('=');
+            String value = String.valueOf(getFieldValue(i));
+            if (value.isEmpty() || value.indexOf(' ') >= 0 || value.indexOf('"') >= 0)
+                sb.append('"').append(value.replace("\"", "\\\"")).append('"');
+            else
+                sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return format();
+    }
+
+}
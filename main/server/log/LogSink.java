@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Una destinazione dei messaggi di un {@link Logger}. I messaggi vengono consegnati a gruppi dal thread di scrittura
+ * del Logger, mai dai thread che li producono, per cui una LogSink può fare I/O senza rallentare le richieste.
+ */
+public interface LogSink extends Closeable {
+
+    /**
+     * Scrive un gruppo di messaggi, in ordine di arrivo.
+     *
+     * @param events i messaggi
+     * @throws IOException se la scrittura non riesce, i messaggi vengono persi
+     */
+    void write(List<LogEvent> events) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.log;
+
+import server.RingBuffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Un Logger raccoglie i messaggi di log del server e li consegna in modo asincrono a una o più {@link LogSink}.
+ * <p>
+ * I thread che producono un messaggio lo inseriscono in un buffer circolare limitato senza lock (v.
+ * {@link RingBuffer}) e proseguono: la formattazione e l'I/O vengono eseguiti da un unico thread di scrittura, che
+ * consegna i messaggi alle sink a gruppi di al più MAX_BATCH. Se il buffer è pieno, perché le sink sono più lente dei
+ * produttori, il messaggio viene scartato invece di bloccare la richiesta che lo ha prodotto; il numero di messaggi
+ * scartati viene segnalato con un messaggio WARN appena possibile.
+ * <p>
+ * Ogni messaggio ha un livello (v. {@link Level}), un testo fisso e dei campi strutturati passati come coppie
+ * nome-valore, ad esempio {@code logger.info("New user", "user", username)}. I messaggi sotto il livello minimo
+ * vengono scartati senza essere allocati.
+ */
+public class Logger implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final int MAX_BATCH = 256;
+    private static final long IDLE_WAIT = TimeUnit.SECONDS.toNanos(1);
+    private static final long FLUSH_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    private final RingBuffer<LogEvent> buffer;
+    private final List<LogSink> sinks = new CopyOnWriteArrayList<>();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile Level level = Level.INFO;
+    private volatile boolean waiting;
+    private volatile boolean closed;
+    private volatile long written;
+
+    /**
+     * Crea un Logger con un buffer di DEFAULT_CAPACITY messaggi e ne avvia il thread di scrittura.
+     */
+    public Logger() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Crea un Logger e ne avvia il thread di scrittura.
+     *
+     * @param capacity il numero di messaggi che possono attendere di essere scritti
+     * @throws IllegalArgumentException se capacity non è positiva
+     */
+    public Logger(int capacity) {
+        buffer = new RingBuffer<>(capacity);
+        writer = new Thread(this::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Aggiunge una destinazione dei messaggi.
+     *
+     * @param sink la destinazione
+     * @throws IllegalArgumentException se sink è null
+     */
+    public void addSink(LogSink sink) {
+        if (sink == null)
+            throw new IllegalArgumentException();
+        sinks.add(sink);
+    }
+
+    /**
+     * Rimuove una destinazione dei messaggi, senza chiuderla.
+     *
+     * @param sink la destinazione
+     */
+    public void removeSink(LogSink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Imposta il livello minimo dei messaggi da scrivere.
+     *
+     * @param level il livello
+     * @throws IllegalArgumentException se level è null
+     */
+    public void setLevel(Level level) {
+        if (level == null)
+            throw new IllegalArgumentException();
+        this.level = level;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public void debug(String message, Object... fields) {
+        log(Level.DEBUG, message, fields);
+    }
+
+    public void info(String message, Object... fields) {
+        log(Level.INFO, message, fields);
+    }
+
+    public void warn(String message, Object... fields) {
+        log(Level.WARN, message, fields);
+    }
+
+    public void error(String message, Object... fields) {
+        log(Level.ERROR, message, fields);
+    }
+
+    /**
+     * Accoda un messaggio, senza mai bloccarsi.
+     *
+     * @param level   il livello
+     * @param message il testo
+     * @param fields  i campi strutturati, come sequenza di nomi e valori alternati
+     */
+    public void log(Level level, String message, Object... fields) {
+        if (level == null || !isEnabled(level) || closed)
+            return;
+        if (fields.length % 2 != 0)
+            fields = Arrays.copyOf(fields, fields.length + 1);
+        LogEvent event = new LogEvent(System.currentTimeMillis(), level, Thread.currentThread().getName(),
+                String.valueOf(message), fields);
+        if (!buffer.offer(event)) {
+            dropped.increment();
+            return;
+        }
+        if (waiting)
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * Attende, per al più un secondo, che i messaggi accodati finora siano stati consegnati alle sink.
+     */
+    public void flush() {
+        long target = buffer.getProducedCount();
+        long deadline = System.nanoTime() + FLUSH_TIMEOUT;
+        LockSupport.unpark(writer);
+        while (written < target && writer.isAlive() && System.nanoTime() - deadline < 0)
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * Restituisce il numero di messaggi scartati perché il buffer era pieno.
+     *
+     * @return il numero di messaggi scartati
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Restituisce il numero di messaggi in attesa di essere scritti.
+     *
+     * @return il numero di messaggi accodati
+     */
+    public int getQueueLength() {
+        return buffer.size();
+    }
+
+    private void writeLoop() {
+        List<LogEvent> batch = new ArrayList<>(MAX_BATCH);
+        long reportedDrops = 0;
+        while (true) {
+            LogEvent event;
+            while (batch.size() < MAX_BATCH && (event = buffer.poll()) != null)
+                batch.add(event);
+            long drops = dropped.sum();
+            if (drops > reportedDrops) {
+                batch.add(new LogEvent(System.currentTimeMillis(), Level.WARN, writer.getName(), "Log events dropped",
+                        new Object[]{"count", drops - reportedDrops}));
+                reportedDrops = drops;
+            }
+            if (!batch.isEmpty()) {
+                for (LogSink sink : sinks)
+                    try {
+                        sink.write(batch);
+                    } catch (IOException | RuntimeException e) {
+
+                    }
+                batch.clear();
+                written = buffer.getConsumedCount();
+                continue;
+            }
+            written = buffer.getConsumedCount();
+            if (closed)
+                break;
+
+            // Il flag viene scritto prima di ricontrollare il buffer, per non perdere i risvegli dei produttori
+            waiting = true;
+            if (buffer.size() == 0 && !closed)
+                LockSupport.parkNanos(this, IDLE_WAIT);
+            waiting = false;
+        }
+        for (LogSink sink : sinks)
+            try {
+                sink.close();
+            } catch (IOException e) {
+
+            }
+    }
+
+    /**
+     * Scrive i messaggi accodati, quindi ferma il thread di scrittura e chiude le sink. I messaggi successivi vengono
+     * scartati.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.NANOSECONDS.toMillis(FLUSH_TIMEOUT));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.log;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Una LogSink che scrive i messaggi su un PrintStream, ad esempio la console, una riga per messaggio.
+ */
+public class PrintStreamSink implements LogSink {
+
+    private final PrintStream out;
+
+    /**
+     * Crea una PrintStreamSink.
+     *
+     * @param out il PrintStream, che non viene chiuso con la sink
+     * @throws IllegalArgumentException se out è null
+     */
+    public PrintStreamSink(PrintStream out) {
+        if (out == null)
+            throw new IllegalArgumentException();
+        this.out = out;
+    }
+
+    @Override
+    public void write(List<LogEvent> events) {
+        StringBuilder sb = new StringBuilder();
+        for (LogEvent event : events)
+            sb.append(event.format()).append(System.lineSeparator());
+        out.print(sb);
+        out.flush();
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Una LogSink che scrive i messaggi su un file, una riga per messaggio. Quando il file supera una dimensione massima
+ * viene rinominato in file.1, il precedente file.1 in file.2 e così via, fino a maxFiles file: i più vecchi vengono
+ * cancellati, per cui il log occupa al più (maxFiles + 1) * maxBytes byte circa. Ogni gruppo di messaggi viene
+ * scritto con una sola operazione di flush.
+ */
+public class RollingFileSink implements LogSink {
+
+    public static final long DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 5;
+
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private Writer writer;
+    private long size;
+
+    /**
+     * Crea una RollingFileSink che aggiunge i messaggi in coda al file, se esiste già.
+     *
+     * @param file     il file
+     * @param maxBytes la dimensione oltre la quale il file viene ruotato
+     * @param maxFiles il numero di file ruotati da conservare
+     * @throws IOException              se il file non può essere aperto
+     * @throws IllegalArgumentException se file è null, maxBytes non è positivo o maxFiles è negativo
+     */
+    public RollingFileSink(Path file, long maxBytes, int maxFiles) throws IOException {
+        if (file == null || maxBytes <= 0 || maxFiles < 0)
+            throw new IllegalArgumentException();
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        open();
+    }
+
+    private void open() throws IOException {
+        writer = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND));
+        size = Files.size(file);
+    }
+
+    @Override
+    public synchronized void write(List<LogEvent> events) throws IOException {
+        if (writer == null)
+            open();
+        for (LogEvent event : events) {
+            String line = event.format() + System.lineSeparator();
+            writer.write(line);
+            size += line.length();
+        }
+        writer.flush();
+        if (size >= maxBytes)
+            roll();
+    }
+
+    private void roll() throws IOException {
+        writer.close();
+        writer = null;
+        if (maxFiles == 0)
+            Files.delete(file);
+        else {
+            Files.deleteIfExists(rolled(maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--)
+                if (Files.exists(rolled(i)))
+                    Files.move(rolled(i), rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        open();
+    }
+
+    private Path rolled(int i) {
+        return file.resolveSibling(file.getFileName() + "." + i);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null)
+            writer.close();
+        writer = null;
+    }
+
+}
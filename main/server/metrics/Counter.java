@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Un Counter è un contatore che può essere incrementato da molti thread contemporaneamente senza contesa: il valore è
+ * distribuito su più celle (v. {@link LongAdder}) che vengono sommate solo quando il valore viene letto. Può essere
+ * decrementato, per contare ad esempio le connessioni aperte.
+ */
+public class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void decrement() {
+        value.decrement();
+    }
+
+    public void add(long n) {
+        value.add(n);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Un Histogram registra la distribuzione di valori non negativi, tipicamente latenze in microsecondi, con un errore
+ * relativo di al più 1/32 (circa 3%) e memoria costante.
+ * <p>
+ * Come in un HdrHistogram, i valori minori di SUB_BUCKETS hanno un intervallo ciascuno, mentre ogni potenza di 2
+ * successiva è divisa in SUB_BUCKETS / 2 intervalli di uguale ampiezza. Registrare un valore costa un incremento
+ * atomico del contatore del suo intervallo, senza lock né allocazioni, per cui un Histogram può essere aggiornato da
+ * molti thread sul percorso critico di una richiesta.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Una copia della distribuzione registrata fino a un certo istante.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long sum, long max) {
+            long count = 0;
+            for (long c : counts)
+                count += c;
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Restituisce il valore sotto il quale cade la percentuale specificata dei valori registrati, approssimato per
+         * eccesso all'estremo del suo intervallo.
+         *
+         * @param percentile la percentuale, tra 0 e 100
+         * @return il percentile, oppure 0 se non sono stati registrati valori
+         * @throws IllegalArgumentException se percentile non è compreso tra 0 e 100
+         */
+        public long getPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100)
+                throw new IllegalArgumentException();
+            if (count == 0)
+                return 0;
+            long rank = Math.max((long) Math.ceil(count * percentile / 100), 1);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(highestValueOf(i), max);
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Registra un valore.
+     *
+     * @param value il valore, i valori negativi vengono registrati come 0
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(indexOf(value));
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get();
+    }
+
+    /**
+     * Registra il tempo trascorso da un istante in microsecondi.
+     *
+     * @param startNanos l'istante iniziale, ottenuto con {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            copy[i] = counts.get(i);
+        return new Snapshot(copy, sum.sum(), max.get());
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long subBucket = index - (long) shift * HALF_SUB_BUCKETS;
+        long highest = ((subBucket + 1) << shift) - 1;
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+
+}
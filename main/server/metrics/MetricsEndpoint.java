@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.metrics;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Un MetricsEndpoint espone le metriche di un {@link MetricsRegistry} come testo su una porta locale, raggiungibile
+ * solo dalla stessa macchina. Risponde a ogni richiesta HTTP con il testo prodotto da
+ * {@link MetricsRegistry#dump(Writer)}, per cui le metriche si possono leggere con curl o da un sistema di monitoraggio.
+ * Altri componenti possono esporre testo su altri percorsi (v. {@link #addPage(String, Consumer)}). Le connessioni
+ * vengono servite una alla volta da un unico thread.
+ */
+public class MetricsEndpoint implements Closeable {
+
+    private static final int TIMEOUT = (int) TimeUnit.SECONDS.toMillis(2);
+
+    private final MetricsRegistry registry;
+    private final ServerSocket serverSocket;
+    private final Map<String, Consumer<Writer>> pages = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * Crea un MetricsEndpoint in ascolto sull'interfaccia di loopback e avvia il thread che lo serve.
+     *
+     * @param registry le metriche da esporre
+     * @param port     la porta
+     * @throws IOException              se non è possibile aprire la porta
+     * @throws IllegalArgumentException se registry è null
+     */
+    public MetricsEndpoint(MetricsRegistry registry, int port) throws IOException {
+        if (registry == null)
+            throw new IllegalArgumentException();
+        this.registry = registry;
+        serverSocket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(this::serve, "metrics-endpoint");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void serve() {
+        while (!closed) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(TIMEOUT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.ISO_8859_1));
+                String requestLine = in.readLine();
+                String line = requestLine;
+                while (line != null && !line.isEmpty())
+                    line = in.readLine();
+
+                // La riga di richiesta è "GET /percorso HTTP/1.x"
+                String[] request = requestLine == null ? new String[0] : requestLine.split(" ");
+                Consumer<Writer> page = request.length > 1 ? pages.get(request[1]) : null;
+                StringWriter body = new StringWriter();
+                String status = "200 OK";
+                if (page != null)
+                    page.accept(body);
+                else if (request.length < 2 || request[1].equals("/"))
+                    registry.dump(body);
+                else {
+                    status = "404 Not Found";
+                    body.write("Not found\n");
+                }
+                byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                out.write(("HTTP/1.0 " + status + "\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: "
+                        + bytes.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.write(bytes);
+                out.flush();
+            } catch (IOException e) {
+
+            }
+        }
+    }
+
+    /**
+     * Espone su un percorso il testo prodotto da una funzione, invocata dal thread del MetricsEndpoint a ogni richiesta
+     * di quel percorso.
+     *
+     * @param path il percorso, ad esempio "/traces"
+     * @param page la funzione che scrive il testo
+     * @throws IllegalArgumentException se path non inizia con '/' oppure page è null
+     */
+    public void addPage(String path, Consumer<Writer> page) {
+        if (path == null || !path.startsWith("/") || page == null)
+            throw new IllegalArgumentException();
+        pages.put(path, page);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.metrics;
+
+import javax.management.*;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Un MetricsRegistry raccoglie le metriche di un server, ognuna identificata da un nome composto da parole separate da
+ * punti (ad esempio requests.find_user.latency). Le metriche possono essere:
+ * <p>
+ * - {@link Counter}, contatori aggiornati dal codice instrumentato;
+ * <p>
+ * - {@link Histogram}, distribuzioni di valori, esportate come numero di valori, media, 50°, 90° e 99° percentile e
+ * massimo;
+ * <p>
+ * - gauge, valori letti da una funzione solo quando le metriche vengono esportate, ad esempio la lunghezza di una coda
+ * o un contatore già mantenuto da un componente.
+ * <p>
+ * Le metriche vengono esportate come testo (v. {@link #dump(Writer)}) oppure tramite JMX, registrando il registry come
+ * MBean (v. {@link #registerMBean(String)}): ogni valore esportato diventa un attributo in sola lettura.
+ */
+public class MetricsRegistry implements DynamicMBean {
+
+    private final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+    private ObjectName objectName;
+
+    /**
+     * Restituisce il Counter col nome specificato, creandolo se non esiste.
+     *
+     * @param name il nome
+     * @return il Counter
+     * @throws IllegalArgumentException se esiste già una metrica di altro tipo con quel nome
+     */
+    public Counter counter(String name) {
+        return get(name, Counter.class);
+    }
+
+    /**
+     * Restituisce l'Histogram col nome specificato, creandolo se non esiste.
+     *
+     * @param name il nome
+     * @return l'Histogram
+     * @throws IllegalArgumentException se esiste già una metrica di altro tipo con quel nome
+     */
+    public Histogram histogram(String name) {
+        return get(name, Histogram.class);
+    }
+
+    /**
+     * Registra un gauge, sostituendo un eventuale gauge con lo stesso nome.
+     *
+     * @param name     il nome
+     * @param supplier la funzione che restituisce il valore del gauge, invocata da qualsiasi thread
+     * @throws IllegalArgumentException se esiste già una metrica di altro tipo con quel nome
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        if (name == null || supplier == null)
+            throw new IllegalArgumentException();
+        Object old = metrics.put(name, supplier);
+        if (old != null && !(old instanceof LongSupplier)) {
+            metrics.put(name, old);
+            throw new IllegalArgumentException(name + " is not a gauge");
+        }
+    }
+
+    /**
+     * Rimuove la metrica col nome specificato, se esiste.
+     *
+     * @param name il nome
+     */
+    public void remove(String name) {
+        metrics.remove(name);
+    }
+
+    private <T> T get(String name, Class<T> type) {
+        if (name == null)
+            throw new IllegalArgumentException();
+        Object metric = metrics.get(name);
+        if (metric == null)
+            metric = metrics.computeIfAbsent(name, n -> type == Counter.class ? new Counter() : new Histogram());
+        if (!type.isInstance(metric))
+            throw new IllegalArgumentException(name + " is not a " + type.getSimpleName());
+        return type.cast(metric);
+    }
+
+    /**
+     * Restituisce i valori correnti di tutte le metriche, in ordine di nome. Un Histogram col nome h produce i valori
+     * h.count, h.mean, h.p50, h.p90, h.p99 e h.max.
+     *
+     * @return una mappa dai nomi ai valori
+     */
+    public Map<String, Number> getValues() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> e : metrics.entrySet()) {
+            String name = e.getKey();
+            Object metric = e.getValue();
+            if (metric instanceof Counter)
+                values.put(name, ((Counter) metric).get());
+            else if (metric instanceof LongSupplier)
+                try {
+                    values.put(name, ((LongSupplier) metric).getAsLong());
+                } catch (RuntimeException ex) {
+
+                }
+            else {
+                Histogram.Snapshot s = ((Histogram) metric).snapshot();
+                values.put(name + ".count", s.getCount());
+                values.put(name + ".mean", Math.round(s.getMean() * 10) / 10.0);
+                values.put(name + ".p50", s.getPercentile(50));
+                values.put(name + ".p90", s.getPercentile(90));
+                values.put(name + ".p99", s.getPercentile(99));
+                values.put(name + ".max", s.getMax());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Scrive i valori correnti di tutte le metriche, uno per riga nella forma "nome valore".
+     *
+     * @param out il Writer su cui scrivere
+     */
+    public void dump(Writer out) {
+        PrintWriter writer = new PrintWriter(out);
+        getValues().forEach((name, value) -> writer.println(name + " " + value));
+        writer.flush();
+    }
+
+    /**
+     * Registra il registry nel MBeanServer della piattaforma col nome specificato, sostituendo una registrazione
+     * precedente.
+     *
+     * @param name il nome dell'MBean, ad esempio "simplesocial:type=Metrics,port=11234"
+     * @throws JMException se il nome non è valido o la registrazione non riesce
+     */
+    public synchronized void registerMBean(String name) throws JMException {
+        unregisterMBean();
+        ObjectName objectName = new ObjectName(name);
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        if (mBeanServer.isRegistered(objectName))
+            mBeanServer.unregisterMBean(objectName);
+        mBeanServer.registerMBean(this, objectName);
+        this.objectName = objectName;
+    }
+
+    /**
+     * Rimuove il registry dal MBeanServer della piattaforma, se vi era stato registrato.
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+
+        }
+        objectName = null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = getValues().get(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = getValues();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes)
+            if (values.containsKey(attribute))
+                list.add(new Attribute(attribute, values.get(attribute)));
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> values = getValues();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> e : values.entrySet())
+            attributes[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true,
+                    false, false);
+        return new MBeanInfo(getClass().getName(), "Simple-Social server metrics", attributes, null, null, null);
+    }
+
+}
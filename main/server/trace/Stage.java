@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.trace;
+
+import java.util.Locale;
+
+/**
+ * Le fasi di una richiesta registrate da un {@link Trace}:
+ * <p>
+ * - DECODE, la lettura dei dati della richiesta dal socket;
+ * <p>
+ * - AUTH, la lettura e la verifica del token e del budget dell'utente;
+ * <p>
+ * - LOCK, l'attesa per un lock della rete sociale, inclusa nell'operazione che lo ha richiesto;
+ * <p>
+ * - DOMAIN, l'operazione sulla rete sociale o sulle sessioni;
+ * <p>
+ * - FANOUT, le notifiche ai follower e le richieste agli altri nodi del cluster;
+ * <p>
+ * - ENCODE, la scrittura della risposta sul socket.
+ */
+public enum Stage {
+    DECODE,
+    AUTH,
+    LOCK,
+    DOMAIN,
+    FANOUT,
+    ENCODE;
+
+    private final String label = name().toLowerCase(Locale.ROOT);
+
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.trace;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Un Trace registra le fasi (span) di una singola richiesta: per ognuna la fase (v. {@link Stage}), l'istante di
+ * inizio relativo all'inizio della richiesta e la durata. Le fasi possono essere annidate, ad esempio un'attesa per
+ * un lock durante un'operazione sulla rete. Oltre MAX_SPANS fasi, le successive vengono ignorate.
+ * <p>
+ * Un Trace viene scritto solo dal thread che serve la richiesta, e letto dagli altri thread solo dopo essere stato
+ * concluso (v. {@link Tracer#end(Trace)}).
+ */
+public final class Trace {
+
+    public static final int MAX_SPANS = 16;
+
+    private final long id;
+    private final String requestName;
+    private final long startMillis;
+    private final long startNanos;
+    private final Stage[] stages = new Stage[MAX_SPANS];
+    private final long[] offsets = new long[MAX_SPANS];
+    private final long[] durations = new long[MAX_SPANS];
+    private int spans;
+    private String user;
+    private long durationNanos = -1;
+
+    Trace(long id, String requestName) {
+        this.id = id;
+        this.requestName = requestName;
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Registra una fase terminata adesso.
+     *
+     * @param stage      la fase
+     * @param startNanos l'istante di inizio della fase, ottenuto con {@link System#nanoTime()}
+     */
+    public void span(Stage stage, long startNanos) {
+        if (spans == MAX_SPANS || durationNanos >= 0)
+            return;
+        stages[spans] = stage;
+        offsets[spans] = startNanos - this.startNanos;
+        durations[spans] = System.nanoTime() - startNanos;
+        spans++;
+    }
+
+    /**
+     * Imposta l'utente che ha inviato la richiesta, dopo la verifica del token.
+     *
+     * @param user il nome dell'utente
+     */
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    void finish() {
+        durationNanos = System.nanoTime() - startNanos;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getRequestName() {
+        return requestName;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Restituisce la durata della richiesta in microsecondi.
+     *
+     * @return la durata, oppure -1 se la richiesta non è ancora conclusa
+     */
+    public long getDuration() {
+        return durationNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(durationNanos);
+    }
+
+    public int getSpansCount() {
+        return spans;
+    }
+
+    public Stage getStage(int i) {
+        return stages[i];
+    }
+
+    /**
+     * Restituisce l'inizio di una fase in microsecondi dall'inizio della richiesta.
+     *
+     * @param i l'indice della fase
+     * @return l'inizio della fase
+     */
+    public long getSpanOffset(int i) {
+        return TimeUnit.NANOSECONDS.toMicros(offsets[i]);
+    }
+
+    /**
+     * Restituisce la durata di una fase in microsecondi.
+     *
+     * @param i l'indice della fase
+     * @return la durata della fase
+     */
+    public long getSpanDuration(int i) {
+        return TimeUnit.NANOSECONDS.toMicros(durations[i]);
+    }
+
+    /**
+     * Restituisce le fasi nella forma "fase@inizio+durata ...", con i tempi in microsecondi, ad esempio
+     * "auth@3+25 domain@30+410 lock@31+390 fanout@442+12000 encode@12450+20".
+     *
+     * @return le fasi
+     */
+    public String formatSpans() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < spans; i++) {
+            if (i > 0)
+                sb.append(' ');
+            sb.append(stages[i].getLabel()).append('@').append(getSpanOffset(i)).append('+')
+                    .append(getSpanDuration(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Restituisce il Trace su una riga: id, tipo di richiesta, utente, durata in microsecondi e fasi.
+     *
+     * @return la riga
+     */
+    @Override
+    public String toString() {
+        return "#" + id + " " + requestName + " user=" + (user == null ? "-" : user) + " duration="
+                + getDuration() + "us " + formatSpans();
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package server.trace;
+
+import server.log.Logger;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Un Tracer registra le fasi di ogni richiesta servita dal server (v. {@link Trace}). Il Trace della richiesta in
+ * corso è associato al thread che la serve, per cui le fasi si possono registrare anche da componenti che non lo
+ * ricevono come parametro, ad esempio l'attesa per un lock della rete sociale (v. {@link #lockWait(long)}).
+ * <p>
+ * Al termine di una richiesta il suo Trace viene conservato solo se:
+ * <p>
+ * - la richiesta è lenta, cioè è durata almeno slowThreshold millisecondi: il Trace viene conservato tra le richieste
+ * lente e scritto nel log con livello WARN;
+ * <p>
+ * - la richiesta è stata campionata, con probabilità sampleRate: il Trace viene conservato tra le richieste recenti.
+ * <p>
+ * Entrambi gli insiemi sono buffer circolari di CAPACITY elementi, per cui la memoria occupata non dipende dal carico e
+ * i Trace più vecchi vengono sostituiti dai nuovi. I Trace conservati si leggono con {@link #dump(Writer)}.
+ */
+public class Tracer {
+
+    public static final int CAPACITY = 256;
+    public static final double DEFAULT_SAMPLE_RATE = 0.01;
+    public static final long DEFAULT_SLOW_THRESHOLD = 100;
+
+    private final Logger logger;
+    private final ThreadLocal<Trace> current = new ThreadLocal<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicReferenceArray<Trace> recent = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong recentCount = new AtomicLong();
+    private final AtomicReferenceArray<Trace> slow = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong slowCount = new AtomicLong();
+    private volatile double sampleRate = DEFAULT_SAMPLE_RATE;
+    private volatile long slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_THRESHOLD);
+
+    /**
+     * Crea un Tracer.
+     *
+     * @param logger il log su cui scrivere le richieste lente
+     * @throws IllegalArgumentException se logger è null
+     */
+    public Tracer(Logger logger) {
+        if (logger == null)
+            throw new IllegalArgumentException();
+        this.logger = logger;
+    }
+
+    /**
+     * Imposta la probabilità con cui una richiesta viene conservata tra le richieste recenti.
+     *
+     * @param sampleRate la probabilità, 0 per non conservarne nessuna e 1 per conservarle tutte
+     * @throws IllegalArgumentException se sampleRate non è compreso tra 0 e 1
+     */
+    public void setSampleRate(double sampleRate) {
+        if (!(sampleRate >= 0 && sampleRate <= 1))
+            throw new IllegalArgumentException();
+        this.sampleRate = sampleRate;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Imposta la durata oltre la quale una richiesta è considerata lenta.
+     *
+     * @param millis la durata in millisecondi
+     * @throws IllegalArgumentException se millis è negativo
+     */
+    public void setSlowThreshold(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException();
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public long getSlowThreshold() {
+        return TimeUnit.NANOSECONDS.toMillis(slowThresholdNanos);
+    }
+
+    /**
+     * Inizia il Trace di una richiesta e lo associa al thread corrente.
+     *
+     * @param requestName il nome del tipo di richiesta
+     * @return il Trace
+     */
+    public Trace begin(String requestName) {
+        Trace trace = new Trace(nextId.incrementAndGet(), requestName);
+        current.set(trace);
+        return trace;
+    }
+
+    /**
+     * Conclude il Trace di una richiesta, lo separa dal thread corrente e decide se conservarlo.
+     *
+     * @param trace il Trace restituito da {@link #begin(String)}
+     */
+    public void end(Trace trace) {
+        trace.finish();
+        current.remove();
+        if (trace.getDuration() >= TimeUnit.NANOSECONDS.toMicros(slowThresholdNanos)) {
+            slow.set((int) (slowCount.getAndIncrement() % CAPACITY), trace);
+            logger.warn("Slow request", "id", trace.getId(), "type", trace.getRequestName(), "user", trace.getUser(),
+                    "duration_us", trace.getDuration(), "spans", trace.formatSpans());
+        } else if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate)
+            recent.set((int) (recentCount.getAndIncrement() % CAPACITY), trace);
+    }
+
+    /**
+     * Restituisce il Trace della richiesta servita dal thread corrente.
+     *
+     * @return il Trace, oppure null se il thread non sta servendo una richiesta
+     */
+    public Trace current() {
+        return current.get();
+    }
+
+    /**
+     * Registra una fase nel Trace della richiesta servita dal thread corrente, se esiste.
+     *
+     * @param stage      la fase
+     * @param startNanos l'istante di inizio della fase, ottenuto con {@link System#nanoTime()}
+     */
+    public void span(Stage stage, long startNanos) {
+        Trace trace = current.get();
+        if (trace != null)
+            trace.span(stage, startNanos);
+    }
+
+    /**
+     * Registra un'attesa per un lock terminata adesso. Si può usare come listener della rete sociale (v.
+     * {@link socialnetwork.UsersNetwork#setLockWaitListener(java.util.function.LongConsumer)}).
+     *
+     * @param startNanos l'istante di inizio dell'attesa, ottenuto con {@link System#nanoTime()}
+     */
+    public void lockWait(long startNanos) {
+        span(Stage.LOCK, startNanos);
+    }
+
+    /**
+     * Restituisce il numero di richieste lente dall'avvio del Tracer.
+     *
+     * @return il numero di richieste lente
+     */
+    public long getSlowCount() {
+        return slowCount.get();
+    }
+
+    /**
+     * Restituisce i Trace campionati conservati, dal più vecchio al più recente.
+     *
+     * @return i Trace
+     */
+    public List<Trace> getRecentTraces() {
+        return snapshot(recent, recentCount);
+    }
+
+    /**
+     * Restituisce i Trace delle richieste lente conservati, dal più vecchio al più recente.
+     *
+     * @return i Trace
+     */
+    public List<Trace> getSlowTraces() {
+        return snapshot(slow, slowCount);
+    }
+
+    private static List<Trace> snapshot(AtomicReferenceArray<Trace> traces, AtomicLong count) {
+        long end = count.get();
+        List<Trace> list = new ArrayList<>(CAPACITY);
+        for (long i = Math.max(0, end - CAPACITY); i < end; i++) {
+            Trace t = traces.get((int) (i % CAPACITY));
+            if (t != null)
+                list.add(t);
+        }
+        return list;
+    }
+
+    /**
+     * Scrive i Trace conservati, uno per riga (v. {@link Trace#toString()}), prima quelli delle richieste lente e poi
+     * quelli campionati. I tempi sono in microsecondi.
+     *
+     * @param out lo stream su cui scrivere
+     */
+    public void dump(Writer out) {
+        PrintWriter writer = new PrintWriter(out);
+        writer.println("# slow requests (>= " + getSlowThreshold() + "ms): " + getSlowCount());
+        for (Trace t : getSlowTraces())
+            writer.println(t);
+        writer.println("# sampled requests (rate " + sampleRate + ")");
+        for (Trace t : getRecentTraces())
+            writer.println(t);
+        writer.flush();
+    }
+
+}
@@ -4,31 +4,91 @@
 
 package socialnetwork;
 
-import java.util.*;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Un FriendRequestsManager si occupa di gestire le richieste di amicizia di uno UsersNetwork. Offre metodi per la
- * creazione/conferma di richieste di amicizia, e per la rimozione di richieste non confermate entro un certo periodo.
+ * creazione/conferma di richieste di amicizia; le richieste non confermate entro un certo periodo vengono rimosse.
+ * <p>
+ * Le richieste pendenti sono indicizzate per destinatario e mittente, per cui inserimento, conferma e rifiuto
+ * richiedono tempo costante e bloccano solo le operazioni sullo stesso destinatario. Ogni richiesta viene inserita
+ * anche in una coda ordinata per scadenza, consumata da un thread in background che rimuove le richieste scadute
+ * anche se il destinatario non risponde mai. Una richiesta rinnovata, confermata o negata non viene tolta dalla coda,
+ * operazione che richiederebbe tempo lineare, ma solo segnata come non più valida, e il thread la scarta quando scade;
+ * quando nella coda le richieste non più valide superano quelle pendenti di almeno PURGE_THRESHOLD, la coda viene
+ * ripulita in blocco, per cui la sua dimensione resta proporzionale al numero di richieste pendenti. Ogni utente può
+ * avere al più MAX_PENDING_REQUESTS richieste pendenti.
+ * <p>
+ * Le richieste pendenti possono essere salvate e ripristinate come sequenza di record compatti (mittente,
+ * destinatario, istante di invio), v. {@link #writeRequests(DataOutput)} e {@link #readRequests(DataInput)}.
  */
-public class FriendRequestsManager {
+public class FriendRequestsManager implements Closeable {
 
-    private UsersNetwork usersNetwork;
-    private final Map<User, List<ExpirableFriendRequest>> requests = new HashMap<>();
+    public static final int MAX_PENDING_REQUESTS = 100;
+    private static final int PURGE_THRESHOLD = 1024;
+    private final UsersNetwork usersNetwork;
+    private final long requestLife;
+    private final Map<User, Map<User, ExpirableFriendRequest>> requests = new ConcurrentHashMap<>();
+    private final DelayQueue<ExpirableFriendRequest> expiryQueue = new DelayQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean purging = new AtomicBoolean();
+    private final Thread expiryThread;
 
-    private static class ExpirableFriendRequest {
-        final User user;
-        final Date date;
+    private static class ExpirableFriendRequest implements Delayed {
+        final User sender;
+        final User receiver;
+        final long deadline;
+        volatile boolean delivered;
+        volatile boolean live = true;
 
-        ExpirableFriendRequest(User user) {
-            this.user = user;
-            this.date = new Date();
+        ExpirableFriendRequest(User sender, User receiver, long deadline) {
+            this.sender = sender;
+            this.receiver = receiver;
+            this.deadline = deadline;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= deadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(deadline, ((ExpirableFriendRequest) o).deadline);
         }
     }
 
-    public FriendRequestsManager(UsersNetwork usersNetwork) {
-        if (usersNetwork == null)
+    /**
+     * Crea un FriendRequestsManager e avvia il thread che rimuove le richieste scadute.
+     *
+     * @param usersNetwork la rete sociale
+     * @param requestLife  i millisecondi dopo i quali una richiesta non confermata scade
+     * @throws IllegalArgumentException se usersNetwork è null o requestLife non è positivo
+     */
+    public FriendRequestsManager(UsersNetwork usersNetwork, long requestLife) {
+        if (usersNetwork == null || requestLife <= 0)
             throw new IllegalArgumentException();
         this.usersNetwork = usersNetwork;
+        this.requestLife = requestLife;
+        this.expiryThread = new Thread(this::removeExpiredRequests, "friend-requests-expiry");
+        this.expiryThread.setDaemon(true);
+        this.expiryThread.start();
     }
 
     /**
@@ -36,16 +96,54 @@ public class FriendRequestsManager {
      *
      * @param user1 l'utente che chiede l'amicizia
      * @param user2 l'utente che dovrà accettare la richiesta
+     * @return false se user2 ha già MAX_PENDING_REQUESTS richieste pendenti, true altrimenti
      * @throws UserNotFoundException se uno dei due utenti non esiste nella rete sociale
      */
-    public synchronized void addFriendRequest(User user1, User user2) {
-        if (!usersNetwork.getUsers().contains(user1) || !usersNetwork.getUsers().contains(user2))
+    public boolean addFriendRequest(User user1, User user2) {
+        return addFriendRequest(user1, user2, System.currentTimeMillis());
+    }
+
+    private boolean addFriendRequest(User user1, User user2, long timestamp) {
+        if (!usersNetwork.contains(user1) || !usersNetwork.contains(user2))
             throw new UserNotFoundException();
         if (user1.getFriends().contains(user2))
+            return true;
+        ExpirableFriendRequest request = new ExpirableFriendRequest(user1, user2, timestamp + requestLife);
+
+        boolean[] added = new boolean[1];
+        requests.compute(user2, (receiver, pending) -> {
+            if (pending == null)
+                pending = new ConcurrentHashMap<>();
+            if (pending.size() < MAX_PENDING_REQUESTS || pending.containsKey(user1)) {
+                ExpirableFriendRequest old = pending.put(user1, request);
+                if (old != null)
+                    old.live = false;
+                else
+                    pendingCount.incrementAndGet();
+                added[0] = true;
+            }
+            return pending;
+        });
+        if (!added[0])
+            return false;
+        expiryQueue.add(request);
+        if (expiryQueue.size() > 2 * pendingCount.get() + PURGE_THRESHOLD)
+            purgeExpiryQueue();
+        return true;
+    }
+
+    /**
+     * Toglie dalla coda delle scadenze le richieste non più valide. Viene eseguita da un solo thread alla volta e
+     * senza possedere lock della mappa delle richieste.
+     */
+    private void purgeExpiryQueue() {
+        if (!purging.compareAndSet(false, true))
             return;
-        requests.putIfAbsent(user2, new ArrayList<>());
-        requests.get(user2).removeIf(e -> e.user.equals(user1));
-        requests.get(user2).add(new ExpirableFriendRequest(user1));
+        try {
+            expiryQueue.removeIf(r -> !r.live);
+        } finally {
+            purging.set(false);
+        }
     }
 
     /**
@@ -56,16 +154,18 @@ public class FriendRequestsManager {
      * @param confirm true se la richiesta deve essere confermata, false se deve essere negata
      * @return false se e solo se la richiesta di amicizia è scaduta o non è mai stata richiesta
      */
-    public synchronized boolean confirmFriendRequest(User user1, User user2, boolean confirm) {
-        List<ExpirableFriendRequest> user2requests = requests.get(user2);
-        if (user2requests == null)
+    public boolean confirmFriendRequest(User user1, User user2, boolean confirm) {
+        ExpirableFriendRequest[] removed = new ExpirableFriendRequest[1];
+        requests.computeIfPresent(user2, (receiver, pending) -> {
+            removed[0] = pending.remove(user1);
+            if (removed[0] != null) {
+                removed[0].live = false;
+                pendingCount.decrementAndGet();
+            }
+            return pending.isEmpty() ? null : pending;
+        });
+        if (removed[0] == null || removed[0].isExpired())
             return false;
-
-        Optional<ExpirableFriendRequest> fr = user2requests.stream().filter(f -> f.user == user1).findFirst();
-        if (!fr.isPresent())
-            return false;
-
-        user2requests.remove(fr.get());
         if (!confirm)
             return true;
 
@@ -78,18 +178,130 @@ public class FriendRequestsManager {
     }
 
     /**
-     * Rimuove tutte le richieste di amicizia ricevute da un utente più vecchie di un certo tempo.
+     * Verifica se esiste una richiesta pendente e non scaduta da user1 a user2.
      *
-     * @param user   l'utente
-     * @param millis i millisecondi oltre i quali una richiesta viene cancellata
+     * @param user1 l'utente che ha chiesto l'amicizia
+     * @param user2 l'utente che dovrà accettare la richiesta
+     * @return true se la richiesta è pendente
      */
-    public synchronized void removeRequestsOlderThan(User user, long millis) {
+    public boolean isPending(User user1, User user2) {
+        ExpirableFriendRequest r = get(user1, user2);
+        return r != null && !r.isExpired();
+    }
+
+    /**
+     * Segna come consegnata al destinatario la richiesta pendente da user1 a user2.
+     *
+     * @param user1 l'utente che ha chiesto l'amicizia
+     * @param user2 l'utente a cui è stata consegnata la richiesta
+     */
+    public void markDelivered(User user1, User user2) {
+        ExpirableFriendRequest r = get(user1, user2);
+        if (r != null)
+            r.delivered = true;
+    }
+
+    /**
+     * Restituisce i mittenti delle richieste pendenti ricevute da un utente che non gli sono ancora state consegnate.
+     *
+     * @param user il destinatario
+     * @return la lista dei mittenti
+     */
+    public List<User> getUndeliveredRequests(User user) {
+        List<User> result = new ArrayList<>();
+        Map<User, ExpirableFriendRequest> pending = requests.get(user);
+        if (pending != null)
+            for (ExpirableFriendRequest r : pending.values())
+                if (!r.delivered && !r.isExpired())
+                    result.add(r.sender);
+        return result;
+    }
+
+    private ExpirableFriendRequest get(User user1, User user2) {
+        Map<User, ExpirableFriendRequest> pending = requests.get(user2);
+        return pending == null ? null : pending.get(user1);
+    }
+
+    /**
+     * Restituisce il numero di richieste pendenti ricevute da un utente.
+     *
+     * @param user l'utente
+     * @return il numero di richieste pendenti
+     */
+    public int getPendingRequestsCount(User user) {
+        Map<User, ExpirableFriendRequest> pending = requests.get(user);
+        return pending == null ? 0 : pending.size();
+    }
+
+    /**
+     * Scrive le richieste pendenti come sequenza di record (true, mittente, destinatario, istante di invio) terminata
+     * da false. Le richieste aggiunte o rimosse durante la scrittura potrebbero non esservi riflesse.
+     *
+     * @param out l'output su cui scrivere
+     * @throws IOException se c'è un errore di scrittura
+     */
+    public void writeRequests(DataOutput out) throws IOException {
+        for (Map<User, ExpirableFriendRequest> pending : requests.values())
+            for (ExpirableFriendRequest r : pending.values()) {
+                out.writeBoolean(true);
+                out.writeUTF(r.sender.getUsername());
+                out.writeUTF(r.receiver.getUsername());
+                out.writeLong(r.deadline - requestLife);
+            }
+        out.writeBoolean(false);
+    }
+
+    /**
+     * Legge una sequenza di richieste scritta da {@link #writeRequests(DataOutput)} e ripristina quelle non ancora
+     * scadute, in un'unica passata. Le richieste tra utenti non presenti nella rete o già amici vengono scartate.
+     *
+     * @param in l'input da cui leggere
+     * @return il numero di richieste ripristinate
+     * @throws IOException se c'è un errore di lettura
+     */
+    public int readRequests(DataInput in) throws IOException {
+        int restored = 0;
         long now = System.currentTimeMillis();
-        List<ExpirableFriendRequest> userRequests = requests.get(user);
+        while (in.readBoolean()) {
+            String senderName = in.readUTF();
+            String receiverName = in.readUTF();
+            long timestamp = in.readLong();
+            if (timestamp + requestLife <= now)
+                continue;
+
+            User sender = usersNetwork.getUser(senderName);
+            User receiver = usersNetwork.getUser(receiverName);
+            if (sender != null && receiver != null && !sender.getFriends().contains(receiver)
+                    && addFriendRequest(sender, receiver, timestamp))
+                restored++;
+        }
+        return restored;
+    }
 
-        Iterator<ExpirableFriendRequest> iterator = userRequests.iterator();
-        while (iterator.hasNext())
-            if (now - iterator.next().date.getTime() > millis)
-                iterator.remove();
+    private void removeExpiredRequests() {
+        try {
+            while (true) {
+                ExpirableFriendRequest expired = expiryQueue.take();
+                if (!expired.live)
+                    continue;
+                requests.computeIfPresent(expired.receiver, (receiver, pending) -> {
+                    if (pending.remove(expired.sender, expired)) {
+                        expired.live = false;
+                        pendingCount.decrementAndGet();
+                    }
+                    return pending.isEmpty() ? null : pending;
+                });
+            }
+        } catch (InterruptedException e) {
+
+        }
+    }
+
+    /**
+     * Arresta il thread che rimuove le richieste scadute.
+     */
+    @Override
+    public void close() {
+        expiryThread.interrupt();
     }
 }
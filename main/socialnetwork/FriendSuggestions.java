@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package socialnetwork;
+
+import java.util.*;
+
+/**
+ * Un FriendSuggestions suggerisce a un utente le persone che potrebbe conoscere: gli utenti che non sono suoi amici,
+ * ordinati per numero di amici in comune.
+ * <p>
+ * Il numero di amici in comune si ottiene contando le occorrenze degli amici degli amici dell'utente in una tabella
+ * hash ad indirizzamento aperto, dimensionata sul loro numero e non su quello degli utenti della rete; l'utente stesso
+ * e i suoi amici si scartano consultando l'insieme concorrente dei suoi amici. Le liste di amici vengono lette dagli
+ * User a ogni calcolo invece di esserne mantenuta una copia, per cui oltre alla rete si occupa solo la memoria della
+ * cache dei risultati e, durante un calcolo, quella della tabella.
+ * <p>
+ * I risultati vengono memorizzati in una cache LRU. Registrato come listener della UsersNetwork, un FriendSuggestions
+ * invalida solo i risultati influenzati da una nuova amicizia: quelli dei due utenti coinvolti e dei loro amici.
+ */
+public class FriendSuggestions implements UsersNetworkListener {
+
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+    public static final int MAX_SUGGESTIONS = 100;
+    private final Map<User, List<Suggestion>> cache;
+    private long generation;
+
+    /**
+     * Un utente suggerito, insieme al numero di amici in comune.
+     */
+    public static final class Suggestion {
+        private final User user;
+        private final int mutualFriends;
+
+        private Suggestion(User user, int mutualFriends) {
+            this.user = user;
+            this.mutualFriends = mutualFriends;
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        public int getMutualFriends() {
+            return mutualFriends;
+        }
+    }
+
+    /**
+     * Crea un FriendSuggestions per la rete specificata con una cache di DEFAULT_CACHE_SIZE risultati, e lo registra
+     * come listener della rete.
+     *
+     * @param usersNetwork la rete
+     */
+    public FriendSuggestions(UsersNetwork usersNetwork) {
+        this(usersNetwork, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Crea un FriendSuggestions per la rete specificata e lo registra come listener della rete.
+     *
+     * @param usersNetwork la rete
+     * @param cacheSize    il numero massimo di utenti di cui memorizzare i suggerimenti
+     * @throws IllegalArgumentException se usersNetwork è null o cacheSize < 1
+     */
+    public FriendSuggestions(UsersNetwork usersNetwork, int cacheSize) {
+        if (usersNetwork == null || cacheSize < 1)
+            throw new IllegalArgumentException();
+        this.cache = new LinkedHashMap<User, List<Suggestion>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<User, List<Suggestion>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        usersNetwork.addListener(this);
+    }
+
+    /**
+     * Restituisce al più limit utenti che non sono amici di user, in ordine decrescente di amici in comune (e di nome
+     * a parità di amici in comune). Sono esclusi gli utenti senza amici in comune.
+     *
+     * @param user  l'utente
+     * @param limit il numero massimo di suggerimenti, al più MAX_SUGGESTIONS
+     * @return una lista non modificabile di suggerimenti
+     * @throws IllegalArgumentException se user è null o limit < 1
+     */
+    public List<Suggestion> suggest(User user, int limit) {
+        if (user == null || limit < 1)
+            throw new IllegalArgumentException();
+
+        List<Suggestion> result;
+        long g;
+        synchronized (cache) {
+            result = cache.get(user);
+            g = generation;
+        }
+        if (result == null) {
+            result = compute(user);
+            synchronized (cache) {
+                if (g == generation)
+                    cache.put(user, result);
+            }
+        }
+        return result.size() <= limit ? result : result.subList(0, limit);
+    }
+
+    /**
+     * Calcola i suggerimenti contando gli amici in comune in una tabella hash con chiavi confrontate per identità:
+     * keys contiene i candidati (null per le celle vuote) e counts il relativo numero di amici in comune. Le liste degli
+     * amici degli amici vengono copiate prima di dimensionare la tabella, così che amicizie aggiunte durante il calcolo
+     * non possano riempirla.
+     */
+    private List<Suggestion> compute(User user) {
+        Collection<User> friends = user.getFriends();
+        List<User[]> lists = new ArrayList<>(friends.size());
+        int total = 0;
+        for (User f : friends) {
+            User[] list = f.getFriends().toArray(new User[0]);
+            lists.add(list);
+            total += list.length;
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(total, 1) * 2 - 1) << 1;
+        int mask = capacity - 1;
+        int shift = Integer.numberOfLeadingZeros(mask);
+        User[] keys = new User[capacity];
+        int[] counts = new int[capacity];
+        for (User[] list : lists)
+            for (User c : list) {
+                if (c == user || friends.contains(c))
+                    continue;
+                int slot = (System.identityHashCode(c) * 0x9E3779B9) >>> shift;
+                while (keys[slot] != null && keys[slot] != c)
+                    slot = (slot + 1) & mask;
+                keys[slot] = c;
+                counts[slot]++;
+            }
+
+        Comparator<Suggestion> order = Comparator.comparingInt(Suggestion::getMutualFriends).reversed()
+                .thenComparing(s -> s.getUser().getUsername());
+        PriorityQueue<Suggestion> top = new PriorityQueue<>(MAX_SUGGESTIONS + 1, order.reversed());
+        for (int i = 0; i < capacity; i++) {
+            if (keys[i] == null || top.size() == MAX_SUGGESTIONS && counts[i] < top.peek().getMutualFriends())
+                continue;
+            top.add(new Suggestion(keys[i], counts[i]));
+            if (top.size() > MAX_SUGGESTIONS)
+                top.poll();
+        }
+
+        Suggestion[] result = top.toArray(new Suggestion[top.size()]);
+        Arrays.sort(result, order);
+        return Collections.unmodifiableList(Arrays.asList(result));
+    }
+
+    @Override
+    public void userAdded(User user) {
+
+    }
+
+    @Override
+    public void friendshipAdded(User user1, User user2) {
+        synchronized (cache) {
+            generation++;
+            cache.remove(user1);
+            cache.remove(user2);
+            for (User u : user1.getFriends())
+                cache.remove(u);
+            for (User u : user2.getFriends())
+                cache.remove(u);
+        }
+    }
+
+    @Override
+    public void subscriptionAdded(User follower, User followed) {
+
+    }
+
+    @Override
+    public void postAdded(Post post) {
+
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package socialnetwork;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Un PostLog è una sequenza di Post a cui è possibile solo aggiungere elementi in coda, senza lock. I Post sono
+ * memorizzati in una lista concatenata di blocchi di dimensione fissa: chi aggiunge si riserva uno slot del blocco in
+ * coda con un'operazione atomica e, quando il blocco è pieno, ne collega uno nuovo con una compare-and-set.
+ */
+class PostLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int CHUNK_SIZE = 32;
+    private transient Chunk head;
+    private transient AtomicReference<Chunk> tail;
+
+    private static final class Chunk {
+        final AtomicReferenceArray<Post> items = new AtomicReferenceArray<>(CHUNK_SIZE);
+        final AtomicInteger reserved = new AtomicInteger();
+        final AtomicReference<Chunk> next = new AtomicReference<>();
+    }
+
+    PostLog() {
+        head = new Chunk();
+        tail = new AtomicReference<>(head);
+    }
+
+    /**
+     * Aggiunge un Post in coda al log.
+     *
+     * @param post il post da aggiungere
+     */
+    void append(Post post) {
+        while (true) {
+            Chunk last = tail.get();
+            int slot = last.reserved.getAndIncrement();
+            if (slot < CHUNK_SIZE) {
+                last.items.set(slot, post);
+                return;
+            }
+
+            // Il blocco è pieno: collega (o aiuta a collegare) il successivo e avanza la coda
+            Chunk next = last.next.get();
+            if (next == null) {
+                Chunk chunk = new Chunk();
+                next = last.next.compareAndSet(null, chunk) ? chunk : last.next.get();
+            }
+            tail.compareAndSet(last, next);
+        }
+    }
+
+    /**
+     * Restituisce una copia dei Post presenti nel log. Se un'aggiunta concorrente ha riservato uno slot ma non vi ha
+     * ancora scritto, la copia si ferma al Post precedente, così da restituire sempre un prefisso del log.
+     *
+     * @return una nuova lista di Post in ordine di inserimento
+     */
+    List<Post> snapshot() {
+        List<Post> result = new ArrayList<>();
+        for (Chunk c = head; c != null; c = c.next.get()) {
+            int count = Math.min(c.reserved.get(), CHUNK_SIZE);
+            for (int i = 0; i < count; i++) {
+                Post p = c.items.get(i);
+                if (p == null)
+                    return result;
+                result.add(p);
+            }
+            if (count < CHUNK_SIZE)
+                break;
+        }
+        return result;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        List<Post> posts = snapshot();
+        out.writeInt(posts.size());
+        for (Post p : posts)
+            out.writeObject(p);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        head = new Chunk();
+        tail = new AtomicReference<>(head);
+        int size = in.readInt();
+        for (int i = 0; i < size; i++)
+            append((Post) in.readObject());
+    }
+
+}
@@ -6,15 +6,21 @@ package socialnetwork;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Un utente della rete sociale. Amici, follower e post sono memorizzati in strutture concorrenti: possono essere
+ * modificati senza lock esterni e visitati mentre altri thread li modificano.
+ */
 public class User implements Serializable {
 
-    private static final long serialVersionUID = 1L;
-    private Set<User> friends;
-    private Set<User> followers;
-    private List<Post> posts;
+    private static final long serialVersionUID = 2L;
+    private final Set<User> friends;
+    private final Set<User> followers;
+    private final PostLog posts;
     private final String username;
     private final String password;
+    private final boolean remote;
 
     /**
      * Crea un nuovo utente con nome e password specificati.
@@ -24,13 +30,38 @@ public class User implements Serializable {
      * @throws IllegalArgumentException se uno degli argomenti è null
      */
     public User(String username, String password) {
+        this(username, password, false);
+    }
+
+    private User(String username, String password, boolean remote) {
         if (username == null || password == null)
             throw new IllegalArgumentException();
         this.username = username;
         this.password = password;
-        this.friends = new HashSet<>();
-        this.followers = new HashSet<>();
-        this.posts = new ArrayList<>();
+        this.remote = remote;
+        this.friends = ConcurrentHashMap.newKeySet();
+        this.followers = ConcurrentHashMap.newKeySet();
+        this.posts = new PostLog();
+    }
+
+    /**
+     * Crea un utente remoto, cioè il riferimento locale a un utente registrato su un'altra partizione della rete. Un
+     * utente remoto non ha password e non può effettuare il login.
+     *
+     * @param username il nome dell'utente
+     * @return il nuovo utente remoto
+     */
+    static User remote(String username) {
+        return new User(username, "", true);
+    }
+
+    /**
+     * Indica se l'utente è il riferimento locale a un utente registrato su un'altra partizione della rete.
+     *
+     * @return true se l'utente è remoto
+     */
+    public boolean isRemote() {
+        return remote;
     }
 
     public String getUsername() {
@@ -69,7 +100,8 @@ public class User implements Serializable {
     }
 
     /**
-     * Ritorna la collezione degli utenti interessati ai contenuti di questo utente.
+     * Ritorna la collezione degli utenti interessati ai contenuti di questo utente. La collezione può essere visitata
+     * mentre altri thread aggiungono follower.
      *
      * @return una collezione non modificabile di User
      */
@@ -81,21 +113,22 @@ public class User implements Serializable {
      * Aggiunge un elemento alla lista dei contenuti pubblicati dall'utente.
      *
      * @param content il contenuto del post
+     * @param date    la data di pubblicazione
      * @return l'oggetto Post appena creato
      */
-    Post addPost(String content) {
-        Post p = new Post(this, new Date(), content);
-        posts.add(p);
+    Post addPost(String content, Date date) {
+        Post p = new Post(this, date, content);
+        posts.append(p);
         return p;
     }
 
     /**
-     * Restituisce la lista di tutti i contenuti pubblicati dall'utente.
+     * Restituisce la lista di tutti i contenuti pubblicati dall'utente fino a questo momento.
      *
      * @return lista non modificabile dei Post dell'utente
      */
     public List<Post> getPosts() {
-        return Collections.unmodifiableList(posts);
+        return Collections.unmodifiableList(posts.snapshot());
     }
 
 }
\ No newline at end of file
@@ -4,26 +4,157 @@
 
 package socialnetwork;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.stream.Collectors;
+import java.util.function.LongConsumer;
 
 
 /**
  * Una UsersNetwork rappresenta una rete di utenti con alcuni vincoli come l'univocità dei nomi, la relazione di
  * amicizia simmetrica e quella di iscrizione ai contenuti asimmetrica.
+ * <p>
+ * Gli utenti sono partizionati in base all'hash del nome in un numero fissato di stripe, ognuna protetta dal proprio
+ * ReadWriteLock: operazioni su utenti di stripe diverse non si bloccano a vicenda. Le operazioni che coinvolgono due
+ * utenti acquisiscono i lock delle due stripe sempre in ordine crescente di indice, così da evitare deadlock.
+ * <p>
+ * Amici, follower e post di uno User sono strutture concorrenti: le pubblicazioni richiedono solo il read lock della
+ * stripe dell'autore per verificarne l'appartenenza alla rete, le iscrizioni i write lock delle stripe dei due utenti,
+ * come le amicizie, perché l'iscrizione dipende dall'amicizia.
+ * <p>
+ * Ogni modifica viene notificata agli eventuali UsersNetworkListener registrati. Le modifiche a utenti, amicizie e
+ * iscrizioni vengono notificate mentre si possiedono i lock che le proteggono, per cui l'ordine delle notifiche
+ * rispetta quello in cui le modifiche sono diventate visibili: ad esempio l'aggiunta di un utente viene sempre
+ * notificata prima di un'amicizia che lo coinvolge.
  */
 public class UsersNetwork implements Serializable {
 
-    private static final long serialVersionUID = 1L;
-    private final Collection<User> users = new HashSet<>();
-    private final Map<String, User> usersMap = new HashMap<>();
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    private static final long serialVersionUID = 2L;
+    private final Stripe[] stripes;
+    private transient List<UsersNetworkListener> listeners = new CopyOnWriteArrayList<>();
+    private transient volatile LongConsumer lockWaitListener;
+    public static final int DEFAULT_STRIPES = 64;
 
+    private static class Stripe implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final Map<String, User> users = new HashMap<>();
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Crea una rete vuota con DEFAULT_STRIPES stripe.
+     */
     public UsersNetwork() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Crea una rete vuota con il numero di stripe specificato.
+     *
+     * @param stripesCount il numero di stripe in cui partizionare gli utenti
+     * @throws IllegalArgumentException se stripesCount < 1
+     */
+    public UsersNetwork(int stripesCount) {
+        if (stripesCount < 1)
+            throw new IllegalArgumentException("stripesCount < 1");
+        stripes = new Stripe[stripesCount];
+        for (int i = 0; i < stripesCount; i++)
+            stripes[i] = new Stripe();
+    }
 
+    /**
+     * Registra un listener che verrà notificato di ogni modifica della rete. I listener non vengono serializzati.
+     *
+     * @param listener il listener da registrare
+     */
+    public void addListener(UsersNetworkListener listener) {
+        if (listener == null)
+            throw new IllegalArgumentException();
+        listeners.add(listener);
+    }
+
+    /**
+     * Rimuove un listener registrato in precedenza.
+     *
+     * @param listener il listener da rimuovere
+     */
+    public void removeListener(UsersNetworkListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Imposta l'oggetto che viene informato delle attese per il write lock di una stripe, ad esempio per attribuirle
+     * alla richiesta che le ha subite. Il listener viene invocato dal thread che ha atteso, appena acquisito il lock,
+     * con l'istante (v. {@link System#nanoTime()}) in cui l'attesa è iniziata. Le acquisizioni che non attendono non
+     * costano nulla. Il listener non viene serializzato.
+     *
+     * @param listener il listener, oppure null per rimuoverlo
+     */
+    public void setLockWaitListener(LongConsumer listener) {
+        this.lockWaitListener = listener;
+    }
+
+    /**
+     * Restituisce il numero di stripe della rete.
+     *
+     * @return il numero di stripe
+     */
+    public int getStripesCount() {
+        return stripes.length;
+    }
+
+    private int stripeIndex(String username) {
+        int h = username.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7FFFFFFF) % stripes.length;
+    }
+
+    private Stripe stripeOf(String username) {
+        return stripes[stripeIndex(username)];
+    }
+
+    private void writeLock(Stripe stripe) {
+        Lock lock = stripe.lock.writeLock();
+        if (lock.tryLock())
+            return;
+        long start = System.nanoTime();
+        lock.lock();
+        LongConsumer listener = lockWaitListener;
+        if (listener != null)
+            listener.accept(start);
+    }
+
+    /**
+     * Acquisisce i write lock delle stripe dei due utenti in ordine crescente di indice. Se i due utenti appartengono
+     * alla stessa stripe il lock viene acquisito una sola volta.
+     */
+    private void lockPair(User user1, User user2) {
+        int i1 = stripeIndex(user1.getUsername());
+        int i2 = stripeIndex(user2.getUsername());
+        writeLock(stripes[Math.min(i1, i2)]);
+        if (i1 != i2)
+            writeLock(stripes[Math.max(i1, i2)]);
+    }
+
+    private void unlockPair(User user1, User user2) {
+        int i1 = stripeIndex(user1.getUsername());
+        int i2 = stripeIndex(user2.getUsername());
+        if (i1 != i2)
+            stripes[Math.max(i1, i2)].lock.writeLock().unlock();
+        stripes[Math.min(i1, i2)].lock.writeLock().unlock();
+    }
+
+    /**
+     * Verifica che user appartenga alla rete. Il chiamante deve possedere il lock della stripe di user.
+     */
+    private boolean belongs(User user) {
+        return user != null && stripeOf(user.getUsername()).users.get(user.getUsername()) == user;
     }
 
     /**
@@ -35,17 +166,48 @@ public class UsersNetwork implements Serializable {
      * @return l'utente appena creato oppure null
      */
     public User addUser(String username, String password) {
-        readWriteLock.writeLock().lock();
+        Stripe stripe = stripeOf(username);
+        User u;
+        writeLock(stripe);
         try {
-            if (getUser(username) != null)
+            if (stripe.users.containsKey(username))
                 return null;
-            User u = new User(username, password);
-            users.add(u);
-            usersMap.put(username, u);
+            u = new User(username, password);
+            stripe.users.put(username, u);
+            for (UsersNetworkListener l : listeners)
+                l.userAdded(u);
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+        return u;
+    }
+
+    /**
+     * Restituisce l'utente col nome specificato. Se questo non esiste lo crea come utente remoto, cioè come riferimento
+     * locale a un utente registrato su un'altra partizione della rete (v. {@link User#isRemote()}).
+     *
+     * @param username il nome dell'utente
+     * @return l'utente col nome specificato, locale o remoto
+     */
+    public User getOrAddRemoteUser(String username) {
+        User u = getUser(username);
+        if (u != null)
             return u;
+
+        Stripe stripe = stripeOf(username);
+        writeLock(stripe);
+        try {
+            u = stripe.users.get(username);
+            if (u != null)
+                return u;
+            u = User.remote(username);
+            stripe.users.put(username, u);
+            for (UsersNetworkListener l : listeners)
+                l.userAdded(u);
         } finally {
-            readWriteLock.writeLock().unlock();
+            stripe.lock.writeLock().unlock();
         }
+        return u;
     }
 
     /**
@@ -56,11 +218,30 @@ public class UsersNetwork implements Serializable {
      * @return l'utente col nome specificato oppure null
      */
     public User getUser(String username) {
-        readWriteLock.readLock().lock();
+        Stripe stripe = stripeOf(username);
+        stripe.lock.readLock().lock();
         try {
-            return usersMap.get(username);
+            return stripe.users.get(username);
         } finally {
-            readWriteLock.readLock().unlock();
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Verifica se un utente appartiene alla rete.
+     *
+     * @param user l'utente
+     * @return true se user è registrato nella rete
+     */
+    public boolean contains(User user) {
+        if (user == null)
+            return false;
+        Stripe stripe = stripeOf(user.getUsername());
+        stripe.lock.readLock().lock();
+        try {
+            return belongs(user);
+        } finally {
+            stripe.lock.readLock().unlock();
         }
     }
 
@@ -70,14 +251,18 @@ public class UsersNetwork implements Serializable {
      * @throws UserNotFoundException se uno dei due utenti non appertiene alla rete
      */
     public void addFriendship(User user1, User user2) throws UserNotFoundException {
-        readWriteLock.writeLock().lock();
+        if (user1 == null || user2 == null)
+            throw new UserNotFoundException();
+        lockPair(user1, user2);
         try {
-            if (!users.contains(user1) || !users.contains(user2))
+            if (!belongs(user1) || !belongs(user2))
                 throw new UserNotFoundException();
             user1.addFriend(user2);
             user2.addFriend(user1);
+            for (UsersNetworkListener l : listeners)
+                l.friendshipAdded(user1, user2);
         } finally {
-            readWriteLock.writeLock().unlock();
+            unlockPair(user1, user2);
         }
     }
 
@@ -90,28 +275,63 @@ public class UsersNetwork implements Serializable {
      * @throws UserNotFoundException se author non appartiene alla rete
      */
     public Post addPost(User author, String content) throws UserNotFoundException {
-        readWriteLock.writeLock().lock();
-        try {
-            if (!users.contains(author))
-                throw new UserNotFoundException();
-            return author.addPost(content);
-        } finally {
-            readWriteLock.writeLock().unlock();
-        }
+        return addPost(author, content, new Date());
     }
 
     /**
-     * Restituisce la collezione degli utenti registrati alla rete.
+     * Registra un post con autore, contenuto e data di pubblicazione forniti. Permette di ricostruire una rete a
+     * partire dalle modifiche di un'altra.
+     *
+     * @param author  l'autore del post
+     * @param content il contenuto del post
+     * @param date    la data di pubblicazione
+     * @return il post appena creato
+     * @throws UserNotFoundException se author non appartiene alla rete
+     */
+    public Post addPost(User author, String content, Date date) throws UserNotFoundException {
+        if (!contains(author))
+            throw new UserNotFoundException();
+        Post p = author.addPost(content, new Date(date.getTime()));
+        for (UsersNetworkListener l : listeners)
+            l.postAdded(p);
+        return p;
+    }
+
+    /**
+     * Restituisce la collezione degli utenti registrati alla rete. La collezione è una copia costruita visitando le
+     * stripe una alla volta: utenti aggiunti durante la visita potrebbero non esservi inclusi.
      *
      * @return una collezione non modificabile degli utenti
      */
     public Collection<User> getUsers() {
-        readWriteLock.readLock().lock();
-        try {
-            return Collections.unmodifiableCollection(users);
-        } finally {
-            readWriteLock.readLock().unlock();
+        List<User> result = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                result.addAll(stripe.users.values());
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        return Collections.unmodifiableCollection(result);
+    }
+
+    /**
+     * Restituisce il numero di utenti registrati alla rete.
+     *
+     * @return il numero di utenti
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                size += stripe.users.size();
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
         }
+        return size;
     }
 
     /**
@@ -123,14 +343,19 @@ public class UsersNetwork implements Serializable {
      * @throws UserNotFoundException se uno dei due utenti non appertiene alla rete
      */
     public void addSubscription(User user1, User user2) throws UserNotFoundException {
-        readWriteLock.writeLock().lock();
+        if (user1 == null || user2 == null)
+            throw new UserNotFoundException();
+        lockPair(user1, user2);
         try {
-            if (!users.contains(user1) || !users.contains(user2))
+            if (!belongs(user1) || !belongs(user2))
                 throw new UserNotFoundException();
-            if (user1.getFriends().contains(user2))
+            if (user1.getFriends().contains(user2)) {
                 user2.addFollower(user1);
+                for (UsersNetworkListener l : listeners)
+                    l.subscriptionAdded(user1, user2);
+            }
         } finally {
-            readWriteLock.writeLock().unlock();
+            unlockPair(user1, user2);
         }
     }
 
@@ -141,14 +366,40 @@ public class UsersNetwork implements Serializable {
      * @return la collezione dei risultati
      */
     public Collection<User> findUsers(String query) {
-        readWriteLock.readLock().lock();
+        if (query == null)
+            return getUsers();
+        List<User> result = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                for (User u : stripe.users.values())
+                    if (u.getUsername().contains(query))
+                        result.add(u);
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Serializza la rete tenendo i read lock di tutte le stripe (acquisiti in ordine di indice), così che il backup
+     * non osservi aggiunte concorrenti di utenti e amicizie.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        for (Stripe stripe : stripes)
+            stripe.lock.readLock().lock();
         try {
-            if (query == null)
-                return getUsers();
-            return users.stream().filter(u -> u.getUsername().contains(query)).collect(Collectors.toList());
+            out.defaultWriteObject();
         } finally {
-            readWriteLock.readLock().unlock();
+            for (int i = stripes.length - 1; i >= 0; i--)
+                stripes[i].lock.readLock().unlock();
         }
     }
 
-}
\ No newline at end of file
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        listeners = new CopyOnWriteArrayList<>();
+    }
+
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) Giorgio Vinciguerra 5/2016.
+ */
+
+package socialnetwork;
+
+/**
+ * Un'interfaccia listener per ricevere notifiche delle modifiche a una UsersNetwork. I metodi vengono invocati dal
+ * thread che ha effettuato la modifica, dopo che questa è stata applicata. Tranne postAdded, vengono invocati mentre
+ * il thread possiede i lock della rete che proteggono la modifica, così che le notifiche arrivino nello stesso ordine
+ * in cui le modifiche diventano visibili agli altri thread: devono quindi essere brevi e non devono accedere alla rete.
+ */
+public interface UsersNetworkListener {
+
+    /**
+     * Invocato quando viene aggiunto un utente alla rete, locale o remoto (v. {@link User#isRemote()}).
+     *
+     * @param user l'utente aggiunto
+     */
+    void userAdded(User user);
+
+    void friendshipAdded(User user1, User user2);
+
+    void subscriptionAdded(User follower, User followed);
+
+    void postAdded(Post post);
+
+}